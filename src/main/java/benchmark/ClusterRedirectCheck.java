@@ -0,0 +1,126 @@
+package benchmark;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Response;
+import util.ShardRedisBatch;
+import util.ShardRedisBatchExecutor;
+import util.ShardRedisClusterConnectionFactory;
+import util.ShardRedisPoolManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 集群模式 MOVED / ASK 重定向的功能验证，用进程内的 RedisClusterStub 代替真实集群，不需要 Redis
+ * <p>
+ * 每一项先让客户端的槽位表过期（替身上迁走槽位或开始迁移），再分别经过逐条执行、自动合批、newBatch 和多 key 命令，
+ * 检查结果与没有重定向时一致、命令没有被重复执行。每项输出 OK 或 FAIL，有 FAIL 时以非 0 退出。
+ */
+public class ClusterRedirectCheck {
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        try (RedisClusterStub stub = new RedisClusterStub(2)) {
+            ShardRedisClusterConnectionFactory factory = new ShardRedisClusterConnectionFactory(
+                    Collections.singleton(new HostAndPort("127.0.0.1", stub.getPort(0))), new JedisPoolConfig());
+            ShardRedisPoolManager manager = new ShardRedisPoolManager();
+            manager.setFactory(factory);
+            List<String> keys = keysOnNode(stub, 0, 4);
+
+            // 逐条执行：MOVED 后到新节点重试
+            manager.set(keys.get(0), "v0");
+            stub.moveSlot(slot(keys.get(0)), 1);
+            check("execute after MOVED", "v0".equals(manager.get(keys.get(0))));
+
+            // 自动合批：pipeline 中收到 MOVED 的命令到新节点重新执行，不当作未命中
+            ShardRedisBatchExecutor executor = new ShardRedisBatchExecutor(factory);
+            manager.setBatchExecutor(executor);
+            manager.set(keys.get(1), "v1");
+            stub.moveSlot(slot(keys.get(1)), 1);
+            check("batched get after MOVED", "v1".equals(manager.get(keys.get(1))));
+            stub.moveSlot(slot(keys.get(1)), 0);
+            check("batched set after MOVED", "OK".equals(manager.set(keys.get(1), "v1b"))
+                    && "v1b".equals(manager.get(keys.get(1))));
+            manager.setBatchExecutor(null);
+            executor.shutdown();
+
+            // newBatch：同上
+            manager.set(keys.get(2), "v2");
+            stub.moveSlot(slot(keys.get(2)), 1);
+            ShardRedisBatch batch = manager.newBatch();
+            Response<String> value = batch.get(keys.get(2));
+            Response<String> written = batch.set(keys.get(2), "v2b");
+            batch.execute();
+            check("newBatch after MOVED", "v2".equals(value.get()) && "OK".equals(written.get())
+                    && "v2b".equals(manager.get(keys.get(2))));
+
+            // ASK：迁移中的槽位上已迁走的 key 带 ASKING 到目标节点执行
+            manager.set(keys.get(3), "v3");
+            stub.startMigration(slot(keys.get(3)), 1);
+            stub.migrateKey(keys.get(3), 1);
+            check("execute after ASK", "v3".equals(manager.get(keys.get(3))));
+            executor = new ShardRedisBatchExecutor(factory);
+            manager.setBatchExecutor(executor);
+            check("batched get after ASK", "v3".equals(manager.get(keys.get(3))));
+            manager.setBatchExecutor(null);
+            executor.shutdown();
+            stub.moveSlot(slot(keys.get(3)), 1);
+
+            // 多 key 命令：同一节点上两个槽位，只有一个槽位迁走，只重定向这个槽位
+            List<String> moved = keysOnNode(stub, 0, 1);
+            List<String> stay = keysOnNode(stub, 0, 2);
+            stay.removeAll(moved);
+            String[] multi = {moved.get(0), stay.get(0)};
+            check("mset", "OK".equals(manager.mset(pairs(multi))));
+            stub.moveSlot(slot(moved.get(0)), 1);
+            long before = stub.getCommands(0) + stub.getCommands(1);
+            check("mget after MOVED", manager.mget(multi).equals(Arrays.asList("x", "x")));
+            check("mget runs each slot once", stub.getCommands(0) + stub.getCommands(1) - before == 2);
+            stub.moveSlot(slot(stay.get(0)), 1);
+            stub.moveSlot(slot(moved.get(0)), 0);
+            check("del after MOVED", Long.valueOf(2).equals(manager.del(multi)));
+            factory.close();
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * 当前属于 node 的前 count 个 key，每个 key 在不同的槽位
+     */
+    private static List<String> keysOnNode(RedisClusterStub stub, int node, int count) {
+        List<String> keys = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "cluster:check:" + i;
+            if (stub.getOwner(slot(key)) == node && !slots.contains(slot(key))) {
+                keys.add(key);
+                slots.add(slot(key));
+            }
+        }
+        return keys;
+    }
+
+    private static Map<String, String> pairs(String[] keys) {
+        Map<String, String> hash = new LinkedHashMap<>();
+        for (String key : keys) {
+            hash.put(key, "x");
+        }
+        return hash;
+    }
+
+    private static int slot(String key) {
+        return ShardRedisClusterConnectionFactory.getSlot(key);
+    }
+
+    private static void check(String name, boolean ok) {
+        if (!ok) {
+            failures++;
+        }
+        System.out.printf("%-32s %s%n", name, ok ? "OK" : "FAIL");
+    }
+}
@@ -0,0 +1,103 @@
+package benchmark;
+
+import redis.clients.jedis.Jedis;
+import util.JedisPoolManager;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * JedisPoolManager 获取连接路径的多线程压测，需要本机 6379 端口有 Redis
+ * <p>
+ * before：复现原来 synchronized static getResource 的全局加锁借用
+ * after：去掉全局锁之后的 getResource，每条命令借还一次
+ * bound：每个线程 bindResource 之后连续执行一批命令，复用同一个连接
+ */
+public class JedisPoolBenchmark {
+    private static final String KEY = "benchmark:jedisPool";
+    private static final int[] THREADS = {1, 8, 32, 128};
+    private static final int OPS_PER_THREAD = 20000;
+    private static final int BOUND_OPS = 100;
+
+    public static void main(String[] args) throws Exception {
+        new JedisPoolManager();
+        JedisPoolManager.set(KEY, "1");
+
+        // 预热
+        run(8, JedisPoolBenchmark::unlocked);
+
+        System.out.printf("%8s %14s %14s %14s%n", "threads", "before ops/s", "after ops/s", "bound ops/s");
+        for (int threads : THREADS) {
+            double before = run(threads, JedisPoolBenchmark::locked);
+            double after = run(threads, JedisPoolBenchmark::unlocked);
+            double bound = run(threads, JedisPoolBenchmark::bound);
+            System.out.printf("%8d %14.0f %14.0f %14.0f%n", threads, before, after, bound);
+        }
+        JedisPoolManager.del(new String[]{KEY});
+    }
+
+    private static synchronized Jedis lockedGetResource() {
+        return JedisPoolManager.getResource();
+    }
+
+    private static void locked(int ops) {
+        for (int i = 0; i < ops; i++) {
+            Jedis jedis = lockedGetResource();
+            try {
+                jedis.get(KEY);
+            } finally {
+                JedisPoolManager.returnResource(jedis);
+            }
+        }
+    }
+
+    private static void unlocked(int ops) {
+        for (int i = 0; i < ops; i++) {
+            JedisPoolManager.get(KEY);
+        }
+    }
+
+    /**
+     * 模拟一次请求内连续执行 BOUND_OPS 条命令，线程数超过 maxTotal 时也不会长期占住连接
+     */
+    private static void bound(int ops) {
+        for (int i = 0; i < ops; i += BOUND_OPS) {
+            JedisPoolManager.bindResource();
+            try {
+                for (int j = 0; j < BOUND_OPS; j++) {
+                    JedisPoolManager.get(KEY);
+                }
+            } finally {
+                JedisPoolManager.unbindResource();
+            }
+        }
+    }
+
+    /**
+     * 启动 threads 个线程各执行 OPS_PER_THREAD 次命令，返回总吞吐
+     */
+    private static double run(int threads, Worker worker) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    worker.run(OPS_PER_THREAD);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double) threads * OPS_PER_THREAD * 1_000_000_000L / elapsed;
+    }
+
+    private interface Worker {
+        void run(int ops);
+    }
+}
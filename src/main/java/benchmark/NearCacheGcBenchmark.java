@@ -0,0 +1,120 @@
+package benchmark;
+
+import cache.HeapNearCache;
+import cache.NearCache;
+import cache.OffHeapNearCache;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import redis.clients.util.SafeEncoder;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 堆内与堆外一级缓存的 GC 对比，不需要 Redis
+ * <p>
+ * 先放满 ENTRIES 个 VALUE_SIZE 字节的字符串，再做 OPS 次 90% 读、10% 覆盖写，同时分配一些短命对象模拟业务请求。
+ * 记录放满后的堆使用量、读写阶段的 GC 次数、总停顿和最长停顿。
+ * <p>
+ * 参数为 heap 或 offheap 时只测一种，两种在同一个 JVM 里先后测会互相影响，建议分开运行，例如
+ * java -Xmx1g -XX:MaxDirectMemorySize=1g benchmark.NearCacheGcBenchmark heap
+ */
+public class NearCacheGcBenchmark {
+    private static final int ENTRIES = 100000;
+    private static final int VALUE_SIZE = 2048;
+    private static final int OPS = 5000000;
+    private static final StringRedisSerializer SERIALIZER = new StringRedisSerializer();
+
+    private static final AtomicLong pauses = new AtomicLong();
+    private static final AtomicLong pauseMillis = new AtomicLong();
+    private static final AtomicLong maxPauseMillis = new AtomicLong();
+
+    // 防止读取结果被 JIT 消除
+    private static long sink;
+
+    public static void main(String[] args) {
+        listenGc();
+        List<String> modes = args.length > 0 ? Arrays.asList(args) : Arrays.asList("heap", "offheap");
+        System.out.printf("%8s %10s %12s %10s %8s %12s %12s %12s%n", "store", "entries", "heap MB", "ops/s",
+                "gcs", "gc ms", "max gc ms", "evictions");
+        for (String mode : modes) {
+            long capacity = (long) ENTRIES * VALUE_SIZE * 5 / 4;
+            NearCache cache = "offheap".equals(mode)
+                    ? new OffHeapNearCache(capacity, Long.MAX_VALUE / 2, SERIALIZER)
+                    : new HeapNearCache(ENTRIES * 2L, capacity, Long.MAX_VALUE / 2);
+            run(mode, cache);
+            cache.clear();
+            if (cache instanceof OffHeapNearCache) {
+                ((OffHeapNearCache) cache).close();
+            }
+            System.gc();
+        }
+    }
+
+    private static void run(String mode, NearCache cache) {
+        Random random = new Random(1);
+        char[] chars = new char[VALUE_SIZE];
+        for (int i = 0; i < ENTRIES; i++) {
+            put(cache, i, chars, random);
+        }
+        System.gc();
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        pauses.set(0);
+        pauseMillis.set(0);
+        maxPauseMillis.set(0);
+        long begin = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            int id = random.nextInt(ENTRIES);
+            if (i % 10 == 0) {
+                put(cache, id, chars, random);
+            } else {
+                Object value = cache.get(key(id));
+                sink += value == null ? 0 : ((String) value).length();
+            }
+            // 业务请求产生的短命对象
+            sink += new byte[256].length;
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("%8s %10d %12d %10.0f %8d %12d %12d %12d%n", mode, cache.size(), heapUsed >> 20,
+                OPS * 1e9 / elapsed, pauses.get(), pauseMillis.get(), maxPauseMillis.get(), cache.getEvictions());
+    }
+
+    private static void put(NearCache cache, int id, char[] chars, Random random) {
+        Arrays.fill(chars, (char) ('a' + random.nextInt(26)));
+        String value = new String(chars);
+        cache.put(key(id), value, SERIALIZER.serialize(value), cache.version());
+    }
+
+    private static byte[] key(int id) {
+        return SafeEncoder.encode("benchmark:near:" + id);
+    }
+
+    private static void listenGc() {
+        NotificationListener listener = (notification, handback) -> {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            // 并发收集阶段不停顿应用线程
+            if (info.getGcName().contains("Concurrent")) {
+                return;
+            }
+            long duration = info.getGcInfo().getDuration();
+            pauses.incrementAndGet();
+            pauseMillis.addAndGet(duration);
+            maxPauseMillis.accumulateAndGet(duration, Math::max);
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+        }
+    }
+}
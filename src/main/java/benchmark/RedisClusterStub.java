@@ -0,0 +1,331 @@
+package benchmark;
+
+import util.ShardRedisClusterConnectionFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的 Redis Cluster 替身，用于在没有真实集群时验证槽位路由和 MOVED / ASK 重定向
+ * <p>
+ * 每个节点监听本机一个随机端口，支持 PING、ASKING、CLUSTER SLOTS、GET、SET、SETEX、MGET、MSET、DEL、EXISTS。
+ * 槽位归属保存在共享的槽位表里：key 所在槽位不属于当前节点时返回 MOVED；槽位正在迁出且 key 已不在本节点时返回 ASK，
+ * 目标节点只在收到 ASKING 后的下一条命令上接受该槽位。多 key 命令跨槽位时返回 CROSSSLOT。
+ * 不支持过期时间（SETEX 只写值），只用于功能验证，不用于性能测试。
+ */
+public class RedisClusterStub implements Closeable {
+    private static final int SLOTS = 16384;
+
+    private final Node[] nodes;
+    // 槽位 -> 节点下标
+    private final AtomicIntegerArray owners = new AtomicIntegerArray(SLOTS);
+    // 正在迁出的槽位 -> 目标节点下标，-1 表示没有迁移
+    private final AtomicIntegerArray migrating = new AtomicIntegerArray(SLOTS);
+
+    public RedisClusterStub(int nodeCount) throws IOException {
+        this.nodes = new Node[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new Node(i);
+        }
+        for (int slot = 0; slot < SLOTS; slot++) {
+            owners.set(slot, (int) ((long) slot * nodeCount / SLOTS));
+            migrating.set(slot, -1);
+        }
+        for (Node node : nodes) {
+            node.start();
+        }
+    }
+
+    public int getPort(int node) {
+        return nodes[node].server.getLocalPort();
+    }
+
+    public int getOwner(int slot) {
+        return owners.get(slot);
+    }
+
+    /**
+     * 节点执行过的数据命令数（不含 PING、ASKING、CLUSTER），用于检查命令是否被重复执行
+     */
+    public long getCommands(int node) {
+        return nodes[node].commands.get();
+    }
+
+    /**
+     * 立即把槽位连同数据迁到另一个节点，之后发往原节点的命令收到 MOVED
+     */
+    public synchronized void moveSlot(int slot, int to) {
+        int from = owners.get(slot);
+        for (Map.Entry<String, byte[]> entry : nodes[from].data.entrySet()) {
+            if (ShardRedisClusterConnectionFactory.getSlot(entry.getKey()) == slot) {
+                nodes[to].data.put(entry.getKey(), entry.getValue());
+                nodes[from].data.remove(entry.getKey());
+            }
+        }
+        migrating.set(slot, -1);
+        owners.set(slot, to);
+    }
+
+    /**
+     * 开始迁移槽位：槽位仍属于原节点，但已迁走的 key 在原节点上返回 ASK
+     */
+    public synchronized void startMigration(int slot, int to) {
+        migrating.set(slot, to);
+    }
+
+    /**
+     * 迁移中的槽位上迁走一个 key
+     */
+    public synchronized void migrateKey(String key, int to) {
+        int from = owners.get(ShardRedisClusterConnectionFactory.getSlot(key));
+        byte[] value = nodes[from].data.remove(key);
+        if (value != null) {
+            nodes[to].data.put(key, value);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Node node : nodes) {
+            try {
+                node.server.close();
+            } catch (IOException e) {
+                // 关闭时忽略
+            }
+        }
+    }
+
+    private class Node {
+        private final int index;
+        private final ServerSocket server;
+        private final Map<String, byte[]> data = new ConcurrentHashMap<>();
+        private final AtomicLong commands = new AtomicLong();
+
+        Node(int index) throws IOException {
+            this.index = index;
+            this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        }
+
+        void start() {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        Thread handler = new Thread(() -> serve(socket), "cluster-stub-" + index);
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "cluster-stub-acceptor-" + index);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                boolean asking = false;
+                List<byte[]> request;
+                while ((request = readRequest(in)) != null) {
+                    String name = str(request.get(0)).toUpperCase();
+                    if ("ASKING".equals(name)) {
+                        asking = true;
+                        out.write("+OK\r\n".getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        out.write(execute(name, request, asking));
+                        asking = false;
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // 客户端断开
+            }
+        }
+
+        private byte[] execute(String name, List<byte[]> request, boolean asking) {
+            switch (name) {
+                case "PING":
+                    return simple("PONG");
+                case "CLUSTER":
+                    return clusterSlots();
+                case "GET":
+                case "SET":
+                case "SETEX":
+                case "EXISTS":
+                case "DEL":
+                case "MGET":
+                case "MSET":
+                    break;
+                default:
+                    return error("ERR unknown command '" + name + "'");
+            }
+            List<String> keys = new ArrayList<>();
+            int step = "MSET".equals(name) ? 2 : 1;
+            int last = "GET".equals(name) || "SET".equals(name) || "SETEX".equals(name) ? 2 : request.size();
+            for (int i = 1; i < last; i += step) {
+                keys.add(str(request.get(i)));
+            }
+            int slot = ShardRedisClusterConnectionFactory.getSlot(keys.get(0));
+            for (String key : keys) {
+                if (ShardRedisClusterConnectionFactory.getSlot(key) != slot) {
+                    return error("CROSSSLOT Keys in request don't hash to the same slot");
+                }
+            }
+            synchronized (RedisClusterStub.this) {
+                int owner = owners.get(slot);
+                int target = migrating.get(slot);
+                if (owner != index && !(asking && target == index)) {
+                    return error("MOVED " + slot + " 127.0.0.1:" + getPort(owner));
+                }
+                if (owner == index && target >= 0 && !data.containsKey(keys.get(0))) {
+                    return error("ASK " + slot + " 127.0.0.1:" + getPort(target));
+                }
+                commands.incrementAndGet();
+                switch (name) {
+                    case "GET":
+                        return bulk(data.get(keys.get(0)));
+                    case "SET":
+                        data.put(keys.get(0), request.get(2));
+                        return simple("OK");
+                    case "SETEX":
+                        data.put(keys.get(0), request.get(3));
+                        return simple("OK");
+                    case "MSET":
+                        for (int i = 1; i < request.size(); i += 2) {
+                            data.put(str(request.get(i)), request.get(i + 1));
+                        }
+                        return simple("OK");
+                    case "MGET":
+                        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                        write(reply, "*" + keys.size() + "\r\n");
+                        for (String key : keys) {
+                            byte[] value = bulk(data.get(key));
+                            reply.write(value, 0, value.length);
+                        }
+                        return reply.toByteArray();
+                    case "DEL":
+                        long deleted = 0;
+                        for (String key : keys) {
+                            deleted += data.remove(key) == null ? 0 : 1;
+                        }
+                        return integer(deleted);
+                    default:
+                        long exists = 0;
+                        for (String key : keys) {
+                            exists += data.containsKey(key) ? 1 : 0;
+                        }
+                        return integer(exists);
+                }
+            }
+        }
+
+        /**
+         * CLUSTER SLOTS：把连续属于同一节点的槽位合并为一段
+         */
+        private byte[] clusterSlots() {
+            List<int[]> ranges = new ArrayList<>();
+            int start = 0;
+            for (int slot = 1; slot <= SLOTS; slot++) {
+                if (slot == SLOTS || owners.get(slot) != owners.get(start)) {
+                    ranges.add(new int[]{start, slot - 1, owners.get(start)});
+                    start = slot;
+                }
+            }
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            write(reply, "*" + ranges.size() + "\r\n");
+            for (int[] range : ranges) {
+                write(reply, "*3\r\n:" + range[0] + "\r\n:" + range[1] + "\r\n");
+                String id = "stub-node-" + range[2];
+                write(reply, "*3\r\n$9\r\n127.0.0.1\r\n:" + getPort(range[2]) + "\r\n$" + id.length() + "\r\n" + id + "\r\n");
+            }
+            return reply.toByteArray();
+        }
+    }
+
+    private static List<byte[]> readRequest(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<byte[]> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(arg, read, length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            readLine(in);
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String str(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] simple(String s) {
+        return ("+" + s + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] error(String s) {
+        return ("-" + s + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] integer(long n) {
+        return (":" + n + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bulk(byte[] value) {
+        if (value == null) {
+            return "$-1\r\n".getBytes(StandardCharsets.UTF_8);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "$" + value.length + "\r\n");
+        out.write(value, 0, value.length);
+        write(out, "\r\n");
+        return out.toByteArray();
+    }
+}
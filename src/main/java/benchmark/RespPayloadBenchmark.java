@@ -0,0 +1,87 @@
+package benchmark;
+
+import com.sun.management.ThreadMXBean;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.util.SafeEncoder;
+import util.MultiplexedShardRedisPoolManager;
+import util.RedisPayload;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * 批量回复读取路径的单线程基准，需要本机 6379 端口有 Redis
+ * <p>
+ * jedis：Jedis.get(byte[])，RedisInputStream 把回复内容拷贝进新的 byte[]
+ * payload：MultiplexedShardRedisPoolManager.getPayload，内容留在池化的直接内存缓冲区里，读完即归还
+ * <p>
+ * 两者都只取回复并读一遍内容，B/op 为当前线程每次调用在堆上分配的字节数
+ */
+public class RespPayloadBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 6379;
+    private static final int[] SIZES = {100, 10 * 1024, 1024 * 1024};
+    private static final ThreadMXBean THREAD = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // 防止读取结果被 JIT 消除
+    private static long sink;
+
+    public static void main(String[] args) {
+        Jedis jedis = new Jedis(HOST, PORT);
+        MultiplexedShardRedisPoolManager multiplexed = new MultiplexedShardRedisPoolManager(
+                Collections.singletonList(new JedisShardInfo(HOST, PORT)));
+        try {
+            System.out.printf("%10s %8s %14s %14s %14s %14s%n", "size", "ops", "jedis ns/op", "payload ns/op",
+                    "jedis B/op", "payload B/op");
+            for (int size : SIZES) {
+                byte[] key = SafeEncoder.encode("benchmark:payload:" + size);
+                byte[] value = new byte[size];
+                new Random(size).nextBytes(value);
+                jedis.set(key, value);
+                int ops = Math.max(200, 20000000 / Math.max(size, 1000));
+
+                Call jedisGet = () -> {
+                    byte[] bytes = jedis.get(key);
+                    sink += bytes[bytes.length - 1];
+                };
+                Call payloadGet = () -> {
+                    try (RedisPayload payload = multiplexed.getPayload(key)) {
+                        sink += payload.buffer().get(payload.length() - 1);
+                    }
+                };
+                // 预热
+                run(jedisGet, ops);
+                run(payloadGet, ops);
+                long[] jedisResult = run(jedisGet, ops);
+                long[] payloadResult = run(payloadGet, ops);
+                System.out.printf("%10d %8d %14.0f %14.0f %14.0f %14.0f%n", size, ops,
+                        (double) jedisResult[0] / ops, (double) payloadResult[0] / ops,
+                        (double) jedisResult[1] / ops, (double) payloadResult[1] / ops);
+                jedis.del(key);
+            }
+        } finally {
+            jedis.close();
+            multiplexed.close();
+        }
+    }
+
+    /**
+     * 返回 {耗时纳秒, 当前线程分配的字节数}
+     */
+    private static long[] run(Call call, int ops) {
+        long threadId = Thread.currentThread().getId();
+        long allocated = THREAD.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            call.run();
+        }
+        long elapsed = System.nanoTime() - begin;
+        return new long[]{elapsed, THREAD.getThreadAllocatedBytes(threadId) - allocated};
+    }
+
+    private interface Call {
+        void run();
+    }
+}
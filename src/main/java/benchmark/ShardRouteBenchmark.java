@@ -0,0 +1,86 @@
+package benchmark;
+
+import com.sun.management.ThreadMXBean;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.util.SafeEncoder;
+import redis.clients.util.Sharded;
+import util.ShardRedisRouter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分片路由查找的单线程微基准，不需要 Redis
+ * <p>
+ * jedis：Sharded.getShardInfo，TreeMap 哈希环，String key 先编码成 byte[]，哈希时再包一层 ByteBuffer
+ * router：ShardRedisRouter.getShardIndex，展开后的数组哈希环，不分配对象
+ */
+public class ShardRouteBenchmark {
+    private static final int[] SHARDS = {3, 16, 64};
+    private static final int KEYS = 4096;
+    private static final int ROUNDS = 2000;
+    private static final ThreadMXBean THREAD = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // 防止查找结果被 JIT 消除
+    private static long sink;
+
+    public static void main(String[] args) {
+        String[] stringKeys = new String[KEYS];
+        byte[][] byteKeys = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            stringKeys[i] = "cache:test:user:" + i * 7919;
+            byteKeys[i] = SafeEncoder.encode(stringKeys[i]);
+        }
+
+        System.out.printf("%6s %8s %14s %14s %12s %12s%n", "shards", "key", "jedis ns/op", "router ns/op",
+                "jedis B/op", "router B/op");
+        for (int shardCount : SHARDS) {
+            List<JedisShardInfo> shards = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new JedisShardInfo("127.0.0.1", 7000 + i));
+            }
+            Sharded<Jedis, JedisShardInfo> sharded = new Sharded<>(shards);
+            ShardRedisRouter router = new ShardRedisRouter(shards);
+
+            Lookup jedisBytes = i -> sink += sharded.getShardInfo(byteKeys[i]).getPort();
+            Lookup routerBytes = i -> sink += router.getShardIndex(byteKeys[i]);
+            Lookup jedisString = i -> sink += sharded.getShardInfo(stringKeys[i]).getPort();
+            Lookup routerString = i -> sink += router.getShardIndex(stringKeys[i]);
+
+            // 预热
+            for (Lookup lookup : new Lookup[]{jedisBytes, routerBytes, jedisString, routerString}) {
+                run(lookup);
+            }
+            print(shardCount, "byte[]", run(jedisBytes), run(routerBytes));
+            print(shardCount, "String", run(jedisString), run(routerString));
+        }
+    }
+
+    private static void print(int shards, String key, long[] jedis, long[] router) {
+        double ops = (double) KEYS * ROUNDS;
+        System.out.printf("%6d %8s %14.1f %14.1f %12.1f %12.1f%n", shards, key,
+                jedis[0] / ops, router[0] / ops, jedis[1] / ops, router[1] / ops);
+    }
+
+    /**
+     * 返回 {耗时纳秒, 当前线程分配的字节数}
+     */
+    private static long[] run(Lookup lookup) {
+        long threadId = Thread.currentThread().getId();
+        long allocated = THREAD.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < KEYS; i++) {
+                lookup.route(i);
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        return new long[]{elapsed, THREAD.getThreadAllocatedBytes(threadId) - allocated};
+    }
+
+    private interface Lookup {
+        void route(int i);
+    }
+}
@@ -0,0 +1,89 @@
+package cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TinyLFU 使用的访问频率估计（Count-Min Sketch）
+ * <p>
+ * 每个 long 存 16 个 4 位计数器，一个 key 在 4 个不同位置各有一个计数器，估计值取最小的那个，最大为 15。
+ * 累计记录次数达到 10 倍容量后所有计数器减半，让过去的热点逐渐冷却。并发更新用 CAS，不加锁。
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    FrequencySketch(long maximum) {
+        int capacity = (int) Math.min(Math.max(maximum, 16), 1 << 24);
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.table = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 估计 hash 对应 key 最近的访问次数
+     */
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = rehash(hash, i);
+            int shift = (int) (h & 15) << 2;
+            frequency = Math.min(frequency, (int) ((table.get(indexOf(h)) >>> shift) & 15));
+        }
+        return frequency;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = rehash(hash, i);
+            added |= incrementAt(indexOf(h), (int) (h & 15) << 2);
+        }
+        if (added && additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int shift) {
+        while (true) {
+            long current = table.get(index);
+            if (((current >>> shift) & 15) == 15) {
+                return false;
+            }
+            if (table.compareAndSet(index, current, current + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 所有计数器减半；与并发的 increment 交错时允许少量误差
+     */
+    private void reset() {
+        additions.set(additions.get() >>> 1);
+        for (int i = 0; i < table.length(); i++) {
+            long current;
+            do {
+                current = table.get(i);
+            } while (!table.compareAndSet(i, current, (current >>> 1) & RESET_MASK));
+        }
+    }
+
+    private static long rehash(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h ^ (h >>> 32);
+    }
+
+    private int indexOf(long h) {
+        return (int) (h >>> 8) & mask;
+    }
+}
@@ -0,0 +1,268 @@
+package cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆内的一级缓存
+ * <p>
+ * 按 Redis key 的字节分成 16 段，每段一个按访问顺序排列的 LinkedHashMap，容量按条数（maxEntries）或
+ * 序列化后的字节数（maxWeight）限制。段满时按 TinyLFU 决定是否接纳新值：新 key 的估计访问频率高于段内最久未访问的
+ * key 才淘汰后者，否则不放入一级缓存，避免一次性的扫描冲掉热点。
+ * <p>
+ * 缓存的是反序列化后的对象，所有读到它的线程共享同一个实例，调用方不要修改。
+ * 每个值最多保留 expireMillis，用来兜底丢失的失效消息。
+ */
+public class HeapNearCache implements NearCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final FrequencySketch sketch;
+    private final long expireMillis;
+    // 每次失效加一；从二级缓存读值前记下版本，版本变化说明读的过程中有失效，不再放入一级缓存
+    private final AtomicLong version = new AtomicLong();
+
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param maxEntries   最多缓存的条数，0 表示不按条数限制
+     * @param maxWeight    最多缓存的序列化字节数，0 表示不按字节数限制
+     * @param expireMillis 每个值在一级缓存中最多保留的时间
+     */
+    public HeapNearCache(long maxEntries, long maxWeight, long expireMillis) {
+        if (maxEntries <= 0 && maxWeight <= 0) {
+            throw new IllegalArgumentException("maxEntries or maxWeight must be positive");
+        }
+        this.expireMillis = expireMillis;
+        long segmentEntries = maxEntries <= 0 ? Long.MAX_VALUE : Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        long segmentWeight = maxWeight <= 0 ? Long.MAX_VALUE : Math.max(1, (maxWeight + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentEntries, segmentWeight);
+        }
+        // 只按字节数限制时，按平均每个值 1KB 估算条数
+        this.sketch = new FrequencySketch(maxEntries > 0 ? maxEntries : Math.max(1, maxWeight / 1024));
+    }
+
+    /**
+     * 命中与否都计入访问频率
+     */
+    @Override
+    public Object get(byte[] key) {
+        Key k = new Key(key);
+        sketch.increment(k.hash);
+        return segmentFor(k).get(k);
+    }
+
+    @Override
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * 按序列化后的字节数计算占用，未被 TinyLFU 接纳时不放入
+     */
+    @Override
+    public void put(byte[] key, Object value, byte[] serialized, long version) {
+        Key k = new Key(key);
+        segmentFor(k).put(k, value, serialized.length, version);
+    }
+
+    @Override
+    public void invalidate(byte[] key) {
+        version.incrementAndGet();
+        Key k = new Key(key);
+        segmentFor(k).remove(k);
+    }
+
+    @Override
+    public void clear() {
+        version.incrementAndGet();
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.map.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long weight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.weight;
+        }
+        return weight;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 未被 TinyLFU 接纳、没有放入一级缓存的次数
+     */
+    @Override
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxEntries;
+        private final long maxWeight;
+        private volatile long weight;
+
+        Segment(long maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+        }
+
+        Object get(Key key) {
+            lock.lock();
+            try {
+                Entry entry = map.get(key);
+                if (entry == null) {
+                    return null;
+                }
+                if (entry.expireAt < System.currentTimeMillis()) {
+                    removeEntry(key, entry);
+                    return null;
+                }
+                return entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(Key key, Object value, int valueWeight, long expectedVersion) {
+            if (valueWeight > maxWeight) {
+                rejections.increment();
+                return;
+            }
+            lock.lock();
+            try {
+                if (version.get() != expectedVersion) {
+                    return;
+                }
+                Entry existing = map.remove(key);
+                if (existing != null) {
+                    weight -= existing.weight;
+                } else if (!makeRoom(key, valueWeight)) {
+                    rejections.increment();
+                    return;
+                }
+                map.put(key, new Entry(value, valueWeight, System.currentTimeMillis() + expireMillis));
+                weight += valueWeight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 依次淘汰最久未访问的值直到放得下新值；遇到访问频率不低于新 key 的值时放弃，不接纳新值
+         */
+        private boolean makeRoom(Key candidate, int candidateWeight) {
+            long now = System.currentTimeMillis();
+            int candidateFrequency = -1;
+            Iterator<Map.Entry<Key, Entry>> eldest = map.entrySet().iterator();
+            while (map.size() + 1 > maxEntries || weight + candidateWeight > maxWeight) {
+                if (!eldest.hasNext()) {
+                    return false;
+                }
+                Map.Entry<Key, Entry> victim = eldest.next();
+                if (victim.getValue().expireAt >= now) {
+                    if (candidateFrequency < 0) {
+                        candidateFrequency = sketch.frequency(candidate.hash);
+                    }
+                    if (candidateFrequency <= sketch.frequency(victim.getKey().hash)) {
+                        return false;
+                    }
+                    evictions.increment();
+                }
+                weight -= victim.getValue().weight;
+                eldest.remove();
+            }
+            return true;
+        }
+
+        void remove(Key key) {
+            lock.lock();
+            try {
+                Entry entry = map.remove(key);
+                if (entry != null) {
+                    weight -= entry.weight;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void removeEntry(Key key, Entry entry) {
+            map.remove(key);
+            weight -= entry.weight;
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                map.clear();
+                weight = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final int weight;
+        private final long expireAt;
+
+        Entry(Object value, int weight, long expireAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 按内容比较的 Redis key
+     */
+    private static class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package cache;
+
+/**
+ * ShardRedisCache 前面的进程内一级缓存，key 为 Redis key 的字节
+ * <p>
+ * HeapNearCache 在堆内保存反序列化后的对象；OffHeapNearCache 在堆外保存序列化后的字节，读时再反序列化。
+ */
+public interface NearCache {
+    /**
+     * 返回缓存的值，没有或已过期返回 null
+     */
+    Object get(byte[] key);
+
+    /**
+     * 从二级缓存读值之前取当前版本，放入时传回 put
+     */
+    long version();
+
+    /**
+     * 放入从二级缓存读到的值及其序列化后的字节；version 之后发生过失效时不放入
+     */
+    void put(byte[] key, Object value, byte[] serialized, long version);
+
+    /**
+     * 删除一个 key，本节点写入或收到其他节点的失效消息时调用
+     */
+    void invalidate(byte[] key);
+
+    void clear();
+
+    /**
+     * 当前缓存的条数
+     */
+    long size();
+
+    /**
+     * 当前缓存的序列化字节数
+     */
+    long weight();
+
+    /**
+     * 为放入新值而淘汰的条数
+     */
+    long getEvictions();
+
+    /**
+     * 没有放入一级缓存的次数
+     */
+    long getRejections();
+}
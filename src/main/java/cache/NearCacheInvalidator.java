@@ -0,0 +1,107 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPubSub;
+import util.ShardRedisPoolManager;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一级缓存的跨节点失效
+ * <p>
+ * 某个节点 put / evict / clear 时向 channel 发布一条消息：发布者 id、缓存名、逗号分隔的 Base64 编码的 Redis key（clear 时为空），
+ * 所有节点的订阅线程收到后删除自己一级缓存中的这些 key，忽略自己发出的消息。
+ * pub/sub 不保证送达，订阅断开期间的消息会丢失，因此每次（重新）订阅成功时清空全部一级缓存。
+ */
+class NearCacheInvalidator extends JedisPubSub {
+    private static final Logger log = LoggerFactory.getLogger(NearCacheInvalidator.class);
+
+    private final ShardRedisPoolManager shardRedisPoolManager;
+    private final String channel;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Map<String, ShardRedisCache> caches = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    NearCacheInvalidator(ShardRedisPoolManager shardRedisPoolManager, String channel) {
+        this.shardRedisPoolManager = shardRedisPoolManager;
+        this.channel = channel;
+        Thread subscriber = new Thread(this::subscribeLoop, "near-cache-invalidator");
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    private void subscribeLoop() {
+        while (running) {
+            if (!shardRedisPoolManager.subscribe(this, channel) && running) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void register(String cacheName, ShardRedisCache cache) {
+        caches.put(cacheName, cache);
+    }
+
+    /**
+     * 通知其他节点删除 keys，keys 为 null 时清空整个缓存
+     */
+    void publish(String cacheName, List<byte[]> keys) {
+        StringBuilder message = new StringBuilder(instanceId).append('\n').append(cacheName).append('\n');
+        if (keys != null) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) {
+                    message.append(',');
+                }
+                message.append(Base64.getEncoder().encodeToString(keys.get(i)));
+            }
+        }
+        shardRedisPoolManager.publish(channel, message.toString());
+    }
+
+    @Override
+    public void onSubscribe(String channel, int subscribedChannels) {
+        for (ShardRedisCache cache : caches.values()) {
+            cache.onRemoteClear();
+        }
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+        try {
+            String[] parts = message.split("\n", 3);
+            if (parts.length < 3 || instanceId.equals(parts[0])) {
+                return;
+            }
+            ShardRedisCache cache = caches.get(parts[1]);
+            if (cache == null) {
+                return;
+            }
+            if (parts[2].isEmpty()) {
+                // clear 同时切换了命名空间版本
+                cache.onRemoteClear();
+            } else if (cache.getNearCache() != null) {
+                for (String key : parts[2].split(",")) {
+                    cache.getNearCache().invalidate(Base64.getDecoder().decode(key));
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        if (isSubscribed()) {
+            unsubscribe();
+        }
+    }
+}
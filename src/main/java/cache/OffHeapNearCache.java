@@ -0,0 +1,477 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外的一级缓存：值以序列化后的字节保存在 direct buffer 或内存映射文件中，堆上只有 key 到位置的索引，读时再反序列化
+ * <p>
+ * 存储按 1MB 一页划分，用类似 memcached 的 slab 分配：每页归属一个块大小级别（64B、128B ... 1MB），
+ * 值放入不小于它的最小块，超过 1MB 的值不缓存。某个级别没有空闲块时先从未使用的页中分一页，页用完后在本级别内
+ * 按 CLOCK 淘汰：读命中时置访问位，指针扫过时清除访问位，再次扫到仍未被访问的块被淘汰，已过期的块直接淘汰。
+ * 某个级别还没有任何页时，从页数最多的级别回收最后一页。
+ * <p>
+ * 所有操作在一把锁内完成，锁内只有索引查找和一次内存拷贝，反序列化在锁外。
+ */
+public class OffHeapNearCache implements NearCache {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapNearCache.class);
+
+    // 页大小，也是单个值的上限
+    static final int PAGE_SIZE = 1 << 20;
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int CLASSES = 20 - MIN_CHUNK_SHIFT + 1;
+
+    private final RedisSerializer<?> valueSerializer;
+    private final long expireMillis;
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer[] pages;
+    private int allocatedPages;
+    private final SlabClass[] classes = new SlabClass[CLASSES];
+    private final Map<Key, Slot> index = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong version = new AtomicLong();
+
+    // 以下统计只在锁内修改
+    private volatile long usedBytes;
+    private volatile long chunkBytes;
+    private volatile long evictions;
+    private volatile long rejections;
+    private volatile long pageReassignments;
+
+    /**
+     * 使用 direct buffer，页在第一次使用时分配，受 -XX:MaxDirectMemorySize 限制
+     *
+     * @param capacity 最多使用的堆外内存字节数，按 1MB 向上取整
+     */
+    public OffHeapNearCache(long capacity, long expireMillis, RedisSerializer<?> valueSerializer) {
+        this(capacity, expireMillis, valueSerializer, null);
+    }
+
+    /**
+     * @param directory 不为 null 时在这个目录下为本实例新建一个临时文件并把页映射到文件，由操作系统决定哪些页留在内存中。
+     *                  文件只属于这个实例，多个实例或多个进程不会共用，close 时删除
+     */
+    public OffHeapNearCache(long capacity, long expireMillis, RedisSerializer<?> valueSerializer, File directory) {
+        long pageCount = Math.max(1, (capacity + PAGE_SIZE - 1) / PAGE_SIZE);
+        if (pageCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity too large: " + capacity);
+        }
+        this.pages = new ByteBuffer[(int) pageCount];
+        this.expireMillis = expireMillis;
+        this.valueSerializer = valueSerializer;
+        for (int i = 0; i < CLASSES; i++) {
+            classes[i] = new SlabClass(1 << (MIN_CHUNK_SHIFT + i));
+        }
+        if (directory == null) {
+            this.file = null;
+            this.channel = null;
+            return;
+        }
+        try {
+            this.file = File.createTempFile("near-cache-", ".near", directory);
+            this.file.deleteOnExit();
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not create mapped file in " + directory, e);
+        }
+    }
+
+    @Override
+    public Object get(byte[] key) {
+        Key k = new Key(key);
+        byte[] bytes;
+        lock.lock();
+        try {
+            Slot slot = index.get(k);
+            if (slot == null) {
+                return null;
+            }
+            if (slot.expireAt < System.currentTimeMillis()) {
+                index.remove(k);
+                slot.slabClass.free(slot);
+                return null;
+            }
+            slot.slabClass.referenced[slot.chunk] = true;
+            bytes = new byte[slot.length];
+            ByteBuffer page = slot.slabClass.page(slot.chunk);
+            page.position(slot.slabClass.offset(slot.chunk));
+            page.get(bytes);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return valueSerializer.deserialize(bytes);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * 只保存 serialized，value 不使用
+     */
+    @Override
+    public void put(byte[] key, Object value, byte[] serialized, long expectedVersion) {
+        Key k = new Key(key);
+        lock.lock();
+        try {
+            if (serialized.length > PAGE_SIZE) {
+                rejections++;
+                return;
+            }
+            SlabClass slabClass = classes[classOf(serialized.length)];
+            if (version.get() != expectedVersion) {
+                return;
+            }
+            Slot old = index.remove(k);
+            if (old != null) {
+                old.slabClass.free(old);
+            }
+            int chunk = slabClass.allocate();
+            if (chunk < 0) {
+                rejections++;
+                return;
+            }
+            ByteBuffer page = slabClass.page(chunk);
+            page.position(slabClass.offset(chunk));
+            page.put(serialized);
+            Slot slot = new Slot(slabClass, chunk, serialized.length, System.currentTimeMillis() + expireMillis);
+            slabClass.owners[chunk] = k;
+            slabClass.referenced[chunk] = true;
+            index.put(k, slot);
+            usedBytes += slot.length;
+            chunkBytes += slabClass.chunkSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(byte[] key) {
+        version.incrementAndGet();
+        Key k = new Key(key);
+        lock.lock();
+        try {
+            Slot slot = index.remove(k);
+            if (slot != null) {
+                slot.slabClass.free(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 清空索引，已分配的页保留
+     */
+    @Override
+    public void clear() {
+        version.incrementAndGet();
+        lock.lock();
+        try {
+            for (Slot slot : index.values()) {
+                slot.slabClass.free(slot);
+            }
+            index.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 释放所有页并删除映射的文件；direct buffer 的内存在 buffer 对象被回收后归还
+     */
+    public void close() {
+        clear();
+        lock.lock();
+        try {
+            Arrays.fill(pages, null);
+            for (int i = 0; i < CLASSES; i++) {
+                classes[i] = new SlabClass(classes[i].chunkSize);
+            }
+            allocatedPages = pages.length;
+            if (channel != null) {
+                channel.close();
+                if (!file.delete()) {
+                    log.warn("could not delete " + file);
+                }
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int classOf(int length) {
+        int shift = length <= 1 << MIN_CHUNK_SHIFT ? MIN_CHUNK_SHIFT : 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift - MIN_CHUNK_SHIFT;
+    }
+
+    private ByteBuffer newPage(int pageId) throws IOException {
+        if (channel == null) {
+            return ByteBuffer.allocateDirect(PAGE_SIZE);
+        }
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) pageId * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    /**
+     * 从页数最多的其他级别回收最后一页，返回页号，没有可回收的页时返回 -1
+     */
+    private int reclaimPage(SlabClass requester) {
+        SlabClass victim = null;
+        for (SlabClass slabClass : classes) {
+            if (slabClass != requester && (victim == null || slabClass.pageCount > victim.pageCount)) {
+                victim = slabClass;
+            }
+        }
+        if (victim == null || victim.pageCount == 0) {
+            return -1;
+        }
+        pageReassignments++;
+        return victim.releaseLastPage();
+    }
+
+    @Override
+    public long size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 缓存的值的字节数之和
+     */
+    @Override
+    public long weight() {
+        return usedBytes;
+    }
+
+    /**
+     * 缓存的值占用的块大小之和，与 weight 的差是块内浪费的空间
+     */
+    public long getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * 已分配的堆外内存（或已映射的文件区域）字节数
+     */
+    public long getAllocatedBytes() {
+        return (long) allocatedPages * PAGE_SIZE;
+    }
+
+    public long getCapacity() {
+        return (long) pages.length * PAGE_SIZE;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * 值超过 1MB 或分配不到块、没有放入的次数
+     */
+    @Override
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * 页从一个块大小级别回收给另一个级别的次数
+     */
+    public long getPageReassignments() {
+        return pageReassignments;
+    }
+
+    /**
+     * 一个块大小级别：拥有的页、每个块的所有者和访问位、空闲块栈和 CLOCK 指针。块号 = 页序号 * 每页块数 + 页内序号
+     */
+    private class SlabClass {
+        private final int chunkSize;
+        private final int chunksPerPage;
+        private int[] pageIds = new int[0];
+        private int pageCount;
+        private Key[] owners = new Key[0];
+        private boolean[] referenced = new boolean[0];
+        private int[] freeChunks = new int[0];
+        private int freeCount;
+        private int hand;
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = PAGE_SIZE / chunkSize;
+        }
+
+        ByteBuffer page(int chunk) {
+            return pages[pageIds[chunk / chunksPerPage]];
+        }
+
+        int offset(int chunk) {
+            return (chunk % chunksPerPage) * chunkSize;
+        }
+
+        /**
+         * 分配一个块：空闲块、新页、回收其他级别的页，最后在本级别内按 CLOCK 淘汰；都不行时返回 -1
+         */
+        int allocate() {
+            if (freeCount > 0) {
+                return freeChunks[--freeCount];
+            }
+            int pageId = -1;
+            if (allocatedPages < pages.length) {
+                pageId = allocatedPages;
+                try {
+                    pages[pageId] = newPage(pageId);
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e);
+                    return -1;
+                }
+                allocatedPages++;
+            } else if (pageCount == 0) {
+                pageId = reclaimPage(this);
+            }
+            if (pageId >= 0) {
+                addPage(pageId);
+                return freeChunks[--freeCount];
+            }
+            return evict();
+        }
+
+        private int evict() {
+            int total = pageCount * chunksPerPage;
+            long now = System.currentTimeMillis();
+            for (int scanned = 0; scanned < 2 * total; scanned++) {
+                int chunk = hand;
+                hand = (hand + 1) % total;
+                Key owner = owners[chunk];
+                if (owner == null) {
+                    continue;
+                }
+                Slot slot = index.get(owner);
+                if (referenced[chunk] && slot.expireAt >= now) {
+                    referenced[chunk] = false;
+                    continue;
+                }
+                index.remove(owner);
+                release(slot);
+                evictions++;
+                return chunk;
+            }
+            return -1;
+        }
+
+        private void addPage(int pageId) {
+            if (pageCount == pageIds.length) {
+                pageIds = Arrays.copyOf(pageIds, Math.max(4, pageCount * 2));
+            }
+            pageIds[pageCount++] = pageId;
+            int total = pageCount * chunksPerPage;
+            if (owners.length < total) {
+                int length = pageIds.length * chunksPerPage;
+                owners = Arrays.copyOf(owners, length);
+                referenced = Arrays.copyOf(referenced, length);
+                freeChunks = Arrays.copyOf(freeChunks, length);
+            }
+            // 倒序入栈，先分配页内靠前的块
+            for (int chunk = total - 1; chunk >= total - chunksPerPage; chunk--) {
+                freeChunks[freeCount++] = chunk;
+            }
+        }
+
+        /**
+         * 淘汰最后一页上的所有值并交出这一页
+         */
+        int releaseLastPage() {
+            int base = (pageCount - 1) * chunksPerPage;
+            for (int chunk = base; chunk < base + chunksPerPage; chunk++) {
+                if (owners[chunk] != null) {
+                    release(index.remove(owners[chunk]));
+                    evictions++;
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (freeChunks[i] < base) {
+                    freeChunks[kept++] = freeChunks[i];
+                }
+            }
+            freeCount = kept;
+            if (hand >= base) {
+                hand = 0;
+            }
+            return pageIds[--pageCount];
+        }
+
+        /**
+         * 清除块的所有者并更新统计，块本身由调用方决定复用还是放回空闲栈
+         */
+        private void release(Slot slot) {
+            owners[slot.chunk] = null;
+            referenced[slot.chunk] = false;
+            usedBytes -= slot.length;
+            chunkBytes -= chunkSize;
+        }
+
+        void free(Slot slot) {
+            release(slot);
+            freeChunks[freeCount++] = slot.chunk;
+        }
+    }
+
+    private static class Slot {
+        private final SlabClass slabClass;
+        private final int chunk;
+        private final int length;
+        private final long expireAt;
+
+        Slot(SlabClass slabClass, int chunk, int length, long expireAt) {
+            this.slabClass = slabClass;
+            this.chunk = chunk;
+            this.length = length;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -7,24 +7,78 @@ import org.springframework.cache.Cache;
 import org.springframework.cache.support.SimpleValueWrapper;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.SerializationException;
+import redis.clients.util.SafeEncoder;
+import util.ShardRedisBatch;
 import util.ShardRedisPoolManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ShardRedisCache implements Cache {
     private static final Logger log = LoggerFactory.getLogger(ShardRedisCache.class);
+    private static final byte[] LEASE_SUFFIX = SafeEncoder.encode(":load-lease");
+    // 等待其他节点加载时轮询 Redis 的间隔
+    private static final long LEASE_POLL_MILLIS = 50;
+    // 清理旧版本数据时每批 SCAN / DEL 的 key 数和批间暂停
+    private static final int SWEEP_BATCH_SIZE = 500;
+    private static final long SWEEP_PAUSE_MILLIS = 10;
+    // 清理在 clear 之后 generationCheckMillis 再加这段时间才开始，等其他节点切换版本、已发出的旧前缀写命令执行完
+    private static final long SWEEP_DELAY_MARGIN_MILLIS = 5000;
+    // 所有缓存共用一个清理线程，多次 clear 的清理依次执行
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-redis-cache-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private ShardRedisPoolManager shardRedisPoolManager;
     private String name;
     private RedisSerializer keySerializer;
     private RedisSerializer valueSerializer;
     private int defaultExpiration = 0;
+    // 一级缓存，为 null 时每次都访问 Redis
+    private NearCache nearCache;
+    private NearCacheInvalidator invalidator;
+    // get(key, loader) 未命中时跨节点加载锁的有效期（毫秒），0 表示只在本节点内合并加载
+    private long loadLeaseMillis = 0;
+    // 本节点正在加载的 key
+    private final Map<Object, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+    // 命名空间版本：保存在 Redis 的 <name>:generation 中，缓存的 key 为 <name>@<版本>:<key>，clear 时加一
+    private final String generationKey;
+    private volatile long generation;
+    private volatile byte[] prefix;
+    private final AtomicLong generationCheckedAt = new AtomicLong();
+    // 与 Redis 中的版本对比的间隔（毫秒），没有一级缓存失效通知时其他节点 clear 后最多这么久才能看到
+    private long generationCheckMillis = 1000;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder l1Hits = new LongAdder();
+    private final LongAdder l2Hits = new LongAdder();
 
     public ShardRedisCache(String name, ShardRedisPoolManager shardRedisPoolManager, RedisSerializer keySerializer, RedisSerializer valueSerializer) {
         this.name = name;
         this.shardRedisPoolManager = shardRedisPoolManager;
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
+        this.generationKey = name + ":generation";
+        this.prefix = prefixOf(0);
     }
 
     public int getDefaultExpiration() {
@@ -35,6 +89,44 @@ public class ShardRedisCache implements Cache {
         this.defaultExpiration = defaultExpiration;
     }
 
+    public long getLoadLeaseMillis() {
+        return loadLeaseMillis;
+    }
+
+    public void setLoadLeaseMillis(long loadLeaseMillis) {
+        this.loadLeaseMillis = loadLeaseMillis;
+    }
+
+    public long getGenerationCheckMillis() {
+        return generationCheckMillis;
+    }
+
+    public void setGenerationCheckMillis(long generationCheckMillis) {
+        this.generationCheckMillis = generationCheckMillis;
+    }
+
+    /**
+     * 本节点当前使用的命名空间版本
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * 开启一级缓存，invalidator 为 null 时不通知其他节点
+     */
+    void setNearCache(NearCache nearCache, NearCacheInvalidator invalidator) {
+        this.nearCache = nearCache;
+        this.invalidator = invalidator;
+        if (invalidator != null) {
+            invalidator.register(name, this);
+        }
+    }
+
     @Override
     public String getName() {
         return name;
@@ -50,42 +142,290 @@ public class ShardRedisCache implements Cache {
         log.info("======get from cache '{}' by key : {} ======",name,key);
         try {
             byte[] computeKey = computeKey(key);//keySerializer.serialize(key);
-            byte[] bs = shardRedisPoolManager.get(computeKey);
-            Object value = valueSerializer.deserialize(bs);
-            return (bs == null ? null : new SimpleValueWrapper(value));
+            requests.increment();
+            return lookup(computeKey, true);
         } catch (SerializationException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * 先查一级缓存再查 Redis，Redis 命中时放入一级缓存；record 为 false 时不计入命中统计
+     */
+    private ValueWrapper lookup(byte[] computeKey, boolean record) {
+        NearCache near = nearCache;
+        long version = 0;
+        if (near != null) {
+            Object cached = near.get(computeKey);
+            if (cached != null) {
+                if (record) {
+                    l1Hits.increment();
+                }
+                return new SimpleValueWrapper(cached);
+            }
+            version = near.version();
+        }
+        byte[] bs = shardRedisPoolManager.get(computeKey);
+        if (bs == null) {
+            return null;
+        }
+        if (record) {
+            l2Hits.increment();
+        }
+        Object value = valueSerializer.deserialize(bs);
+        if (near != null && value != null) {
+            near.put(computeKey, value, bs, version);
+        }
+        return new SimpleValueWrapper(value);
+    }
+
     @Override
     public <T> T get(Object key, Class<T> type) {
         ValueWrapper wrapper = this.get(key);
         return wrapper == null?null:(T)wrapper.get();
     }
 
+    /**
+     * 未命中时调用 loader 加载并写入缓存，同一个 key 在本节点同一时刻只有一个线程加载，其余线程等待它的结果
+     * <p>
+     * loadLeaseMillis 大于 0 时加载前先用 SET NX PX 抢一个跨节点的锁，抢不到的节点轮询 Redis 等待结果；
+     * 持有者失败后锁被删除，等待者会重新抢锁；等满一个有效期仍没有结果时自己加载。
+     * loader 抛出的异常包装成 ValueRetrievalException 抛给所有等待者。
+     */
     @Override
+    @SuppressWarnings("unchecked")
     public <T> T get(Object key, Callable<T> callable) {
         ValueWrapper wrapper = this.get(key);
-        return wrapper == null?null:(T)wrapper.get();
+        if (wrapper != null) {
+            return (T) wrapper.get();
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return (T) running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new ValueRetrievalException(key, callable, e.getCause());
+            }
+        }
+        try {
+            T value = load(key, callable);
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T load(Object key, Callable<T> callable) {
+        byte[] k = computeKey(key);
+        // 等待本节点锁的过程中其他节点可能已经写入
+        ValueWrapper wrapper = lookup(k, false);
+        if (wrapper != null) {
+            return (T) wrapper.get();
+        }
+        if (loadLeaseMillis <= 0) {
+            return loadAndPut(key, callable);
+        }
+        byte[] leaseKey = ArrayUtils.addAll(k, LEASE_SUFFIX);
+        byte[] token = SafeEncoder.encode(UUID.randomUUID().toString());
+        long deadline = System.currentTimeMillis() + loadLeaseMillis;
+        while (!"OK".equals(shardRedisPoolManager.set(leaseKey, token, "NX", "PX", loadLeaseMillis))) {
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("cache '{}' waited {}ms for another node to load key {}, loading locally", name, loadLeaseMillis, key);
+                return loadAndPut(key, callable);
+            }
+            try {
+                Thread.sleep(LEASE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ValueRetrievalException(key, callable, e);
+            }
+            wrapper = lookup(k, false);
+            if (wrapper != null) {
+                return (T) wrapper.get();
+            }
+        }
+        try {
+            return loadAndPut(key, callable);
+        } finally {
+            shardRedisPoolManager.deleteIfEquals(leaseKey, token);
+        }
+    }
+
+    private <T> T loadAndPut(Object key, Callable<T> callable) {
+        T value;
+        try {
+            value = callable.call();
+        } catch (Exception e) {
+            throw new ValueRetrievalException(key, callable, e);
+        }
+        put(key, value);
+        return value;
     }
 
     @Override
     public void put(Object key, Object value) {
-        putIfAbsent(key,value);
+        log.info("======put to cache '{}' with key : {} ======",name,key);
+        try {
+            byte[] k = computeKey(key);//keySerializer.serialize(key);
+            byte[] v = valueSerializer.serialize(value);
+            if (defaultExpiration > 0) {
+                shardRedisPoolManager.setex(k, defaultExpiration, v);
+            } else {
+                shardRedisPoolManager.set(k, v);
+            }
+            invalidateNear(k);
+        } catch (SerializationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 批量读取，先查一级缓存，其余 key 按分片分组、每个分片一条 MGET 并行读取；返回命中的 key 和值，未命中的不在结果中
+     */
+    public <K, V> Map<K, V> getAll(Collection<? extends K> keys) {
+        return getAll(keys, null);
+    }
+
+    /**
+     * 批量读取，未命中的 key 交给 loader 一次性加载（例如一条 IN 查询），加载到的值批量写入缓存后一起返回；
+     * loader 没有返回的 key 不缓存、不在结果中，loader 抛出的异常包装成 ValueRetrievalException。
+     * 与 get(key, loader) 不同，这里不对单个 key 做加载合并
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Map<K, V> getAll(Collection<? extends K> keys, BatchLoader<K, V> loader) {
+        log.info("======getAll from cache '{}' by {} keys ======",name,keys.size());
+        Map<K, V> result = new LinkedHashMap<>(keys.size() * 2);
+        List<K> misses = new ArrayList<>();
+        List<byte[]> missKeys = new ArrayList<>();
+        try {
+            NearCache near = nearCache;
+            long version = near == null ? 0 : near.version();
+            for (K key : new LinkedHashSet<K>(keys)) {
+                requests.increment();
+                byte[] k = computeKey(key);
+                Object cached = near == null ? null : near.get(k);
+                if (cached != null) {
+                    l1Hits.increment();
+                    result.put(key, (V) cached);
+                } else {
+                    misses.add(key);
+                    missKeys.add(k);
+                }
+            }
+            if (!missKeys.isEmpty()) {
+                List<byte[]> values = shardRedisPoolManager.mget(missKeys.toArray(new byte[missKeys.size()][]));
+                List<K> stillMissing = new ArrayList<>();
+                for (int i = 0; i < misses.size(); i++) {
+                    byte[] bs = values.get(i);
+                    if (bs == null) {
+                        stillMissing.add(misses.get(i));
+                        continue;
+                    }
+                    l2Hits.increment();
+                    Object value = valueSerializer.deserialize(bs);
+                    if (near != null && value != null) {
+                        near.put(missKeys.get(i), value, bs, version);
+                    }
+                    result.put(misses.get(i), (V) value);
+                }
+                misses = stillMissing;
+            }
+        } catch (SerializationException e) {
+            e.printStackTrace();
+        }
+        if (loader == null || misses.isEmpty()) {
+            return result;
+        }
+        Set<K> missing = new LinkedHashSet<>(misses);
+        Map<K, V> loaded;
+        try {
+            loaded = loader.load(missing);
+        } catch (Exception e) {
+            throw new ValueRetrievalException(missing, null, e);
+        }
+        if (loaded != null && !loaded.isEmpty()) {
+            putAll(loaded);
+            result.putAll(loaded);
+        }
+        return result;
+    }
+
+    /**
+     * 批量写入，按分片分组后每个分片一个 pipeline 并行执行 SET / SETEX
+     */
+    public void putAll(Map<?, ?> entries) {
+        log.info("======putAll to cache '{}' with {} keys ======",name,entries.size());
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        try {
+            ShardRedisBatch batch = shardRedisPoolManager.newBatch();
+            for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                byte[] k = computeKey(entry.getKey());
+                byte[] v = valueSerializer.serialize(entry.getValue());
+                if (defaultExpiration > 0) {
+                    batch.setex(k, defaultExpiration, v);
+                } else {
+                    batch.set(k, v);
+                }
+                keys.add(k);
+            }
+            batch.execute();
+        } catch (SerializationException e) {
+            e.printStackTrace();
+        }
+        invalidateNear(keys);
+    }
+
+    /**
+     * 批量删除，每个分片一条 DEL 并行执行
+     */
+    public void evictAll(Collection<?> keys) {
+        log.info("======evictAll from cache '{}' by {} keys ======",name,keys.size());
+        List<byte[]> computed = new ArrayList<>(keys.size());
+        try {
+            for (Object key : keys) {
+                computed.add(computeKey(key));
+            }
+            if (!computed.isEmpty()) {
+                shardRedisPoolManager.del(computed.toArray(new byte[computed.size()][]));
+            }
+        } catch (SerializationException e) {
+            e.printStackTrace();
+        }
+        invalidateNear(computed);
     }
 
+    /**
+     * getAll 的批量加载回调，参数为未命中的 key，返回加载到的 key 和值
+     */
+    public interface BatchLoader<K, V> {
+        Map<K, V> load(Set<K> keys) throws Exception;
+    }
+
+    /**
+     * key 不存在时才写入，写入和设置过期时间由同一个 Lua 脚本完成；已存在时返回已有的值
+     */
     @Override
     public ValueWrapper putIfAbsent(Object key, Object value) {
-        log.info("======put to cache '{}' with key : {} ======",name,key);
+        log.info("======putIfAbsent to cache '{}' with key : {} ======",name,key);
         try {
             byte[] k = computeKey(key);//keySerializer.serialize(key);
             byte[] v = valueSerializer.serialize(value);
 
-            String s = shardRedisPoolManager.set(k,v);
-            if (s!=null) this.expires(k);
-            return (s == null ? null : new SimpleValueWrapper(s));
+            byte[] existing = shardRedisPoolManager.setIfAbsent(k, v, defaultExpiration);
+            if (existing == null) {
+                invalidateNear(k);
+            }
+            return (existing == null ? null : new SimpleValueWrapper(valueSerializer.deserialize(existing)));
         } catch (SerializationException e) {
             e.printStackTrace();
             return null;
@@ -98,25 +438,178 @@ public class ShardRedisCache implements Cache {
         try {
             byte[] k = computeKey(key);//keySerializer.serialize(key);
             shardRedisPoolManager.del(k);
+            invalidateNear(k);
         } catch (SerializationException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 把命名空间版本加一，之后的读写都使用新前缀，旧版本的 key 不再可见；不扫描、不删除任何 key
+     * <p>
+     * 设置了过期时间的缓存，旧版本的 key 自然过期；不过期的缓存由后台线程限速 SCAN + DEL 旧版本的 key。
+     * 其他节点收到一级缓存失效通知或到下一次版本检查时切换到新版本，在此之前仍会写入旧版本的 key，
+     * 所以清理推迟到 generationCheckMillis 之后再开始（各节点的 generationCheckMillis 应一致）。
+     */
     @Override
     public void clear() {
+        log.info("======clear cache '{}' ======",name);
+        Long next = shardRedisPoolManager.incr(generationKey);
+        if (next == null) {
+            return;
+        }
+        if (next <= generation) {
+            // 版本 key 曾经丢失并被重新从 0 开始计数，跳到本地版本之后
+            next = generation + 1;
+            shardRedisPoolManager.set(generationKey, String.valueOf(next));
+        }
+        updateGeneration(next);
+        if (nearCache != null) {
+            nearCache.clear();
+            if (invalidator != null) {
+                invalidator.publish(name, null);
+            }
+        }
+        if (defaultExpiration <= 0) {
+            sweep(next - 1);
+        }
+    }
 
+    /**
+     * 收到其他节点的 clear 通知或重新订阅时调用：立即检查版本并清空一级缓存
+     */
+    void onRemoteClear() {
+        refreshGeneration();
+        if (nearCache != null) {
+            nearCache.clear();
+        }
     }
 
-    private byte[] computeKey(Object key){
-        byte[] bytes = keySerializer.serialize(key);
-        return ArrayUtils.addAll(name.getBytes(),bytes);
+    /**
+     * 距上次检查超过 generationCheckMillis 时由一个线程读取 Redis 中的版本
+     */
+    private byte[] prefix() {
+        long now = System.currentTimeMillis();
+        long checked = generationCheckedAt.get();
+        if (now - checked >= generationCheckMillis && generationCheckedAt.compareAndSet(checked, now)) {
+            refreshGeneration();
+        }
+        return prefix;
+    }
+
+    /**
+     * 版本只前进不后退；Redis 中的版本 key 不存在（例如被 FLUSHALL）时写回本地版本
+     */
+    private void refreshGeneration() {
+        String value = shardRedisPoolManager.get(generationKey);
+        if (value == null) {
+            shardRedisPoolManager.setnx(generationKey, String.valueOf(generation));
+            return;
+        }
+        try {
+            updateGeneration(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private synchronized void updateGeneration(long next) {
+        if (next <= generation) {
+            return;
+        }
+        generation = next;
+        prefix = prefixOf(next);
+        // 一级缓存中都是旧前缀的 key，不会再被访问
+        if (nearCache != null) {
+            nearCache.clear();
+        }
+    }
+
+    private byte[] prefixOf(long generation) {
+        return SafeEncoder.encode(name + "@" + generation + ":");
+    }
+
+    /**
+     * 等其他节点都切换到新版本后，后台删除某个旧版本的所有 key
+     */
+    private void sweep(long old) {
+        byte[] oldPrefix = prefixOf(old);
+        byte[] pattern = new byte[oldPrefix.length * 2 + 1];
+        int length = 0;
+        for (byte b : oldPrefix) {
+            // 转义 glob 特殊字符
+            if (b == '*' || b == '?' || b == '[' || b == ']' || b == '\\') {
+                pattern[length++] = '\\';
+            }
+            pattern[length++] = b;
+        }
+        pattern[length++] = '*';
+        byte[] match = Arrays.copyOf(pattern, length);
+        SWEEPER.schedule(() -> {
+            long deleted = shardRedisPoolManager.scanDelete(match, SWEEP_BATCH_SIZE, SWEEP_PAUSE_MILLIS);
+            log.info("cache '{}' swept {} keys of generation {}", name, deleted, old);
+        }, generationCheckMillis + SWEEP_DELAY_MARGIN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 删除本节点一级缓存中的 key 并通知其他节点
+     */
+    private void invalidateNear(byte[] key) {
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+            if (invalidator != null) {
+                invalidator.publish(name, Collections.singletonList(key));
+            }
+        }
+    }
+
+    /**
+     * 批量删除本节点一级缓存中的 key，用一条消息通知其他节点
+     */
+    private void invalidateNear(List<byte[]> keys) {
+        if (nearCache != null && !keys.isEmpty()) {
+            for (byte[] key : keys) {
+                nearCache.invalidate(key);
+            }
+            if (invalidator != null) {
+                invalidator.publish(name, keys);
+            }
+        }
     }
 
     /**
-     * 设置 Key 失效时间
+     * get 的总次数
      */
-    private void expires(byte[] key) {
-        shardRedisPoolManager.expire(key,defaultExpiration);
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getL1HitCount() {
+        return l1Hits.sum();
+    }
+
+    public long getL2HitCount() {
+        return l2Hits.sum();
+    }
+
+    /**
+     * 一级缓存命中率：一级缓存命中次数 / get 总次数
+     */
+    public double getL1HitRatio() {
+        long total = requests.sum();
+        return total == 0 ? 0 : (double) l1Hits.sum() / total;
+    }
+
+    /**
+     * Redis 命中率：Redis 命中次数 / 一级缓存未命中、访问 Redis 的次数
+     */
+    public double getL2HitRatio() {
+        long total = requests.sum() - l1Hits.sum();
+        return total <= 0 ? 0 : (double) l2Hits.sum() / total;
+    }
+
+    private byte[] computeKey(Object key){
+        byte[] bytes = keySerializer.serialize(key);
+        return ArrayUtils.addAll(prefix(),bytes);
     }
 }
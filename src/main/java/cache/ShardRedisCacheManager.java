@@ -7,6 +7,7 @@ import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 import util.ShardRedisPoolManager;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -19,6 +20,22 @@ public class ShardRedisCacheManager implements CacheManager {
     private ShardRedisPoolManager shardRedisPoolManager;
     private RedisSerializer keySerializer;
     private RedisSerializer valueSerializer;
+    // 开启一级缓存的缓存名及其最大条数 / 最大序列化字节数，两者都未配置的缓存不开启
+    private Map<String, Long> nearCacheSizes;
+    private Map<String, Long> nearCacheWeights;
+    // 一级缓存中每个值最多保留的时间，不超过缓存本身的过期时间
+    private int nearCacheExpiration = 60;
+    // 一级缓存失效消息的 channel，为 null 时不通知其他节点
+    private String nearCacheChannel = "shard-redis-cache:invalidate";
+    private NearCacheInvalidator invalidator;
+    // 一级缓存放在堆外的缓存名，容量取 nearCacheWeights 中的字节数，未配置字节数的仍放在堆内
+    private Set<String> offHeapNearCaches = Collections.emptySet();
+    // 不为 null 时每个堆外一级缓存在这个目录下新建自己的临时文件并映射，否则使用 direct buffer
+    private String offHeapDirectory;
+    // get(key, loader) 跨节点加载锁的有效期（毫秒），0 表示只在本节点内合并加载
+    private long loadLeaseMillis = 0;
+    // 各缓存与 Redis 中的命名空间版本对比的间隔（毫秒），见 ShardRedisCache.clear
+    private long generationCheckMillis = 1000;
 
     public ShardRedisCacheManager() {
     }
@@ -36,9 +53,12 @@ public class ShardRedisCacheManager implements CacheManager {
     @Override
     public Cache getCache(String name) {
         Cache cache = cacheMap.get(name);
-        return cache == null ? createCache(name) : cache;
+        return cache == null ? cacheMap.computeIfAbsent(name, this::createCache) : cache;
     }
 
+    /**
+     * 只由 computeIfAbsent 调用，同一个缓存名只创建一次
+     */
     private synchronized Cache createCache(String cacheName) {
         if (keySerializer == null) {
             keySerializer = new StringRedisSerializer();
@@ -48,12 +68,20 @@ public class ShardRedisCacheManager implements CacheManager {
         }
         ShardRedisCache cache = new ShardRedisCache(cacheName, shardRedisPoolManager, keySerializer, valueSerializer);
         cache.setDefaultExpiration(this.computeExpiration(cacheName));
+        cache.setLoadLeaseMillis(loadLeaseMillis);
+        cache.setGenerationCheckMillis(generationCheckMillis);
+        NearCache nearCache = createNearCache(cacheName, cache.getDefaultExpiration());
+        if (nearCache != null) {
+            if (invalidator == null && nearCacheChannel != null) {
+                invalidator = new NearCacheInvalidator(shardRedisPoolManager, nearCacheChannel);
+            }
+            cache.setNearCache(nearCache, invalidator);
+        }
 
         if (cacheNames == null || cacheNames.size() == 0) {
             cacheNames = new LinkedHashSet<>();
         }
         cacheNames.add(cacheName);
-        cacheMap.put(cacheName, cache);
         return cache;
     }
 
@@ -90,6 +118,84 @@ public class ShardRedisCacheManager implements CacheManager {
         this.valueSerializer = valueSerializer;
     }
 
+    private NearCache createNearCache(String name, int expiration) {
+        Long size = nearCacheSizes == null ? null : nearCacheSizes.get(name);
+        Long weight = nearCacheWeights == null ? null : nearCacheWeights.get(name);
+        if (size == null && weight == null) {
+            return null;
+        }
+        int seconds = expiration > 0 ? Math.min(expiration, nearCacheExpiration) : nearCacheExpiration;
+        if (weight != null && offHeapNearCaches.contains(name)) {
+            File directory = offHeapDirectory == null ? null : new File(offHeapDirectory);
+            return new OffHeapNearCache(weight, seconds * 1000L, valueSerializer, directory);
+        }
+        return new HeapNearCache(size == null ? 0 : size, weight == null ? 0 : weight, seconds * 1000L);
+    }
+
+    public Map<String, Long> getNearCacheSizes() {
+        return nearCacheSizes;
+    }
+
+    public void setNearCacheSizes(Map<String, Long> nearCacheSizes) {
+        this.nearCacheSizes = nearCacheSizes;
+    }
+
+    public Map<String, Long> getNearCacheWeights() {
+        return nearCacheWeights;
+    }
+
+    public void setNearCacheWeights(Map<String, Long> nearCacheWeights) {
+        this.nearCacheWeights = nearCacheWeights;
+    }
+
+    public int getNearCacheExpiration() {
+        return nearCacheExpiration;
+    }
+
+    public void setNearCacheExpiration(int nearCacheExpiration) {
+        this.nearCacheExpiration = nearCacheExpiration;
+    }
+
+    public String getNearCacheChannel() {
+        return nearCacheChannel;
+    }
+
+    public void setNearCacheChannel(String nearCacheChannel) {
+        this.nearCacheChannel = nearCacheChannel;
+    }
+
+    public long getLoadLeaseMillis() {
+        return loadLeaseMillis;
+    }
+
+    public void setLoadLeaseMillis(long loadLeaseMillis) {
+        this.loadLeaseMillis = loadLeaseMillis;
+    }
+
+    public long getGenerationCheckMillis() {
+        return generationCheckMillis;
+    }
+
+    public void setGenerationCheckMillis(long generationCheckMillis) {
+        this.generationCheckMillis = generationCheckMillis;
+    }
+
+    public Set<String> getOffHeapNearCaches() {
+        return offHeapNearCaches;
+    }
+
+    public void setOffHeapNearCaches(Set<String> offHeapNearCaches) {
+        this.offHeapNearCaches = offHeapNearCaches;
+    }
+
+    public String getOffHeapDirectory() {
+        return offHeapDirectory;
+    }
+
+    public void setOffHeapDirectory(String offHeapDirectory) {
+        this.offHeapDirectory = offHeapDirectory;
+    }
+
     private int computeExpiration(String name) {
         Integer expiration = null;
         if (this.expires != null) {
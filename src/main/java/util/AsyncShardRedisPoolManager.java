@@ -0,0 +1,358 @@
+package util;
+
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ShardRedisPoolManager 的异步版本，所有命令立即返回 CompletableFuture
+ * <p>
+ * 底层是每个分片少量的非阻塞连接，多个线程的命令共享连接、不等待前一条回复就继续写出，
+ * 因此一次请求可以同时发起多个查询而不必各占一个池化连接。
+ * 分片规则与 ShardRedisPoolManager 相同。future 在事件循环线程上完成，回调里不要做阻塞操作。
+ */
+public class AsyncShardRedisPoolManager {
+    private static final byte[] WITHSCORES = Protocol.Keyword.WITHSCORES.raw;
+
+    private final ShardRedisRouter router;
+    private final RedisEventLoop eventLoop;
+    private final RedisNioConnection[][] connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public AsyncShardRedisPoolManager(ShardRedisConnectionFactory factory) {
+        this(factory.getRouter().getShards(), 1);
+    }
+
+    public AsyncShardRedisPoolManager(List<JedisShardInfo> shards) {
+        this(shards, 1);
+    }
+
+    /**
+     * @param shards              分片列表
+     * @param connectionsPerShard 每个分片的连接数，一般 1~2 个就足够
+     */
+    public AsyncShardRedisPoolManager(List<JedisShardInfo> shards, int connectionsPerShard) {
+        this.router = new ShardRedisRouter(shards);
+        this.eventLoop = new RedisEventLoop("async-shard-redis-event-loop");
+        this.connections = new RedisNioConnection[router.size()][connectionsPerShard];
+        for (int i = 0; i < router.size(); i++) {
+            for (int j = 0; j < connectionsPerShard; j++) {
+                connections[i][j] = new RedisNioConnection(eventLoop, router.getShardInfo(i));
+            }
+        }
+    }
+
+    /**
+     * 按 key 路由到分片并异步执行任意命令，args 需要包含 key 本身
+     */
+    public <T> CompletableFuture<T> execute(String key, Builder<T> builder, Protocol.Command command, byte[]... args) {
+        return send(router.getShardIndex(key), builder, command, args);
+    }
+
+    public <T> CompletableFuture<T> execute(byte[] key, Builder<T> builder, Protocol.Command command, byte[]... args) {
+        return send(router.getShardIndex(key), builder, command, args);
+    }
+
+    private <T> CompletableFuture<T> send(int shard, Builder<T> builder, Protocol.Command command, byte[]... args) {
+        return connection(shard).send(command, args, builder);
+    }
+
+    /**
+     * 按 key 路由到分片执行返回批量回复的命令，回复内容不拷贝成 byte[]，以 RedisPayload 返回，用完需要 close
+     */
+    public CompletableFuture<RedisPayload> executeForPayload(byte[] key, Protocol.Command command, byte[]... args) {
+        return connection(router.getShardIndex(key)).sendForPayload(command, args);
+    }
+
+    /**
+     * 在分片的连接间轮询，已断开的连接在这里重建
+     */
+    private RedisNioConnection connection(int shard) {
+        RedisNioConnection[] shardConnections = connections[shard];
+        int index = shardConnections.length == 1 ? 0 : (next.getAndIncrement() & Integer.MAX_VALUE) % shardConnections.length;
+        RedisNioConnection connection = shardConnections[index];
+        if (connection.isClosed()) {
+            synchronized (shardConnections) {
+                connection = shardConnections[index];
+                if (connection.isClosed()) {
+                    connection = new RedisNioConnection(eventLoop, router.getShardInfo(shard));
+                    shardConnections[index] = connection;
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * 关闭所有连接，未完成的命令以异常结束
+     */
+    public void close() {
+        eventLoop.shutdown();
+    }
+
+    public ShardRedisRouter getRouter() {
+        return router;
+    }
+
+    private static byte[] b(String value) {
+        return SafeEncoder.encode(value);
+    }
+
+    private static byte[] n(long value) {
+        return Protocol.toByteArray(value);
+    }
+
+    private static byte[] n(double value) {
+        return Protocol.toByteArray(value);
+    }
+
+    private static byte[][] join(byte[] first, String... rest) {
+        byte[][] args = new byte[rest.length + 1][];
+        args[0] = first;
+        for (int i = 0; i < rest.length; i++) {
+            args[i + 1] = b(rest[i]);
+        }
+        return args;
+    }
+
+    public CompletableFuture<String> set(String key, String value) {
+        return execute(key, BuilderFactory.STRING, Protocol.Command.SET, b(key), b(value));
+    }
+
+    public CompletableFuture<String> get(String key) {
+        return execute(key, BuilderFactory.STRING, Protocol.Command.GET, b(key));
+    }
+
+    public CompletableFuture<String> setex(String key, int seconds, String value) {
+        return execute(key, BuilderFactory.STRING, Protocol.Command.SETEX, b(key), n(seconds), b(value));
+    }
+
+    public CompletableFuture<Long> setnx(String key, String value) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.SETNX, b(key), b(value));
+    }
+
+    public CompletableFuture<String> getSet(String key, String value) {
+        return execute(key, BuilderFactory.STRING, Protocol.Command.GETSET, b(key), b(value));
+    }
+
+    public CompletableFuture<Boolean> exists(String key) {
+        return execute(key, BuilderFactory.BOOLEAN, Protocol.Command.EXISTS, b(key));
+    }
+
+    public CompletableFuture<Long> del(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.DEL, b(key));
+    }
+
+    public CompletableFuture<Long> expire(String key, int seconds) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.EXPIRE, b(key), n(seconds));
+    }
+
+    public CompletableFuture<Long> ttl(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.TTL, b(key));
+    }
+
+    public CompletableFuture<Long> incr(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.INCR, b(key));
+    }
+
+    public CompletableFuture<Long> incrBy(String key, long integer) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.INCRBY, b(key), n(integer));
+    }
+
+    public CompletableFuture<Long> decr(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.DECR, b(key));
+    }
+
+    public CompletableFuture<Long> decrBy(String key, long integer) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.DECRBY, b(key), n(integer));
+    }
+
+    public CompletableFuture<Long> hset(String key, String field, String value) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.HSET, b(key), b(field), b(value));
+    }
+
+    public CompletableFuture<String> hget(String key, String field) {
+        return execute(key, BuilderFactory.STRING, Protocol.Command.HGET, b(key), b(field));
+    }
+
+    public CompletableFuture<List<String>> hmget(String key, String... fields) {
+        return execute(key, BuilderFactory.STRING_LIST, Protocol.Command.HMGET, join(b(key), fields));
+    }
+
+    public CompletableFuture<Map<String, String>> hgetAll(String key) {
+        return execute(key, BuilderFactory.STRING_MAP, Protocol.Command.HGETALL, b(key));
+    }
+
+    public CompletableFuture<Long> hdel(String key, String field) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.HDEL, b(key), b(field));
+    }
+
+    public CompletableFuture<Long> hincrBy(String key, String field, long value) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.HINCRBY, b(key), b(field), n(value));
+    }
+
+    public CompletableFuture<Boolean> hexists(String key, String field) {
+        return execute(key, BuilderFactory.BOOLEAN, Protocol.Command.HEXISTS, b(key), b(field));
+    }
+
+    public CompletableFuture<Long> hlen(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.HLEN, b(key));
+    }
+
+    public CompletableFuture<Long> lpush(String key, String string) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.LPUSH, b(key), b(string));
+    }
+
+    public CompletableFuture<Long> rpush(String key, String string) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.RPUSH, b(key), b(string));
+    }
+
+    public CompletableFuture<List<String>> lrange(String key, long start, long end) {
+        return execute(key, BuilderFactory.STRING_LIST, Protocol.Command.LRANGE, b(key), n(start), n(end));
+    }
+
+    public CompletableFuture<Long> llen(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.LLEN, b(key));
+    }
+
+    public CompletableFuture<Long> sadd(String key, String member) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.SADD, b(key), b(member));
+    }
+
+    public CompletableFuture<Long> srem(String key, String member) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.SREM, b(key), b(member));
+    }
+
+    public CompletableFuture<Set<String>> smembers(String key) {
+        return execute(key, BuilderFactory.STRING_SET, Protocol.Command.SMEMBERS, b(key));
+    }
+
+    public CompletableFuture<Boolean> sismember(String key, String member) {
+        return execute(key, BuilderFactory.BOOLEAN, Protocol.Command.SISMEMBER, b(key), b(member));
+    }
+
+    public CompletableFuture<Long> scard(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.SCARD, b(key));
+    }
+
+    public CompletableFuture<Long> zadd(String key, double score, String member) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.ZADD, b(key), n(score), b(member));
+    }
+
+    public CompletableFuture<Double> zincrby(String key, double score, String member) {
+        return execute(key, BuilderFactory.DOUBLE, Protocol.Command.ZINCRBY, b(key), n(score), b(member));
+    }
+
+    public CompletableFuture<Double> zscore(String key, String member) {
+        return execute(key, BuilderFactory.DOUBLE, Protocol.Command.ZSCORE, b(key), b(member));
+    }
+
+    public CompletableFuture<Long> zrank(String key, String member) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.ZRANK, b(key), b(member));
+    }
+
+    public CompletableFuture<Long> zrevrank(String key, String member) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.ZREVRANK, b(key), b(member));
+    }
+
+    public CompletableFuture<Long> zrem(String key, String member) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.ZREM, b(key), b(member));
+    }
+
+    public CompletableFuture<Long> zcard(String key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.ZCARD, b(key));
+    }
+
+    public CompletableFuture<Set<String>> zrange(String key, long start, long end) {
+        return execute(key, BuilderFactory.STRING_ZSET, Protocol.Command.ZRANGE, b(key), n(start), n(end));
+    }
+
+    public CompletableFuture<Set<String>> zrevrange(String key, long start, long end) {
+        return execute(key, BuilderFactory.STRING_ZSET, Protocol.Command.ZREVRANGE, b(key), n(start), n(end));
+    }
+
+    public CompletableFuture<Set<Tuple>> zrangeWithScores(String key, long start, long end) {
+        return execute(key, BuilderFactory.TUPLE_ZSET, Protocol.Command.ZRANGE, b(key), n(start), n(end), WITHSCORES);
+    }
+
+    public CompletableFuture<Set<Tuple>> zrevrangeWithScores(String key, long start, long end) {
+        return execute(key, BuilderFactory.TUPLE_ZSET, Protocol.Command.ZREVRANGE, b(key), n(start), n(end), WITHSCORES);
+    }
+
+    public CompletableFuture<String> set(byte[] key, byte[] value) {
+        return execute(key, BuilderFactory.STRING, Protocol.Command.SET, key, value);
+    }
+
+    public CompletableFuture<byte[]> get(byte[] key) {
+        return execute(key, BuilderFactory.BYTE_ARRAY, Protocol.Command.GET, key);
+    }
+
+    public CompletableFuture<RedisPayload> getPayload(byte[] key) {
+        return executeForPayload(key, Protocol.Command.GET, key);
+    }
+
+    public CompletableFuture<String> setex(byte[] key, int seconds, byte[] value) {
+        return execute(key, BuilderFactory.STRING, Protocol.Command.SETEX, key, n(seconds), value);
+    }
+
+    public CompletableFuture<Boolean> exists(byte[] key) {
+        return execute(key, BuilderFactory.BOOLEAN, Protocol.Command.EXISTS, key);
+    }
+
+    public CompletableFuture<Long> del(byte[] key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.DEL, key);
+    }
+
+    public CompletableFuture<Long> expire(byte[] key, int seconds) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.EXPIRE, key, n(seconds));
+    }
+
+    public CompletableFuture<Long> ttl(byte[] key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.TTL, key);
+    }
+
+    public CompletableFuture<Long> incr(byte[] key) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.INCR, key);
+    }
+
+    public CompletableFuture<Long> hset(byte[] key, byte[] field, byte[] value) {
+        return execute(key, BuilderFactory.LONG, Protocol.Command.HSET, key, field, value);
+    }
+
+    public CompletableFuture<byte[]> hget(byte[] key, byte[] field) {
+        return execute(key, BuilderFactory.BYTE_ARRAY, Protocol.Command.HGET, key, field);
+    }
+
+    public CompletableFuture<RedisPayload> hgetPayload(byte[] key, byte[] field) {
+        return executeForPayload(key, Protocol.Command.HGET, key, field);
+    }
+
+    public CompletableFuture<Map<byte[], byte[]>> hgetAll(byte[] key) {
+        return execute(key, BuilderFactory.BYTE_ARRAY_MAP, Protocol.Command.HGETALL, key);
+    }
+
+    public CompletableFuture<Set<byte[]>> smembers(byte[] key) {
+        return execute(key, BuilderFactory.BYTE_ARRAY_ZSET, Protocol.Command.SMEMBERS, key);
+    }
+
+    public CompletableFuture<Double> zincrby(byte[] key, double score, byte[] member) {
+        return execute(key, BuilderFactory.DOUBLE, Protocol.Command.ZINCRBY, key, n(score), member);
+    }
+
+    public CompletableFuture<Set<byte[]>> zrevrange(byte[] key, long start, long end) {
+        return execute(key, BuilderFactory.BYTE_ARRAY_ZSET, Protocol.Command.ZREVRANGE, key, n(start), n(end));
+    }
+
+    public CompletableFuture<Set<Tuple>> zrevrangeWithScores(byte[] key, long start, long end) {
+        return execute(key, BuilderFactory.TUPLE_ZSET_BINARY, Protocol.Command.ZREVRANGE, key, n(start), n(end), WITHSCORES);
+    }
+}
@@ -0,0 +1,85 @@
+package util;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocketFactory;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台校验空闲连接的 JedisPool
+ * <p>
+ * 借连接时不再 PING（testOnBorrow=false），改由连接池的 evictor 每 timeBetweenEvictionRunsMillis 校验一遍全部空闲连接；
+ * 命令执行中发现连接已断开时（例如 Redis 重启、空闲连接被服务端或防火墙关闭），同一节点的其他空闲连接很可能也已失效，
+ * 立即在后台额外校验一遍，不必等下一次 evictor。
+ */
+public class HealthCheckedJedisPool extends JedisPool {
+    private static final Logger log = LoggerFactory.getLogger(HealthCheckedJedisPool.class);
+
+    // 两次额外校验的最小间隔
+    private static final long VALIDATE_INTERVAL_MILLIS = 1000;
+
+    private static final ExecutorService validator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "redis-idle-validator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong lastValidated = new AtomicLong();
+
+    public HealthCheckedJedisPool(GenericObjectPoolConfig config, String host, int port, int timeout) {
+        super(config, host, port, timeout);
+    }
+
+    public HealthCheckedJedisPool(GenericObjectPoolConfig config, String host, int port, int connectionTimeout,
+                                  int soTimeout, String password, int database, String clientName, boolean ssl,
+                                  SSLSocketFactory sslSocketFactory, SSLParameters sslParameters,
+                                  HostnameVerifier hostnameVerifier) {
+        super(config, host, port, connectionTimeout, soTimeout, password, database, clientName, ssl,
+                sslSocketFactory, sslParameters, hostnameVerifier);
+    }
+
+    /**
+     * 连接池默认的健康检查配置：借用和归还时不校验，evictor 每 30 秒校验全部空闲连接
+     */
+    public static void configure(GenericObjectPoolConfig config) {
+        config.setTestOnBorrow(false);
+        config.setTestOnReturn(false);
+        config.setTestWhileIdle(true);
+        config.setTimeBetweenEvictionRunsMillis(30000);
+        config.setNumTestsPerEvictionRun(-1);
+    }
+
+    /**
+     * 异常是否说明连接本身已断开；读超时只说明命令慢，不算
+     */
+    public static boolean isBroken(Throwable e) {
+        return e instanceof JedisConnectionException && !(e.getCause() instanceof SocketTimeoutException);
+    }
+
+    /**
+     * 在后台校验一遍空闲连接，每秒最多一次
+     */
+    public void validateIdle() {
+        long now = System.currentTimeMillis();
+        long last = lastValidated.get();
+        if (now - last < VALIDATE_INTERVAL_MILLIS || !lastValidated.compareAndSet(last, now)) {
+            return;
+        }
+        validator.execute(() -> {
+            try {
+                internalPool.evict();
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+        });
+    }
+}
@@ -1,6 +1,8 @@
 package util;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
 
 public class JedisCallback {
     /**
@@ -9,4 +11,11 @@ public class JedisCallback {
     public interface DoInJedis<T> {
         T doIn(Jedis jedis);
     }
+
+    /**
+     * 定义 Pipeline 回调接口，命令只入队，结果在 sync 之后从 Response 中取
+     */
+    public interface DoInPipeline<T> {
+        Response<T> doIn(PipelineBase pipeline);
+    }
 }
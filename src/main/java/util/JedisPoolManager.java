@@ -4,6 +4,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.*;
 
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Collections;
+import java.util.function.Function;
+
 public class JedisPoolManager {
     private static final Logger log = LoggerFactory.getLogger(JedisPoolManager.class);
 
@@ -16,16 +22,23 @@ public class JedisPoolManager {
     private static int MAX_TOTAL = 50;
     // 控制一个pool最多有多少个状态为idle(空闲的)的jedis实例，默认值也是8。
     private static int MAX_IDLE = 10;
+    // 连接池保持的最少空闲连接数，也是启动预热时建立的连接数
+    private static int MIN_IDLE = 5;
     // 等待可用连接的最大时间，单位毫秒，默认值为-1，表示永不超时。如果超过等待时间，则直接抛出JedisConnectionException；
     private static int MAX_WAIT = 5000;
     private static int TIMEOUT = 1000;
 
     // 在borrow一个jedis实例时，是否提前进行validate操作；如果为true，则得到的jedis实例均是可用的；
-    private static boolean TEST_ON_BORROW = true;
+    // 每次借用都多一次 PING 往返，默认关闭，改由后台 evictor 校验空闲连接，见 HealthCheckedJedisPool
+    private static boolean TEST_ON_BORROW = false;
 
-    private static JedisPool jedisPool;
+    private static volatile JedisPool jedisPool;
+    private static volatile boolean ready;
     private ShardedJedisPool shardedJedisPool;
 
+    // 绑定到当前线程的连接：绑定期间当前线程的命令都复用这一个连接，不再回到连接池
+    private static final ThreadLocal<BoundResource> boundResource = new ThreadLocal<>();
+
     public JedisPoolManager() {
         createJedisPool();
     }
@@ -41,18 +54,47 @@ public class JedisPoolManager {
         JedisPoolConfig config = new JedisPoolConfig();
         config.setMaxTotal(MAX_TOTAL);
         config.setMaxIdle(MAX_IDLE);
+        config.setMinIdle(MIN_IDLE);
         config.setMaxWaitMillis(MAX_WAIT);
+        HealthCheckedJedisPool.configure(config);
         config.setTestOnBorrow(TEST_ON_BORROW);
-        jedisPool = new JedisPool(config, HOST, PORT, TIMEOUT);
+        jedisPool = new HealthCheckedJedisPool(config, HOST, PORT, TIMEOUT);
+    }
+
+    /**
+     * 预热连接池：建立 MIN_IDLE 个连接并预加载已注册的 Lua 脚本，成功后 isReady 返回 true
+     */
+    public static boolean warmUp() {
+        JedisPool pool = jedisPool;
+        if (pool == null) {
+            return false;
+        }
+        ready = RedisPoolWarmer.warmUp(Collections.singletonList(HOST + ":" + PORT), Collections.singletonList(pool),
+                new int[]{MIN_IDLE}, RedisScriptRegistry.getInstance());
+        return ready;
+    }
+
+    /**
+     * 连接池是否已预热完成
+     */
+    public static boolean isReady() {
+        return ready;
     }
 
     /**
      * 获取Jedis实例
+     * <p>
+     * 不加锁，直接交给 commons-pool2 的无锁借用路径；当前线程已绑定连接时直接复用
      */
-    public synchronized static Jedis getResource() {
+    public static Jedis getResource() {
+        BoundResource bound = boundResource.get();
+        if (bound != null) {
+            return bound.jedis;
+        }
+        JedisPool pool = jedisPool;
         try {
-            if (jedisPool != null) {
-                return jedisPool.getResource();
+            if (pool != null) {
+                return pool.getResource();
             } else {
                 return null;
             }
@@ -63,10 +105,10 @@ public class JedisPoolManager {
     }
 
     /**
-     * 返还到连接池
+     * 返还到连接池，当前线程绑定的连接在解绑时才归还
      */
     public static void returnResource(final Jedis jedis) {
-        if (jedis != null && jedisPool != null) {
+        if (jedis != null && jedisPool != null && !isBound(jedis)) {
             jedis.close();
         }
     }
@@ -75,23 +117,100 @@ public class JedisPoolManager {
      * 释放 jedis 资源
      */
     public static void returnBrokenResource(final Jedis jedis) {
-        if (jedis != null && jedisPool != null) {
+        if (jedis != null && jedisPool != null && !isBound(jedis)) {
             jedis.close();
         }
     }
 
     /**
-     * Jedis 方法执行模板
+     * 借一个连接执行一条命令。命令执行中发现连接已断开时，后台校验连接池里其余的空闲连接，
+     * 幂等命令换一个新连接重试一次；当前线程绑定的连接不重试
      */
-    public <T> T execute(JedisCallback.DoInJedis<T> doInJedis) {
-        Jedis jedis = null;
+    private static <T> T call(Protocol.Command command, Function<Jedis, T> action) {
+        Jedis jedis = getResource();
+        if (jedis == null) {
+            return null;
+        }
         try {
+            return action.apply(jedis);
+        } catch (JedisConnectionException e) {
+            if (!HealthCheckedJedisPool.isBroken(e) || isBound(jedis)) {
+                throw e;
+            }
+            JedisPool pool = jedisPool;
+            if (pool instanceof HealthCheckedJedisPool) {
+                ((HealthCheckedJedisPool) pool).validateIdle();
+            }
+            if (!RedisCommands.isIdempotent(command)) {
+                throw e;
+            }
+            log.warn("connection broken, retry " + command + " on a fresh connection: " + e.getMessage());
+            // 连接已被标记为 broken，close 时由连接池销毁
+            returnBrokenResource(jedis);
             jedis = getResource();
+            return jedis == null ? null : action.apply(jedis);
+        } finally {
+            returnResource(jedis);
+        }
+    }
+
+    private static boolean isBound(Jedis jedis) {
+        BoundResource bound = boundResource.get();
+        return bound != null && bound.jedis == jedis;
+    }
+
+    /**
+     * 把一个连接绑定到当前线程，直到对应的 unbindResource 之前，当前线程调用的静态方法都复用这个连接。
+     * 可以嵌套调用，最外层解绑时才归还连接。
+     */
+    public static void bindResource() {
+        bind();
+    }
+
+    /**
+     * 绑定并返回当前线程的连接，借不到连接时不绑定，返回 null
+     */
+    private static Jedis bind() {
+        BoundResource bound = boundResource.get();
+        if (bound != null) {
+            bound.depth++;
+            return bound.jedis;
+        }
+        Jedis jedis = getResource();
+        if (jedis != null) {
+            boundResource.set(new BoundResource(jedis));
+        }
+        return jedis;
+    }
+
+    /**
+     * 解除当前线程的连接绑定
+     */
+    public static void unbindResource() {
+        BoundResource bound = boundResource.get();
+        if (bound == null) {
+            return;
+        }
+        if (--bound.depth == 0) {
+            boundResource.remove();
+            returnResource(bound.jedis);
+        }
+    }
+
+    /**
+     * Jedis 方法执行模板，回调期间连接绑定到当前线程，回调里调用的静态方法也复用同一个连接
+     */
+    public <T> T execute(JedisCallback.DoInJedis<T> doInJedis) {
+        Jedis jedis = bind();
+        if (jedis == null) {
+            return null;
+        }
+        try {
             return doInJedis.doIn(jedis);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error(e.getMessage(), e);
         } finally {
-            returnResource(jedis);
+            unbindResource();
         }
         return null;
     }
@@ -104,76 +223,42 @@ public class JedisPoolManager {
         if (seconds <= 0) {
             return;
         }
-        Jedis jedis = getResource();
-        if (jedis != null) {
-            jedis.expire(key, seconds);
-        }
-        returnResource(jedis);
+        call(Protocol.Command.EXPIRE, jedis -> jedis.expire(key, seconds));
     }
 
     /**
      * set 设置值
      */
     public static String set(final String key, String value) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.set(key, value);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.SET, jedis -> jedis.set(key, value));
     }
 
     /**
      * set 设置值和过期时间
      */
     public static String set(final String key, String value, int expireSeconds) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.setex(key, expireSeconds, value);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.SETEX, jedis -> jedis.setex(key, expireSeconds, value));
     }
 
     /**
      * get
      */
     public static String get(final String key) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.get(key);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.GET, jedis -> jedis.get(key));
     }
 
     /**
      * getbit
      */
     public static Boolean getbit(String key, long offset) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.getbit(key, offset);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.GETBIT, jedis -> jedis.getbit(key, offset));
     }
 
     /**
      * del
      */
     public static Long del(final String... keys) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.del(keys);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.DEL, jedis -> jedis.del(keys));
     }
 
     /**
@@ -183,13 +268,7 @@ public class JedisPoolManager {
      * @return 执行 INCR 命令之后 key 的值
      */
     public static Long incr(final String key) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.incr(key);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.INCR, jedis -> jedis.incr(key));
     }
 
     /**
@@ -199,52 +278,28 @@ public class JedisPoolManager {
      * @return 执行 DECR 命令之后 key 的值
      */
     public static Long decr(final String key) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.decr(key);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.DECR, jedis -> jedis.decr(key));
     }
 
     /**
      * incrBy
      */
     public static Long incrBy(final String key, long increment) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.incrBy(key, increment);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.INCRBY, jedis -> jedis.incrBy(key, increment));
     }
 
     /**
      * decrBy
      */
     public static Long decrBy(final String key, long decrement) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.decrBy(key, decrement);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.DECRBY, jedis -> jedis.decrBy(key, decrement));
     }
 
     /**
      * incrByFloat
      */
     public static Double incrByFloat(final String key, Double increment) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.incrByFloat(key, increment);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.INCRBYFLOAT, jedis -> jedis.incrByFloat(key, increment));
     }
 
     /**
@@ -255,13 +310,7 @@ public class JedisPoolManager {
      * @return 追加 value 之后，key 中字符串的长度
      */
     public static Long append(final String key, String value) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.append(key, value);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.APPEND, jedis -> jedis.append(key, value));
     }
 
     /**
@@ -271,13 +320,7 @@ public class JedisPoolManager {
      * @return 截取得出的子字符串
      */
     public static String getrange(String key, Long start, Long end) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.getrange(key, start, end);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.GETRANGE, jedis -> jedis.getrange(key, start, end));
     }
 
     /**
@@ -288,13 +331,7 @@ public class JedisPoolManager {
      * @return 给定 key 的旧值
      */
     public static String getSet(String key, String value) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.getSet(key, value);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.GETSET, jedis -> jedis.getSet(key, value));
     }
 
     /**
@@ -304,13 +341,7 @@ public class JedisPoolManager {
      * @return 字符串值的长度
      */
     public static Long strlen(String key) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.strlen(key);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.STRLEN, jedis -> jedis.strlen(key));
     }
 
     /**
@@ -322,13 +353,7 @@ public class JedisPoolManager {
      * @return 被 SETRANGE 修改之后，字符串的长度
      */
     public static Long setrange(String key, long offset, String value) {
-        Jedis jedis = null;
-        try {
-            jedis = getResource();
-            return jedis.setrange(key, offset, value);
-        } finally {
-            returnResource(jedis);
-        }
+        return call(Protocol.Command.SETRANGE, jedis -> jedis.setrange(key, offset, value));
     }
 
 
@@ -389,7 +414,7 @@ public class JedisPoolManager {
 
 
     /**
-     * 计数器
+     * 计数器，自增和设置过期时间在同一个 Lua 脚本中原子执行，只需一次往返
      */
     public long incr(String key, long increment, int expireTime) {
         long result = 0l;
@@ -398,8 +423,9 @@ public class JedisPoolManager {
             return result;
         }
         try {
-            result = shardedJedis.incrBy(key, increment);
-            shardedJedis.expire(key, expireTime);
+            result = (Long) RedisScriptRegistry.getInstance().evalsha(shardedJedis.getShard(key),
+                    RedisScriptRegistry.INCR_EXPIRE, 1, SafeEncoder.encode(key),
+                    Protocol.toByteArray(increment), Protocol.toByteArray(expireTime));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
         } finally {
@@ -466,6 +492,18 @@ public class JedisPoolManager {
         return b;
     }
 
+    /**
+     * 线程绑定的连接及嵌套层数
+     */
+    private static class BoundResource {
+        private final Jedis jedis;
+        private int depth = 1;
+
+        BoundResource(Jedis jedis) {
+            this.jedis = jedis;
+        }
+    }
+
     public static void main(String[] args) {
         Object value = JedisPoolManagerFactory.getJedisPoolManager().execute(new JedisCallback.DoInJedis<Object>() {
             @Override
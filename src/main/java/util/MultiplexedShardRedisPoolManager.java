@@ -0,0 +1,316 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Tuple;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 多路复用模式的同步客户端：所有线程共享每个分片 1~2 个非阻塞连接，不再使用连接池
+ * <p>
+ * 命令提交到分片连接的出站队列后，调用线程阻塞等待自己的回复；事件循环线程把并发线程积攒的命令合并写出，
+ * 回复按先进先出的顺序对应回各个命令。没有借还连接和池等待队列，Redis 上的连接数只有 分片数 × connectionsPerShard。
+ * <p>
+ * 不适用于阻塞命令（BLPOP 等）、事务、发布订阅和 SELECT 等会改变连接状态的命令，这些场景仍使用 ShardRedisPoolManager。
+ * 超时由连接的 soTimeout 控制，超时后该连接上的所有在途命令都会失败、连接在下次使用时重建。
+ * 失败时与 ShardRedisPoolManager 一样记录日志并返回 null。
+ */
+public class MultiplexedShardRedisPoolManager {
+    private static final Logger log = LoggerFactory.getLogger(MultiplexedShardRedisPoolManager.class);
+
+    private final AsyncShardRedisPoolManager async;
+
+    public MultiplexedShardRedisPoolManager(List<JedisShardInfo> shards) {
+        this(shards, 1);
+    }
+
+    /**
+     * @param shards              分片列表
+     * @param connectionsPerShard 每个分片的连接数，一般 1~2 个就足够
+     */
+    public MultiplexedShardRedisPoolManager(List<JedisShardInfo> shards, int connectionsPerShard) {
+        this(new AsyncShardRedisPoolManager(shards, connectionsPerShard));
+    }
+
+    public MultiplexedShardRedisPoolManager(AsyncShardRedisPoolManager async) {
+        this.async = async;
+    }
+
+    /**
+     * 同一组连接上的异步接口
+     */
+    public AsyncShardRedisPoolManager getAsync() {
+        return async;
+    }
+
+    public void close() {
+        async.close();
+    }
+
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            log.error(cause.getMessage(), cause);
+            return null;
+        }
+    }
+
+    /**
+     * 按 key 路由到分片并执行任意命令，args 需要包含 key 本身
+     */
+    public <T> T execute(String key, Builder<T> builder, Protocol.Command command, byte[]... args) {
+        return await(async.execute(key, builder, command, args));
+    }
+
+    public <T> T execute(byte[] key, Builder<T> builder, Protocol.Command command, byte[]... args) {
+        return await(async.execute(key, builder, command, args));
+    }
+
+    public RedisPayload executeForPayload(byte[] key, Protocol.Command command, byte[]... args) {
+        return await(async.executeForPayload(key, command, args));
+    }
+
+    public String set(String key, String value) {
+        return await(async.set(key, value));
+    }
+
+    public String get(String key) {
+        return await(async.get(key));
+    }
+
+    public String setex(String key, int seconds, String value) {
+        return await(async.setex(key, seconds, value));
+    }
+
+    public Long setnx(String key, String value) {
+        return await(async.setnx(key, value));
+    }
+
+    public String getSet(String key, String value) {
+        return await(async.getSet(key, value));
+    }
+
+    public Boolean exists(String key) {
+        return await(async.exists(key));
+    }
+
+    public Long del(String key) {
+        return await(async.del(key));
+    }
+
+    public Long expire(String key, int seconds) {
+        return await(async.expire(key, seconds));
+    }
+
+    public Long ttl(String key) {
+        return await(async.ttl(key));
+    }
+
+    public Long incr(String key) {
+        return await(async.incr(key));
+    }
+
+    public Long incrBy(String key, long integer) {
+        return await(async.incrBy(key, integer));
+    }
+
+    public Long decr(String key) {
+        return await(async.decr(key));
+    }
+
+    public Long decrBy(String key, long integer) {
+        return await(async.decrBy(key, integer));
+    }
+
+    public Long hset(String key, String field, String value) {
+        return await(async.hset(key, field, value));
+    }
+
+    public String hget(String key, String field) {
+        return await(async.hget(key, field));
+    }
+
+    public List<String> hmget(String key, String... fields) {
+        return await(async.hmget(key, fields));
+    }
+
+    public Map<String, String> hgetAll(String key) {
+        return await(async.hgetAll(key));
+    }
+
+    public Long hdel(String key, String field) {
+        return await(async.hdel(key, field));
+    }
+
+    public Long hincrBy(String key, String field, long value) {
+        return await(async.hincrBy(key, field, value));
+    }
+
+    public Boolean hexists(String key, String field) {
+        return await(async.hexists(key, field));
+    }
+
+    public Long hlen(String key) {
+        return await(async.hlen(key));
+    }
+
+    public Long lpush(String key, String string) {
+        return await(async.lpush(key, string));
+    }
+
+    public Long rpush(String key, String string) {
+        return await(async.rpush(key, string));
+    }
+
+    public List<String> lrange(String key, long start, long end) {
+        return await(async.lrange(key, start, end));
+    }
+
+    public Long llen(String key) {
+        return await(async.llen(key));
+    }
+
+    public Long sadd(String key, String member) {
+        return await(async.sadd(key, member));
+    }
+
+    public Long srem(String key, String member) {
+        return await(async.srem(key, member));
+    }
+
+    public Set<String> smembers(String key) {
+        return await(async.smembers(key));
+    }
+
+    public Boolean sismember(String key, String member) {
+        return await(async.sismember(key, member));
+    }
+
+    public Long scard(String key) {
+        return await(async.scard(key));
+    }
+
+    public Long zadd(String key, double score, String member) {
+        return await(async.zadd(key, score, member));
+    }
+
+    public Double zincrby(String key, double score, String member) {
+        return await(async.zincrby(key, score, member));
+    }
+
+    public Double zscore(String key, String member) {
+        return await(async.zscore(key, member));
+    }
+
+    public Long zrank(String key, String member) {
+        return await(async.zrank(key, member));
+    }
+
+    public Long zrevrank(String key, String member) {
+        return await(async.zrevrank(key, member));
+    }
+
+    public Long zrem(String key, String member) {
+        return await(async.zrem(key, member));
+    }
+
+    public Long zcard(String key) {
+        return await(async.zcard(key));
+    }
+
+    public Set<String> zrange(String key, long start, long end) {
+        return await(async.zrange(key, start, end));
+    }
+
+    public Set<String> zrevrange(String key, long start, long end) {
+        return await(async.zrevrange(key, start, end));
+    }
+
+    public Set<Tuple> zrangeWithScores(String key, long start, long end) {
+        return await(async.zrangeWithScores(key, start, end));
+    }
+
+    public Set<Tuple> zrevrangeWithScores(String key, long start, long end) {
+        return await(async.zrevrangeWithScores(key, start, end));
+    }
+
+    public String set(byte[] key, byte[] value) {
+        return await(async.set(key, value));
+    }
+
+    public byte[] get(byte[] key) {
+        return await(async.get(key));
+    }
+
+    /**
+     * 同 get(byte[])，但值不拷贝成 byte[]，以 RedisPayload 返回，用完需要 close；key 不存在时返回 null
+     */
+    public RedisPayload getPayload(byte[] key) {
+        return await(async.getPayload(key));
+    }
+
+    public String setex(byte[] key, int seconds, byte[] value) {
+        return await(async.setex(key, seconds, value));
+    }
+
+    public Boolean exists(byte[] key) {
+        return await(async.exists(key));
+    }
+
+    public Long del(byte[] key) {
+        return await(async.del(key));
+    }
+
+    public Long expire(byte[] key, int seconds) {
+        return await(async.expire(key, seconds));
+    }
+
+    public Long ttl(byte[] key) {
+        return await(async.ttl(key));
+    }
+
+    public Long incr(byte[] key) {
+        return await(async.incr(key));
+    }
+
+    public Long hset(byte[] key, byte[] field, byte[] value) {
+        return await(async.hset(key, field, value));
+    }
+
+    public byte[] hget(byte[] key, byte[] field) {
+        return await(async.hget(key, field));
+    }
+
+    public RedisPayload hgetPayload(byte[] key, byte[] field) {
+        return await(async.hgetPayload(key, field));
+    }
+
+    public Map<byte[], byte[]> hgetAll(byte[] key) {
+        return await(async.hgetAll(key));
+    }
+
+    public Set<byte[]> smembers(byte[] key) {
+        return await(async.smembers(key));
+    }
+
+    public Double zincrby(byte[] key, double score, byte[] member) {
+        return await(async.zincrby(key, score, member));
+    }
+
+    public Set<byte[]> zrevrange(byte[] key, long start, long end) {
+        return await(async.zrevrange(key, start, end));
+    }
+
+    public Set<Tuple> zrevrangeWithScores(byte[] key, long start, long end) {
+        return await(async.zrevrangeWithScores(key, start, end));
+    }
+}
@@ -0,0 +1,51 @@
+package util;
+
+import redis.clients.jedis.Protocol;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * 命令分类
+ */
+final class RedisCommands {
+    // 不修改数据的单 key 命令
+    private static final Set<Protocol.Command> READS = EnumSet.of(
+            Protocol.Command.GET, Protocol.Command.EXISTS, Protocol.Command.TTL, Protocol.Command.PTTL,
+            Protocol.Command.TYPE, Protocol.Command.STRLEN, Protocol.Command.GETBIT, Protocol.Command.GETRANGE,
+            Protocol.Command.SUBSTR, Protocol.Command.BITCOUNT, Protocol.Command.DUMP,
+            Protocol.Command.HGET, Protocol.Command.HMGET, Protocol.Command.HGETALL, Protocol.Command.HEXISTS,
+            Protocol.Command.HLEN, Protocol.Command.HKEYS, Protocol.Command.HVALS,
+            Protocol.Command.LRANGE, Protocol.Command.LLEN, Protocol.Command.LINDEX,
+            Protocol.Command.SMEMBERS, Protocol.Command.SISMEMBER, Protocol.Command.SCARD, Protocol.Command.SRANDMEMBER,
+            Protocol.Command.ZRANGE, Protocol.Command.ZREVRANGE, Protocol.Command.ZRANGEBYSCORE,
+            Protocol.Command.ZREVRANGEBYSCORE, Protocol.Command.ZRANGEBYLEX, Protocol.Command.ZREVRANGEBYLEX,
+            Protocol.Command.ZCARD, Protocol.Command.ZSCORE, Protocol.Command.ZRANK, Protocol.Command.ZREVRANK,
+            Protocol.Command.ZCOUNT, Protocol.Command.ZLEXCOUNT, Protocol.Command.SORT, Protocol.Command.PFCOUNT);
+
+    // 重复执行后数据和回复都不变的写命令，连接断开时可以换一个连接重试；
+    // SETBIT 返回旧的位、DEL / HSET / SADD 等返回实际变更的个数，第一次已执行但回复丢失时重试的回复会不同，不在其中
+    private static final Set<Protocol.Command> IDEMPOTENT_WRITES = EnumSet.of(
+            Protocol.Command.SET, Protocol.Command.SETEX, Protocol.Command.PSETEX, Protocol.Command.MSET,
+            Protocol.Command.HMSET, Protocol.Command.SETRANGE, Protocol.Command.PERSIST,
+            Protocol.Command.EXPIRE, Protocol.Command.PEXPIRE, Protocol.Command.EXPIREAT, Protocol.Command.PEXPIREAT);
+
+    // 只有 key 不存在时才返回 nil 的读命令，副本上读不到（未同步或已过期）时可以明确判断并回到主分片
+    private static final Set<Protocol.Command> NIL_ON_MISS_READS = EnumSet.of(
+            Protocol.Command.GET, Protocol.Command.HGET);
+
+    private RedisCommands() {
+    }
+
+    static boolean isRead(Protocol.Command command) {
+        return READS.contains(command);
+    }
+
+    static boolean isNilOnMiss(Protocol.Command command) {
+        return NIL_ON_MISS_READS.contains(command);
+    }
+
+    static boolean isIdempotent(Protocol.Command command) {
+        return command != null && (READS.contains(command) || IDEMPOTENT_WRITES.contains(command));
+    }
+}
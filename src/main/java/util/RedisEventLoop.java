@@ -0,0 +1,116 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 非阻塞连接共用的事件循环线程：负责连接建立、批量写出和读回复
+ * <p>
+ * 回复在这个线程上解析并完成对应的 CompletableFuture，挂在 future 上的回调不要做阻塞操作。
+ */
+class RedisEventLoop implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(RedisEventLoop.class);
+
+    // select 超时，同时也是检查命令超时的周期，单位毫秒
+    private static final long TICK_MILLIS = 50;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<RedisNioConnection> connections = new LinkedHashSet<>();
+    private volatile boolean running = true;
+
+    RedisEventLoop(String name) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("open selector error", e);
+        }
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在事件循环线程上执行任务
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(RedisNioConnection connection) {
+        execute(() -> {
+            connections.add(connection);
+            connection.open();
+        });
+    }
+
+    void deregister(RedisNioConnection connection) {
+        connections.remove(connection);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((RedisNioConnection) key.attachment()).handle(key);
+                }
+                long now = System.nanoTime();
+                for (RedisNioConnection connection : connections.toArray(new RedisNioConnection[0])) {
+                    connection.checkTimeout(now);
+                }
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+        runTasks();
+        for (RedisNioConnection connection : connections.toArray(new RedisNioConnection[0])) {
+            connection.close(new IllegalStateException("event loop is shut down"));
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,426 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个非阻塞的 Redis 连接，多个线程可以同时往里提交命令
+ * <p>
+ * 命令先进入出站队列，由事件循环线程把队列里积攒的命令拷贝进共享的出站缓冲区一次性写出（不等待前一条的回复），
+ * 多个线程并发提交的命令因此合并成少量 write 系统调用；回复按先进先出的顺序与已发送的命令一一对应。
+ * <p>
+ * 命令直接编码进出站缓冲区，不先生成 byte[]；以 sendForPayload 提交的命令，批量回复的内容读进池化的直接内存缓冲区，
+ * 超出读缓冲区的部分直接从 socket 读入目标缓冲区，以 RedisPayload 交给调用方。
+ */
+class RedisNioConnection {
+    private static final Logger log = LoggerFactory.getLogger(RedisNioConnection.class);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final RedisEventLoop loop;
+    private final JedisShardInfo shard;
+    private final long timeoutNanos;
+    private final long connectTimeoutNanos;
+
+    private final Queue<PendingCommand<?>> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile Throwable closeCause;
+
+    // 以下字段只在事件循环线程上访问
+    private final ArrayDeque<PendingCommand<?>> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<PendingCommand<?>> unwritten = new ArrayDeque<>();
+    // 共享的出站缓冲区，命令直接编码进来再一起写出
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    // 正在写出的数据：writeBuffer，或一条超过 writeBuffer 大小、单独编码进池化缓冲区的命令
+    private ByteBuffer writing;
+    // 正在接收的批量回复内容，读缓冲区装不下的部分直接从 socket 读进来
+    private ByteBuffer payload;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+    private boolean connected;
+    private long openedAt;
+
+    RedisNioConnection(RedisEventLoop loop, JedisShardInfo shard) {
+        this.loop = loop;
+        this.shard = shard;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(shard.getSoTimeout());
+        this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(shard.getConnectionTimeout());
+        // AUTH / SELECT 排在所有业务命令之前
+        if (shard.getPassword() != null) {
+            sendInternal(Protocol.Command.AUTH, SafeEncoder.encode(shard.getPassword()));
+        }
+        if (shard.getDb() != 0) {
+            sendInternal(Protocol.Command.SELECT, Protocol.toByteArray(shard.getDb()));
+        }
+        loop.register(this);
+    }
+
+    private void sendInternal(Protocol.Command command, byte[] arg) {
+        send(command, new byte[][]{arg}, BuilderFactory.STRING).whenComplete((reply, e) -> {
+            if (e != null) {
+                log.error(command + " error on " + ShardRedisConnectionFactory.shardName(shard), e);
+            }
+        });
+    }
+
+    /**
+     * 提交一条命令，可以在任意线程调用
+     */
+    <T> CompletableFuture<T> send(Protocol.Command command, byte[][] args, Builder<T> builder) {
+        return submit(new PendingCommand<>(command, args, builder));
+    }
+
+    /**
+     * 提交一条返回批量回复的命令，回复内容以 RedisPayload 返回，key 不存在时为 null
+     */
+    CompletableFuture<RedisPayload> sendForPayload(Protocol.Command command, byte[][] args) {
+        return submit(new PendingCommand<RedisPayload>(command, args, null));
+    }
+
+    private <T> CompletableFuture<T> submit(PendingCommand<T> command) {
+        outbound.add(command);
+        if (closed) {
+            failOutbound();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return command.future;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    JedisShardInfo getShard() {
+        return shard;
+    }
+
+    void open() {
+        openedAt = System.nanoTime();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            boolean done = channel.connect(new InetSocketAddress(shard.getHost(), shard.getPort()));
+            selectionKey = channel.register(loop.selector(), done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (done) {
+                onConnected();
+            }
+        } catch (IOException e) {
+            close(new JedisConnectionException(e));
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                channel.finishConnect();
+                onConnected();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (JedisConnectionException e) {
+            close(e);
+        } catch (Exception e) {
+            close(new JedisConnectionException(e));
+        }
+    }
+
+    private void onConnected() throws IOException {
+        connected = true;
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        write();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (!connected || closed) {
+            return;
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            close(new JedisConnectionException(e));
+        }
+    }
+
+    /**
+     * 把出站队列里的命令全部转入在途队列，并经出站缓冲区尽量写出
+     */
+    private void write() throws IOException {
+        PendingCommand<?> command;
+        while ((command = outbound.poll()) != null) {
+            inFlight.add(command);
+            unwritten.add(command);
+        }
+        while (true) {
+            if (writing == null || !writing.hasRemaining()) {
+                releaseWriting();
+                writing = fill();
+                if (writing == null) {
+                    break;
+                }
+            }
+            channel.write(writing);
+            if (writing.hasRemaining()) {
+                // 内核发送缓冲区已满，等可写事件再继续
+                break;
+            }
+        }
+        int ops = writing == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (selectionKey.interestOps() != ops) {
+            selectionKey.interestOps(ops);
+        }
+    }
+
+    /**
+     * 把尚未写出的命令依次编码进出站缓冲区，直到放不下为止；超过缓冲区大小的命令单独编码进池化缓冲区。
+     * 没有待写命令时返回 null
+     */
+    private ByteBuffer fill() {
+        PendingCommand<?> command = unwritten.peek();
+        if (command == null) {
+            return null;
+        }
+        if (command.size > writeBuffer.capacity()) {
+            unwritten.poll();
+            ByteBuffer buffer = RespBufferPool.acquire(command.size);
+            command.encode(buffer);
+            buffer.flip();
+            return buffer;
+        }
+        writeBuffer.clear();
+        while ((command = unwritten.peek()) != null && command.size <= writeBuffer.remaining()) {
+            unwritten.poll().encode(writeBuffer);
+        }
+        writeBuffer.flip();
+        return writeBuffer;
+    }
+
+    private void releaseWriting() {
+        if (writing != null && writing != writeBuffer) {
+            RespBufferPool.release(writing);
+        }
+        writing = null;
+    }
+
+    private void read() throws IOException {
+        if (payload != null) {
+            if (channel.read(payload) < 0) {
+                throw new JedisConnectionException("Unexpected end of stream.");
+            }
+            if (!payload.hasRemaining()) {
+                completePayload();
+            }
+            // 进入直接读取前读缓冲区已经消费完，这里没有剩余数据需要解析
+            return;
+        }
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            throw new JedisConnectionException("Unexpected end of stream.");
+        }
+        readBuffer.flip();
+        while (true) {
+            PendingCommand<?> head = inFlight.peek();
+            if (head != null && head.builder == null) {
+                if (!readPayload()) {
+                    break;
+                }
+                continue;
+            }
+            Object reply = RespCodec.decode(readBuffer);
+            if (reply == RespCodec.INCOMPLETE) {
+                break;
+            }
+            PendingCommand<?> command = inFlight.poll();
+            if (command == null) {
+                throw new JedisConnectionException("Unexpected reply without request");
+            }
+            command.complete(reply);
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            // 单条回复超过缓冲区大小，扩容后继续读
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * 为队首的 payload 命令读回复；数据不够时返回 false
+     */
+    private boolean readPayload() {
+        int length = RespCodec.readBulkLength(readBuffer);
+        if (length == RespCodec.INCOMPLETE_LENGTH) {
+            return false;
+        }
+        if (length == RespCodec.NOT_BULK) {
+            // 错误回复等，按普通回复处理
+            Object reply = RespCodec.decode(readBuffer);
+            if (reply == RespCodec.INCOMPLETE) {
+                return false;
+            }
+            inFlight.poll().complete(reply);
+            return true;
+        }
+        if (length < 0) {
+            inFlight.poll().completePayload(null);
+            return true;
+        }
+        // 内容连同结尾的 CRLF 一起读入，交出去之前去掉 CRLF
+        ByteBuffer target = RespBufferPool.acquire(length + 2);
+        int n = Math.min(readBuffer.remaining(), target.remaining());
+        ByteBuffer available = readBuffer.duplicate();
+        available.limit(available.position() + n);
+        target.put(available);
+        readBuffer.position(readBuffer.position() + n);
+        payload = target;
+        if (target.hasRemaining()) {
+            return false;
+        }
+        completePayload();
+        return true;
+    }
+
+    private void completePayload() {
+        ByteBuffer content = payload;
+        payload = null;
+        content.flip();
+        content.limit(content.limit() - 2);
+        inFlight.poll().completePayload(new RedisPayload(content));
+    }
+
+    void checkTimeout(long now) {
+        if (closed) {
+            return;
+        }
+        if (!connected) {
+            if (now - openedAt > connectTimeoutNanos) {
+                close(new JedisConnectionException("connect timed out: " + ShardRedisConnectionFactory.shardName(shard)));
+            }
+            return;
+        }
+        PendingCommand<?> head = inFlight.peek();
+        if (head != null && now - head.createdAt > timeoutNanos) {
+            close(new JedisConnectionException("Read timed out: " + ShardRedisConnectionFactory.shardName(shard)));
+        }
+    }
+
+    /**
+     * 关闭连接，在途和排队中的命令全部以异常结束，只在事件循环线程上调用
+     */
+    void close(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closeCause = cause;
+        closed = true;
+        log.error("redis connection closed: " + ShardRedisConnectionFactory.shardName(shard), cause);
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+        loop.deregister(this);
+        PendingCommand<?> command;
+        while ((command = inFlight.poll()) != null) {
+            command.future.completeExceptionally(cause);
+        }
+        unwritten.clear();
+        releaseWriting();
+        if (payload != null) {
+            RespBufferPool.release(payload);
+            payload = null;
+        }
+        failOutbound();
+    }
+
+    private void failOutbound() {
+        PendingCommand<?> command;
+        while ((command = outbound.poll()) != null) {
+            command.future.completeExceptionally(closeCause);
+        }
+    }
+
+    /**
+     * 一条已提交的命令及其结果；builder 为 null 时回复以 RedisPayload 返回
+     */
+    private static class PendingCommand<T> {
+        private final Protocol.Command command;
+        private final byte[][] args;
+        private final int size;
+        private final Builder<T> builder;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long createdAt = System.nanoTime();
+
+        PendingCommand(Protocol.Command command, byte[][] args, Builder<T> builder) {
+            this.command = command;
+            this.args = args;
+            this.size = RespCodec.encodedSize(command, args);
+            this.builder = builder;
+        }
+
+        void encode(ByteBuffer out) {
+            RespCodec.encode(out, command, args);
+        }
+
+        void complete(Object reply) {
+            if (reply instanceof JedisDataException) {
+                future.completeExceptionally((JedisDataException) reply);
+                return;
+            }
+            if (builder == null) {
+                future.completeExceptionally(new JedisDataException("Unexpected reply for " + command));
+                return;
+            }
+            try {
+                future.complete(builder.build(reply));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void completePayload(RedisPayload payload) {
+            // 调用方已经放弃等待时直接归还缓冲区
+            if (!((CompletableFuture<RedisPayload>) future).complete(payload) && payload != null) {
+                payload.close();
+            }
+        }
+    }
+}
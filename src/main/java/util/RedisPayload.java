@@ -0,0 +1,89 @@
+package util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一条批量回复的内容，直接存放在池化的直接内存缓冲区里，从 socket 读出后不再拷贝成 byte[]
+ * <p>
+ * 可以取只读视图或输入流直接交给反序列化器；用完必须 close 归还缓冲区（建议 try-with-resources），
+ * close 之后之前取得的视图和输入流都不能再使用。
+ */
+public final class RedisPayload implements AutoCloseable {
+    private final ByteBuffer buffer;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    RedisPayload(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public int length() {
+        return buffer.remaining();
+    }
+
+    /**
+     * 只读视图，position 为 0，limit 为内容长度
+     */
+    public ByteBuffer buffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public InputStream inputStream() {
+        return new BufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * 拷贝出一个 byte[]，只在调用方必须使用 byte[] 时使用
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            RespBufferPool.release(buffer);
+        }
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 连接池预热：并行地为每个节点建立 connections 个空闲连接（只做 connect + AUTH + SELECT，不 PING），
+ * 并把已注册的 Lua 脚本预先加载到节点上，打印每个节点的耗时
+ */
+final class RedisPoolWarmer {
+    private static final Logger log = LoggerFactory.getLogger(RedisPoolWarmer.class);
+
+    private RedisPoolWarmer() {
+    }
+
+    /**
+     * 全部节点预热成功时返回 true
+     *
+     * @param names       节点名，只用于日志
+     * @param pools       与 names 一一对应的连接池
+     * @param connections 与 names 一一对应的预建连接数
+     */
+    static boolean warmUp(List<String> names, List<? extends Pool<Jedis>> pools, int[] connections,
+                          RedisScriptRegistry scripts) {
+        long begin = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, pools.size()), runnable -> {
+            Thread thread = new Thread(runnable, "redis-pool-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>(pools.size());
+            for (int i = 0; i < pools.size(); i++) {
+                String name = names.get(i);
+                Pool<Jedis> pool = pools.get(i);
+                int count = connections[i];
+                futures.add(CompletableFuture.supplyAsync(() -> warmUp(name, pool, count, scripts), executor));
+            }
+            boolean ready = true;
+            for (CompletableFuture<Boolean> future : futures) {
+                ready &= future.join();
+            }
+            log.info("redis pools warmed up in " + (System.nanoTime() - begin) / 1000000 + " ms, ready: " + ready);
+            return ready;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean warmUp(String name, Pool<Jedis> pool, int connections, RedisScriptRegistry scripts) {
+        long begin = System.nanoTime();
+        try {
+            int missing = connections - pool.getNumIdle();
+            if (missing > 0) {
+                pool.addObjects(missing);
+            }
+            long connected = System.nanoTime();
+            int loaded = 0;
+            if (scripts != null && !scripts.getScripts().isEmpty()) {
+                // 脚本缓存是节点级别的，一个连接加载一次即可
+                try (Jedis jedis = pool.getResource()) {
+                    loaded = scripts.loadAll(jedis);
+                }
+            }
+            long done = System.nanoTime();
+            log.info(String.format("redis pool %s warmed up: %d idle connections in %d ms, %d scripts loaded in %d ms",
+                    name, pool.getNumIdle(), (connected - begin) / 1000000, loaded, (done - connected) / 1000000));
+            return true;
+        } catch (Exception e) {
+            log.error("warm up redis pool " + name + " error", e);
+            return false;
+        }
+    }
+}
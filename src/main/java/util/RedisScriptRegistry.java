@@ -0,0 +1,160 @@
+package util;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lua 脚本注册表：脚本按名字注册一次，本地算好 SHA1，连接池预热时用 SCRIPT LOAD 预先加载到每个节点
+ * <p>
+ * 执行时只发 EVALSHA；记录每个节点已经加载过的脚本，第一次在某个节点上执行前先 SCRIPT LOAD，
+ * 节点重启或 SCRIPT FLUSH 后收到 NOSCRIPT 时只在该节点重新加载并重试一次。
+ */
+public class RedisScriptRegistry {
+    // 内置脚本：INCRBY 后设置过期时间，返回自增后的值
+    public static final String INCR_EXPIRE = "incrExpire";
+    // key 不存在时写入并设置过期时间（秒，0 表示不过期），返回已有的值，写入成功返回 nil
+    public static final String SET_IF_ABSENT = "setIfAbsent";
+    // 值等于 ARGV[1] 时才删除，用于释放自己持有的锁，返回删除的个数
+    public static final String DELETE_IF_EQUALS = "deleteIfEquals";
+    // 数据迁移用的 RESTORE：KEYS[1] 为 key，KEYS[2] 为它的迁移标记。标记已存在返回 0（已经迁移过，不再恢复旧值）；
+    // 否则设置标记（ARGV[3] 秒后过期），key 已存在返回 2，不存在时按 ARGV[1] 毫秒过期时间 RESTORE ARGV[2] 并返回 1
+    public static final String MIGRATE_RESTORE = "migrateRestore";
+    // 热点副本同步用的 RESTORE ... REPLACE，按 ARGV[1] 毫秒过期时间用 ARGV[2] 原子地覆盖 KEYS[1]
+    public static final String REPLACE_RESTORE = "replaceRestore";
+
+    private static final RedisScriptRegistry INSTANCE = new RedisScriptRegistry();
+
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+    // 已加载的 节点#SHA1
+    private final Set<String> loaded = ConcurrentHashMap.newKeySet();
+
+    public static RedisScriptRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private RedisScriptRegistry() {
+        register(INCR_EXPIRE, "local v = redis.call('INCRBY', KEYS[1], ARGV[1])\n"
+                + "redis.call('EXPIRE', KEYS[1], ARGV[2])\n"
+                + "return v");
+        register(SET_IF_ABSENT, "local v = redis.call('GET', KEYS[1])\n"
+                + "if v then return v end\n"
+                + "if tonumber(ARGV[2]) > 0 then redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[2])\n"
+                + "else redis.call('SET', KEYS[1], ARGV[1]) end\n"
+                + "return false");
+        register(MIGRATE_RESTORE, "if redis.call('EXISTS', KEYS[2]) == 1 then return 0 end\n"
+                + "redis.call('SET', KEYS[2], '1', 'EX', ARGV[3])\n"
+                + "if redis.call('EXISTS', KEYS[1]) == 1 then return 2 end\n"
+                + "redis.call('RESTORE', KEYS[1], ARGV[1], ARGV[2])\n"
+                + "return 1");
+        register(REPLACE_RESTORE, "return redis.call('RESTORE', KEYS[1], ARGV[1], ARGV[2], 'REPLACE')");
+        register(DELETE_IF_EQUALS, "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end\n"
+                + "return 0");
+    }
+
+    /**
+     * 注册脚本，返回脚本的 SHA1；同名脚本会被覆盖
+     */
+    public String register(String name, String lua) {
+        Script script = new Script(lua, sha1(lua));
+        scripts.put(name, script);
+        return script.sha;
+    }
+
+    public String getSha(String name) {
+        Script script = scripts.get(name);
+        return script == null ? null : script.sha;
+    }
+
+    public String getScript(String name) {
+        Script script = scripts.get(name);
+        return script == null ? null : script.lua;
+    }
+
+    public Map<String, Script> getScripts() {
+        return Collections.unmodifiableMap(scripts);
+    }
+
+    /**
+     * 把所有已注册的脚本加载到 jedis 所连的节点，返回加载的脚本数
+     */
+    public int loadAll(Jedis jedis) {
+        String node = node(jedis);
+        for (Script script : scripts.values()) {
+            jedis.scriptLoad(script.lua);
+            loaded.add(node + "#" + script.sha);
+        }
+        return scripts.size();
+    }
+
+    /**
+     * 用 EVALSHA 在 jedis 所连的节点上执行已注册的脚本，参数按 KEYS 在前、ARGV 在后排列
+     *
+     * @param keyCount 参数中 key 的个数
+     */
+    public Object evalsha(Jedis jedis, String name, int keyCount, byte[]... params) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("script not registered: " + name);
+        }
+        String id = node(jedis) + "#" + script.sha;
+        if (!loaded.contains(id)) {
+            jedis.scriptLoad(script.lua);
+            loaded.add(id);
+        }
+        byte[] sha = SafeEncoder.encode(script.sha);
+        try {
+            return jedis.evalsha(sha, keyCount, params);
+        } catch (JedisNoScriptException e) {
+            // 节点重启或执行过 SCRIPT FLUSH，重新加载后重试一次
+            jedis.scriptLoad(script.lua);
+            return jedis.evalsha(sha, keyCount, params);
+        }
+    }
+
+    private static String node(Jedis jedis) {
+        return jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+    }
+
+    static String sha1(String lua) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(lua.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 一个已注册的脚本
+     */
+    public static class Script {
+        private final String lua;
+        private final String sha;
+
+        Script(String lua, String sha) {
+            this.lua = lua;
+            this.sha = sha;
+        }
+
+        public String getLua() {
+            return lua;
+        }
+
+        public String getSha() {
+            return sha;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 直接内存缓冲区池，容量按 2 的幂从 4KB 到 4MB 分级，每级最多缓存 MAX_POOLED_BYTES 字节；
+ * 超过 4MB 的缓冲区直接分配、用完不回收
+ */
+final class RespBufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 22;
+    private static final int MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    @SuppressWarnings("unchecked")
+    private static final Queue<ByteBuffer>[] free = (Queue<ByteBuffer>[]) new Queue<?>[MAX_SHIFT - MIN_SHIFT + 1];
+    private static final AtomicInteger[] freeCounts = new AtomicInteger[free.length];
+
+    static {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private RespBufferPool() {
+    }
+
+    /**
+     * 取一个至少 size 字节的缓冲区，position 为 0，limit 为 size
+     */
+    static ByteBuffer acquire(int size) {
+        int level = level(size);
+        if (level < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = free[level].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (level + MIN_SHIFT));
+        } else {
+            freeCounts[level].decrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还后调用方不能再访问它及其任何视图
+     */
+    static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int level = level(capacity);
+        if (level < 0 || 1 << (level + MIN_SHIFT) != capacity) {
+            return;
+        }
+        if (freeCounts[level].incrementAndGet() > MAX_POOLED_BYTES / capacity) {
+            freeCounts[level].decrementAndGet();
+            return;
+        }
+        free[level].offer(buffer);
+    }
+
+    /**
+     * 容纳 size 字节的最小级别，超过最大级别返回 -1
+     */
+    private static int level(int size) {
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,222 @@
+package util;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RESP2 协议编解码
+ * <p>
+ * 回复解析成与 Jedis Protocol.read 相同的对象形式（状态和批量回复为 byte[]，整数为 Long，多批量为 List），
+ * 可以直接交给 BuilderFactory 转换成各命令的返回类型。
+ */
+final class RespCodec {
+    // 缓冲区里的数据还不够一条完整回复
+    static final Object INCOMPLETE = new Object();
+    static final int INCOMPLETE_LENGTH = -2;
+    static final int NOT_BULK = -3;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private RespCodec() {
+    }
+
+    /**
+     * 命令编码为 RESP 多批量请求后的字节数
+     */
+    static int encodedSize(Protocol.Command command, byte[]... args) {
+        int size = 1 + digits(args.length + 1) + 2 + bulkSize(command.raw);
+        for (byte[] arg : args) {
+            size += bulkSize(arg);
+        }
+        return size;
+    }
+
+    /**
+     * 把命令编码为 RESP 多批量请求，直接写入 out，out 至少要有 encodedSize 字节的剩余空间
+     */
+    static void encode(ByteBuffer out, Protocol.Command command, byte[]... args) {
+        out.put(Protocol.ASTERISK_BYTE);
+        writeNumber(out, args.length + 1);
+        writeBulk(out, command.raw);
+        for (byte[] arg : args) {
+            writeBulk(out, arg);
+        }
+    }
+
+    private static int bulkSize(byte[] value) {
+        return 1 + digits(value.length) + 2 + value.length + 2;
+    }
+
+    private static void writeBulk(ByteBuffer out, byte[] value) {
+        out.put(Protocol.DOLLAR_BYTE);
+        writeNumber(out, value.length);
+        out.put(value);
+        out.put(CR);
+        out.put(LF);
+    }
+
+    private static void writeNumber(ByteBuffer out, int value) {
+        int pos = out.position();
+        int end = pos + digits(value);
+        for (int i = end - 1; i >= pos; i--) {
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(end);
+        out.put(CR);
+        out.put(LF);
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * 从 buffer 当前位置解析一条完整回复；数据不完整时返回 INCOMPLETE，且 position 不变
+     */
+    static Object decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        Object reply = read(buffer);
+        if (reply == INCOMPLETE) {
+            buffer.position(start);
+        }
+        return reply;
+    }
+
+    /**
+     * 当前位置是批量回复时读出它的头部并返回内容长度（空回复为 -1），position 移到内容开始处；
+     * 头部不完整返回 INCOMPLETE_LENGTH，不是批量回复返回 NOT_BULK，这两种情况 position 不变
+     */
+    static int readBulkLength(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return INCOMPLETE_LENGTH;
+        }
+        int start = buffer.position();
+        if (buffer.get(start) != Protocol.DOLLAR_BYTE) {
+            return NOT_BULK;
+        }
+        buffer.position(start + 1);
+        Object length = readNumber(buffer);
+        if (length == INCOMPLETE) {
+            buffer.position(start);
+            return INCOMPLETE_LENGTH;
+        }
+        return ((Long) length).intValue();
+    }
+
+    private static Object read(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return INCOMPLETE;
+        }
+        byte type = buffer.get();
+        switch (type) {
+            case Protocol.PLUS_BYTE:
+                return readLine(buffer);
+            case Protocol.MINUS_BYTE: {
+                Object line = readLine(buffer);
+                return line == INCOMPLETE ? INCOMPLETE : new JedisDataException(SafeEncoder.encode((byte[]) line));
+            }
+            case Protocol.COLON_BYTE:
+                return readNumber(buffer);
+            case Protocol.DOLLAR_BYTE:
+                return readBulk(buffer);
+            case Protocol.ASTERISK_BYTE:
+                return readMultiBulk(buffer);
+            default:
+                throw new JedisConnectionException("Unknown reply: " + (char) type);
+        }
+    }
+
+    private static Object readBulk(ByteBuffer buffer) {
+        Object length = readNumber(buffer);
+        if (length == INCOMPLETE) {
+            return INCOMPLETE;
+        }
+        int len = ((Long) length).intValue();
+        if (len < 0) {
+            return null;
+        }
+        if (buffer.remaining() < len + 2) {
+            return INCOMPLETE;
+        }
+        byte[] value = new byte[len];
+        buffer.get(value);
+        buffer.position(buffer.position() + 2);
+        return value;
+    }
+
+    private static Object readMultiBulk(ByteBuffer buffer) {
+        Object count = readNumber(buffer);
+        if (count == INCOMPLETE) {
+            return INCOMPLETE;
+        }
+        int n = ((Long) count).intValue();
+        if (n < 0) {
+            return null;
+        }
+        List<Object> replies = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Object reply = read(buffer);
+            if (reply == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+            replies.add(reply);
+        }
+        return replies;
+    }
+
+    private static Object readNumber(ByteBuffer buffer) {
+        int end = lineEnd(buffer);
+        if (end < 0) {
+            return INCOMPLETE;
+        }
+        long value = 0;
+        boolean negative = false;
+        int pos = buffer.position();
+        if (buffer.get(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        for (; pos < end; pos++) {
+            value = value * 10 + (buffer.get(pos) - '0');
+        }
+        buffer.position(end + 2);
+        return negative ? -value : value;
+    }
+
+    private static Object readLine(ByteBuffer buffer) {
+        int end = lineEnd(buffer);
+        if (end < 0) {
+            return INCOMPLETE;
+        }
+        byte[] line = new byte[end - buffer.position()];
+        buffer.get(line);
+        buffer.position(end + 2);
+        return line;
+    }
+
+    /**
+     * 返回当前位置之后第一个 CRLF 中 CR 的下标，没有则返回 -1
+     */
+    private static int lineEnd(ByteBuffer buffer) {
+        int limit = buffer.limit() - 1;
+        for (int i = buffer.position(); i < limit; i++) {
+            if (buffer.get(i) == CR && buffer.get(i + 1) == LF) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
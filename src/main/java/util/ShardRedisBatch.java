@@ -0,0 +1,446 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ShardedJedisPipeline;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 类型化的批量命令
+ * <p>
+ * 先用 get / zincrby / hmget 等方法把命令排进批次，每个方法立即返回该命令的 Response，execute 之后再从 Response 取结果：
+ * <pre>
+ * ShardRedisBatch batch = shardRedisPoolManager.newBatch();
+ * Response&lt;String&gt; name = batch.hget("user:1", "name");
+ * Response&lt;Double&gt; score = batch.zincrby("rank", 1, "user:1");
+ * batch.execute();
+ * name.get();
+ * </pre>
+ * execute 时命令按分片分组，每个分片借一个连接用 pipeline 执行，各分片并行；单个分片上的命令超过 maxBatchSize 时
+ * 拆成多个 pipeline 依次执行，避免一次写出或读回过多数据。命令失败或所在分片失败时，对应 Response.get() 抛出 JedisDataException。
+ * 批次不是线程安全的，execute 之后可以继续排入新的命令再次执行。
+ */
+public class ShardRedisBatch {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisBatch.class);
+
+    // 结果已在分片的 pipeline 中解析过，原样返回
+    private static final Builder<Object> IDENTITY = new Builder<Object>() {
+        @Override
+        public Object build(Object data) {
+            return data;
+        }
+    };
+
+    private final ShardRedisPoolManager manager;
+    private int maxBatchSize;
+    private List<Command<?>> commands = new ArrayList<>();
+
+    ShardRedisBatch(ShardRedisPoolManager manager, int maxBatchSize) {
+        this.manager = manager;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public Response<String> get(String key) {
+        return read(key, p -> p.get(key));
+    }
+
+    public Response<byte[]> get(byte[] key) {
+        return read(key, p -> p.get(key));
+    }
+
+    public Response<String> set(String key, String value) {
+        return write(key, p -> p.set(key, value));
+    }
+
+    public Response<String> set(byte[] key, byte[] value) {
+        return write(key, p -> p.set(key, value));
+    }
+
+    public Response<String> setex(String key, int seconds, String value) {
+        return write(key, p -> p.setex(key, seconds, value));
+    }
+
+    public Response<String> setex(byte[] key, int seconds, byte[] value) {
+        return write(key, p -> p.setex(key, seconds, value));
+    }
+
+    public Response<Long> del(String key) {
+        return write(key, p -> p.del(key));
+    }
+
+    public Response<Long> del(byte[] key) {
+        return write(key, p -> p.del(key));
+    }
+
+    public Response<Boolean> exists(String key) {
+        return read(key, p -> p.exists(key));
+    }
+
+    public Response<Long> expire(String key, int seconds) {
+        return write(key, p -> p.expire(key, seconds));
+    }
+
+    public Response<Long> expire(byte[] key, int seconds) {
+        return write(key, p -> p.expire(key, seconds));
+    }
+
+    public Response<Long> ttl(String key) {
+        return read(key, p -> p.ttl(key));
+    }
+
+    public Response<Long> incr(String key) {
+        return write(key, p -> p.incr(key));
+    }
+
+    public Response<Long> incrBy(String key, long integer) {
+        return write(key, p -> p.incrBy(key, integer));
+    }
+
+    public Response<String> hget(String key, String field) {
+        return read(key, p -> p.hget(key, field));
+    }
+
+    public Response<byte[]> hget(byte[] key, byte[] field) {
+        return read(key, p -> p.hget(key, field));
+    }
+
+    public Response<Long> hset(String key, String field, String value) {
+        return write(key, p -> p.hset(key, field, value));
+    }
+
+    public Response<List<String>> hmget(String key, String... fields) {
+        return read(key, p -> p.hmget(key, fields));
+    }
+
+    public Response<String> hmset(String key, Map<String, String> hash) {
+        return write(key, p -> p.hmset(key, hash));
+    }
+
+    public Response<Map<String, String>> hgetAll(String key) {
+        return read(key, p -> p.hgetAll(key));
+    }
+
+    public Response<Long> hincrBy(String key, String field, long value) {
+        return write(key, p -> p.hincrBy(key, field, value));
+    }
+
+    public Response<Long> hdel(String key, String... fields) {
+        return write(key, p -> p.hdel(key, fields));
+    }
+
+    public Response<Long> lpush(String key, String... values) {
+        return write(key, p -> p.lpush(key, values));
+    }
+
+    public Response<Long> rpush(String key, String... values) {
+        return write(key, p -> p.rpush(key, values));
+    }
+
+    public Response<List<String>> lrange(String key, long start, long end) {
+        return read(key, p -> p.lrange(key, start, end));
+    }
+
+    public Response<Long> llen(String key) {
+        return read(key, p -> p.llen(key));
+    }
+
+    public Response<Long> sadd(String key, String... members) {
+        return write(key, p -> p.sadd(key, members));
+    }
+
+    public Response<Long> srem(String key, String... members) {
+        return write(key, p -> p.srem(key, members));
+    }
+
+    public Response<Set<String>> smembers(String key) {
+        return read(key, p -> p.smembers(key));
+    }
+
+    public Response<Boolean> sismember(String key, String member) {
+        return read(key, p -> p.sismember(key, member));
+    }
+
+    public Response<Long> zadd(String key, double score, String member) {
+        return write(key, p -> p.zadd(key, score, member));
+    }
+
+    public Response<Double> zincrby(String key, double score, String member) {
+        return write(key, p -> p.zincrby(key, score, member));
+    }
+
+    public Response<Long> zrem(String key, String... members) {
+        return write(key, p -> p.zrem(key, members));
+    }
+
+    public Response<Double> zscore(String key, String member) {
+        return read(key, p -> p.zscore(key, member));
+    }
+
+    public Response<Long> zrank(String key, String member) {
+        return read(key, p -> p.zrank(key, member));
+    }
+
+    public Response<Long> zrevrank(String key, String member) {
+        return read(key, p -> p.zrevrank(key, member));
+    }
+
+    public Response<Long> zcard(String key) {
+        return read(key, p -> p.zcard(key));
+    }
+
+    public Response<Set<String>> zrange(String key, long start, long end) {
+        return read(key, p -> p.zrange(key, start, end));
+    }
+
+    public Response<Set<String>> zrevrange(String key, long start, long end) {
+        return read(key, p -> p.zrevrange(key, start, end));
+    }
+
+    public Response<Set<Tuple>> zrevrangeWithScores(String key, long start, long end) {
+        return read(key, p -> p.zrevrangeWithScores(key, start, end));
+    }
+
+    /**
+     * 排入任意单 key 命令，按写命令处理
+     */
+    public <T> Response<T> add(String key, JedisCallback.DoInPipeline<T> command) {
+        return write(key, command);
+    }
+
+    public <T> Response<T> add(byte[] key, JedisCallback.DoInPipeline<T> command) {
+        return write(key, command);
+    }
+
+    private <T> Response<T> read(Object key, JedisCallback.DoInPipeline<T> command) {
+        return enqueue(key, false, command);
+    }
+
+    private <T> Response<T> write(Object key, JedisCallback.DoInPipeline<T> command) {
+        return enqueue(key, true, command);
+    }
+
+    private <T> Response<T> enqueue(Object key, boolean write, JedisCallback.DoInPipeline<T> command) {
+        Command<T> queued = new Command<>(key, write, command);
+        commands.add(queued);
+        return queued.response;
+    }
+
+    /**
+     * 已排入、尚未执行的命令数
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * 执行已排入的全部命令，所有分片都执行成功返回 true；单条命令的错误只体现在它自己的 Response 上
+     */
+    public boolean execute() {
+        List<Command<?>> pending = commands;
+        commands = new ArrayList<>();
+        if (pending.isEmpty()) {
+            return true;
+        }
+        ShardRedisConnectionFactory factory = manager.getFactory();
+        if (!factory.isShardPooled()) {
+            // ShardedJedisPipeline 自己按分片缓冲，每个分片一次往返
+            boolean success = true;
+            for (int from = 0; from < pending.size(); from += maxBatchSize) {
+                List<Command<?>> chunk = pending.subList(from, Math.min(pending.size(), from + maxBatchSize));
+                success &= manager.executeSharded(false, shardedJedis -> {
+                    ShardedJedisPipeline pipeline = shardedJedis.pipelined();
+                    List<Response<?>> responses = enqueue(pipeline, chunk);
+                    pipeline.sync();
+                    return complete(chunk, responses);
+                });
+            }
+            return finish(pending, success);
+        }
+
+        Map<Integer, List<Command<?>>> groups = new LinkedHashMap<>();
+        for (Command<?> command : pending) {
+            int shard;
+            if (command.key instanceof String) {
+                manager.migrateKey((String) command.key);
+                shard = factory.getShardIndex((String) command.key);
+            } else {
+                manager.migrateKey((byte[]) command.key);
+                shard = factory.getShardIndex((byte[]) command.key);
+            }
+            groups.computeIfAbsent(shard, s -> new ArrayList<>()).add(command);
+        }
+        // 和多 key 命令一样，其他分片交给 scatterExecutor，当前线程执行第一个分片
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(groups.size());
+        Map.Entry<Integer, List<Command<?>>> local = null;
+        for (Map.Entry<Integer, List<Command<?>>> group : groups.entrySet()) {
+            if (local == null) {
+                local = group;
+                continue;
+            }
+            futures.add(CompletableFuture.supplyAsync(() -> executeOnShard(group.getKey(), group.getValue()),
+                    manager.getScatterExecutor()));
+        }
+        boolean success = executeOnShard(local.getKey(), local.getValue());
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                success &= future.join();
+            } catch (CompletionException e) {
+                ShardRedisUnavailableException.rethrowIfUnavailable(e);
+                throw e;
+            }
+        }
+        return finish(pending, success);
+    }
+
+    /**
+     * 在一个分片上借一个连接，按 maxBatchSize 拆成多个 pipeline 依次执行；
+     * 集群模式下收到 MOVED / ASK 的命令在归还连接后逐条到目标节点重新执行
+     */
+    private boolean executeOnShard(int shard, List<Command<?>> group) {
+        boolean success = manager.executeOnShard(shard, false, jedis -> {
+            for (int from = 0; from < group.size(); from += maxBatchSize) {
+                List<Command<?>> chunk = group.subList(from, Math.min(group.size(), from + maxBatchSize));
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<?>> responses = enqueue(pipeline, chunk);
+                pipeline.sync();
+                complete(chunk, responses);
+            }
+            return true;
+        });
+        for (Command<?> command : group) {
+            if (command.redirection != null) {
+                command.redirect(manager.getFactory());
+            }
+        }
+        return success;
+    }
+
+    private static List<Response<?>> enqueue(PipelineBase pipeline, List<Command<?>> chunk) {
+        List<Response<?>> responses = new ArrayList<>(chunk.size());
+        for (Command<?> command : chunk) {
+            responses.add(command.enqueue(pipeline));
+        }
+        return responses;
+    }
+
+    private boolean complete(List<Command<?>> chunk, List<Response<?>> responses) {
+        for (int i = 0; i < chunk.size(); i++) {
+            chunk.get(i).complete(responses.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * 分片失败时把其中尚未完成的命令标记为失败，并把写命令同步到热点副本
+     */
+    private boolean finish(List<Command<?>> pending, boolean success) {
+        ShardRedisHotKeyReplicator replicator = manager.getHotKeyReplicator();
+        for (Command<?> command : pending) {
+            if (!command.done) {
+                command.fail(new JedisDataException("batch failed on the shard of this command"));
+            } else if (command.write && replicator != null) {
+                ShardRedisHotKeyReplicator.Replica replica = command.key instanceof String
+                        ? replicator.lookup((String) command.key) : replicator.lookup((byte[]) command.key);
+                if (replica != null) {
+                    replicator.sync(replica);
+                }
+            }
+        }
+        return success;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * 批次中的一条命令，response 是返回给调用方的句柄，执行后填入结果
+     */
+    private static class Command<T> {
+        private final Object key;
+        private final boolean write;
+        private final JedisCallback.DoInPipeline<T> command;
+        private final Response<T> response;
+        private volatile boolean done;
+        // 收到的 MOVED / ASK，执行完本分片后到目标节点重新执行
+        private volatile JedisRedirectionException redirection;
+
+        @SuppressWarnings("unchecked")
+        Command(Object key, boolean write, JedisCallback.DoInPipeline<T> command) {
+            this.key = key;
+            this.write = write;
+            this.command = command;
+            this.response = new Response<>((Builder<T>) IDENTITY);
+        }
+
+        Response<T> enqueue(PipelineBase pipeline) {
+            try {
+                return command.doIn(pipeline);
+            } catch (Exception e) {
+                // 入队阶段的异常（如参数非法）只影响这一条命令
+                log.error(e.getMessage(), e);
+                fail(e instanceof JedisDataException ? (JedisDataException) e : new JedisDataException(e));
+                return null;
+            }
+        }
+
+        /**
+         * 返回这条命令的错误，成功时返回 null；收到 MOVED / ASK 时先不结束，等 redirect 重新执行
+         */
+        JedisDataException complete(Response<?> reply) {
+            if (reply == null) {
+                return null;
+            }
+            JedisDataException error;
+            try {
+                response.set(reply.get());
+                done = true;
+                return null;
+            } catch (JedisRedirectionException e) {
+                redirection = e;
+                return e;
+            } catch (JedisDataException e) {
+                error = e;
+            } catch (Exception e) {
+                error = new JedisDataException(e);
+            }
+            fail(error);
+            return error;
+        }
+
+        void redirect(ShardRedisConnectionFactory factory) {
+            try {
+                response.set(factory.pipelineRedirected(redirection, command));
+                done = true;
+            } catch (JedisDataException e) {
+                fail(e);
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                fail(new JedisDataException(e));
+            }
+        }
+
+        void fail(JedisDataException e) {
+            response.set(e);
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 自动合批执行器
+ * <p>
+ * 并发线程提交的单 key 命令先按分片进入各自的队列，每个分片的 flush 线程在一个很短的窗口内把它们收集起来，
+ * 放进同一个 pipeline 里一次性写出，每个调用方仍然拿到自己那条命令的结果。
+ * 连接工厂为按分片建池模式时，每个分片只借用本分片的连接；否则退化为一个队列加 ShardedJedisPipeline。
+ */
+public class ShardRedisBatchExecutor {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisBatchExecutor.class);
+
+    // 合批窗口，单位微秒：第一条命令到达后最多再等这么久收集后续命令
+    private long batchWindowMicros = 200;
+    // 单批最多合并的命令数
+    private int maxBatchSize = 128;
+    // 调用方等待结果的最长时间，单位毫秒
+    private long waitTimeoutMillis = 3000;
+
+    private final ShardRedisConnectionFactory factory;
+    private final LinkedBlockingQueue<BatchCommand<?>>[] queues;
+    private final Thread[] flushers;
+    private volatile boolean running = true;
+
+    @SuppressWarnings("unchecked")
+    public ShardRedisBatchExecutor(ShardRedisConnectionFactory factory) {
+        this.factory = factory;
+        int shards = factory.isShardPooled() ? factory.getShardCount() : 1;
+        this.queues = (LinkedBlockingQueue<BatchCommand<?>>[]) new LinkedBlockingQueue<?>[shards];
+        this.flushers = new Thread[shards];
+        for (int i = 0; i < shards; i++) {
+            final int shard = i;
+            queues[i] = new LinkedBlockingQueue<>();
+            flushers[i] = new Thread(() -> flushLoop(shard), "shard-redis-batch-flusher-" + i);
+            flushers[i].setDaemon(true);
+            flushers[i].start();
+        }
+    }
+
+    /**
+     * 提交一条命令并阻塞等待它所在批次 flush 完成
+     */
+    public <T> T execute(String key, JedisCallback.DoInPipeline<T> command) {
+        return execute(factory.isShardPooled() ? factory.getShardIndex(key) : 0, command);
+    }
+
+    public <T> T execute(byte[] key, JedisCallback.DoInPipeline<T> command) {
+        return execute(factory.isShardPooled() ? factory.getShardIndex(key) : 0, command);
+    }
+
+    private <T> T execute(int shard, JedisCallback.DoInPipeline<T> command) {
+        if (!running) {
+            throw new JedisException("batch executor is shut down");
+        }
+        BatchCommand<T> batchCommand = new BatchCommand<>(command);
+        queues[shard].add(batchCommand);
+        try {
+            return batchCommand.future.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new JedisException(cause);
+        } catch (TimeoutException e) {
+            throw new JedisConnectionException("wait for batch result timeout", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisException(e);
+        }
+    }
+
+    /**
+     * 停止 flush 线程，队列中未执行的命令全部以异常结束
+     */
+    public void shutdown() {
+        running = false;
+        List<BatchCommand<?>> pending = new ArrayList<>();
+        for (int i = 0; i < queues.length; i++) {
+            flushers[i].interrupt();
+            queues[i].drainTo(pending);
+        }
+        fail(pending, new JedisException("batch executor is shut down"));
+    }
+
+    private void flushLoop(int shard) {
+        LinkedBlockingQueue<BatchCommand<?>> queue = queues[shard];
+        List<BatchCommand<?>> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                BatchCommand<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collect(queue, batch);
+                if (factory.isShardPooled()) {
+                    flush(shard, batch);
+                } else {
+                    flush(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                fail(batch, e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 在合批窗口内继续收集命令，直到窗口结束或者达到单批上限
+     */
+    private void collect(LinkedBlockingQueue<BatchCommand<?>> queue, List<BatchCommand<?>> batch)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(batchWindowMicros);
+        while (batch.size() < maxBatchSize) {
+            if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            BatchCommand<?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * 按分片建池模式：只借用本分片的一个连接，整批命令一次往返
+     */
+    private void flush(int shard, List<BatchCommand<?>> batch) {
+        Jedis jedis = factory.getConnection(shard);
+        if (jedis == null) {
+            fail(batch, new JedisConnectionException("could not get a resource from the pool"));
+            return;
+        }
+        boolean broken = false;
+        List<BatchCommand<?>> redirected = new ArrayList<>();
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<?>> responses = new ArrayList<>(batch.size());
+            for (BatchCommand<?> command : batch) {
+                responses.add(command.enqueue(pipeline));
+            }
+            pipeline.sync();
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i).complete(responses.get(i)) instanceof JedisRedirectionException) {
+                    redirected.add(batch.get(i));
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            fail(batch, e);
+            return;
+        } finally {
+            factory.returnResource(shard, jedis, broken);
+        }
+        // 集群模式下槽位已迁到其他节点的命令，归还本分片连接后逐条到目标节点重新执行
+        for (BatchCommand<?> command : redirected) {
+            command.redirect(factory);
+        }
+    }
+
+    private void flush(List<BatchCommand<?>> batch) {
+        ShardedJedis shardedJedis = factory.getConnection();
+        if (shardedJedis == null) {
+            fail(batch, new JedisConnectionException("could not get a resource from the pool"));
+            return;
+        }
+        boolean broken = false;
+        try {
+            ShardedJedisPipeline pipeline = shardedJedis.pipelined();
+            List<Response<?>> responses = new ArrayList<>(batch.size());
+            for (BatchCommand<?> command : batch) {
+                responses.add(command.enqueue(pipeline));
+            }
+            // ShardedJedisPipeline 按分片缓冲命令，sync 时每个分片只需要一次往返
+            pipeline.sync();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).complete(responses.get(i));
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            fail(batch, e);
+        } finally {
+            factory.returnResource(shardedJedis, broken);
+        }
+    }
+
+    private void fail(List<BatchCommand<?>> batch, Throwable e) {
+        for (BatchCommand<?> command : batch) {
+            command.future.completeExceptionally(e);
+        }
+    }
+
+    public long getBatchWindowMicros() {
+        return batchWindowMicros;
+    }
+
+    public void setBatchWindowMicros(long batchWindowMicros) {
+        this.batchWindowMicros = batchWindowMicros;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getWaitTimeoutMillis() {
+        return waitTimeoutMillis;
+    }
+
+    public void setWaitTimeoutMillis(long waitTimeoutMillis) {
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * 队列中的一条命令及其结果
+     */
+    private static class BatchCommand<T> {
+        private final JedisCallback.DoInPipeline<T> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private JedisRedirectionException redirection;
+
+        BatchCommand(JedisCallback.DoInPipeline<T> command) {
+            this.command = command;
+        }
+
+        Response<T> enqueue(PipelineBase pipeline) {
+            try {
+                return command.doIn(pipeline);
+            } catch (Exception e) {
+                // 入队阶段的异常（如参数非法）只影响这一条命令
+                future.completeExceptionally(e);
+                return null;
+            }
+        }
+
+        /**
+         * 返回这条命令的错误，成功时返回 null；收到 MOVED / ASK 时先不结束，等 redirect 重新执行
+         */
+        @SuppressWarnings("unchecked")
+        Exception complete(Response<?> response) {
+            if (response == null) {
+                return null;
+            }
+            try {
+                future.complete((T) response.get());
+                return null;
+            } catch (JedisRedirectionException e) {
+                redirection = e;
+                return e;
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+                return e;
+            }
+        }
+
+        void redirect(ShardRedisConnectionFactory factory) {
+            try {
+                future.complete(factory.pipelineRedirected(redirection, command));
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
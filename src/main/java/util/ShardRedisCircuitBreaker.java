@@ -0,0 +1,235 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 单个分片的熔断器
+ * <p>
+ * 关闭状态下按秒分桶统计最近 windowSeconds 秒的请求数、失败数和慢请求数，请求数不少于 minRequests 且失败率或慢请求率
+ * 超过阈值时打开；打开状态下所有请求直接拒绝，不再借连接；openMillis 之后进入半开状态，只放行一个探测请求，
+ * 成功则关闭熔断器，失败则重新打开。半开状态下只有探测请求的结果生效，打开之前发出、之后才结束的请求结果被忽略。
+ */
+public class ShardRedisCircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisCircuitBreaker.class);
+
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+    // 关闭状态下放行请求的令牌
+    public static final Object PASS = new Object();
+
+    private static final int REQUESTS = 0;
+    private static final int FAILURES = 1;
+    private static final int SLOW_CALLS = 2;
+
+    private final String name;
+    private int windowSeconds = 10;
+    private int minRequests = 20;
+    private double failureRateThreshold = 0.5;
+    // 慢请求阈值，0 表示不统计慢请求
+    private long slowCallMillis;
+    private double slowCallRateThreshold = 0.5;
+    private long openMillis = 5000;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    // 当前探测请求的令牌或 bindProbe 绑定的对象，为 null 时没有探测请求
+    private final AtomicReference<Object> probe = new AtomicReference<>();
+    private volatile long openedAt;
+
+    // 每个桶对应的秒数及三种计数，桶过期后由第一个写入的线程清零，并发下允许少量误差
+    private volatile AtomicLongArray bucketSeconds;
+    private volatile AtomicLongArray counts;
+
+    public ShardRedisCircuitBreaker(String name) {
+        this.name = name;
+        resetBuckets();
+    }
+
+    private void resetBuckets() {
+        bucketSeconds = new AtomicLongArray(windowSeconds);
+        counts = new AtomicLongArray(windowSeconds * 3);
+    }
+
+    /**
+     * 申请放行一个请求：拒绝时返回 null，关闭状态下返回 PASS；半开状态下只有抢到探测权的请求得到一个新的探测令牌，
+     * 之后用这个令牌（或 bindProbe 绑定的对象）记录结果
+     */
+    public Object tryAcquire() {
+        switch (state.get()) {
+            case CLOSED:
+                return PASS;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return null;
+                }
+                state.compareAndSet(OPEN, HALF_OPEN);
+                return acquireProbe();
+            default:
+                return acquireProbe();
+        }
+    }
+
+    private Object acquireProbe() {
+        Object token = new Object();
+        return probe.compareAndSet(null, token) ? token : null;
+    }
+
+    /**
+     * 把探测令牌换成之后记录结果时使用的对象，例如借到的连接
+     */
+    public void bindProbe(Object token, Object owner) {
+        if (token != PASS) {
+            probe.compareAndSet(token, owner);
+        }
+    }
+
+    /**
+     * 放弃探测权但不记录结果，例如连接池耗尽、请求没有真正发出时
+     */
+    public void releaseProbe(Object owner) {
+        if (owner != PASS) {
+            probe.compareAndSet(owner, null);
+        }
+    }
+
+    /**
+     * 记录一次成功，owner 为 tryAcquire 返回的令牌或 bindProbe 绑定的对象；半开状态下只有探测请求的结果生效
+     */
+    public void recordSuccess(Object owner, long elapsedNanos) {
+        if (state.get() != CLOSED) {
+            if (owner != null && owner != PASS && probe.get() == owner) {
+                close();
+            }
+            return;
+        }
+        boolean slow = slowCallMillis > 0 && elapsedNanos > TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        record(slow ? SLOW_CALLS : -1);
+    }
+
+    public void recordFailure(Object owner) {
+        if (state.get() != CLOSED) {
+            if (owner != null && owner != PASS && probe.get() == owner) {
+                open();
+            }
+            return;
+        }
+        record(FAILURES);
+    }
+
+    private void record(int kind) {
+        AtomicLongArray bucketSeconds = this.bucketSeconds;
+        AtomicLongArray counts = this.counts;
+        int window = bucketSeconds.length();
+        long second = System.currentTimeMillis() / 1000;
+        int bucket = (int) (second % window);
+        long current = bucketSeconds.get(bucket);
+        if (current != second && bucketSeconds.compareAndSet(bucket, current, second)) {
+            counts.set(bucket * 3 + REQUESTS, 0);
+            counts.set(bucket * 3 + FAILURES, 0);
+            counts.set(bucket * 3 + SLOW_CALLS, 0);
+        }
+        counts.incrementAndGet(bucket * 3 + REQUESTS);
+        if (kind < 0) {
+            return;
+        }
+        counts.incrementAndGet(bucket * 3 + kind);
+        // 只在失败或慢请求时汇总窗口，成功请求不额外计算
+        long requests = 0;
+        long failures = 0;
+        long slowCalls = 0;
+        for (int i = 0; i < window; i++) {
+            if (second - bucketSeconds.get(i) < window) {
+                requests += counts.get(i * 3 + REQUESTS);
+                failures += counts.get(i * 3 + FAILURES);
+                slowCalls += counts.get(i * 3 + SLOW_CALLS);
+            }
+        }
+        if (requests >= minRequests && (failures >= requests * failureRateThreshold
+                || (slowCallMillis > 0 && slowCalls >= requests * slowCallRateThreshold))) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        int previous = state.getAndSet(OPEN);
+        probe.set(null);
+        if (previous == CLOSED) {
+            log.error("circuit breaker opened: " + name);
+        }
+    }
+
+    private void close() {
+        resetBuckets();
+        state.set(CLOSED);
+        probe.set(null);
+        log.info("circuit breaker closed: " + name);
+    }
+
+    public int getState() {
+        return state.get();
+    }
+
+    public boolean isClosed() {
+        return state.get() == CLOSED;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    public void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        resetBuckets();
+    }
+
+    public int getMinRequests() {
+        return minRequests;
+    }
+
+    public void setMinRequests(int minRequests) {
+        this.minRequests = minRequests;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public long getSlowCallMillis() {
+        return slowCallMillis;
+    }
+
+    public void setSlowCallMillis(long slowCallMillis) {
+        this.slowCallMillis = slowCallMillis;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = openMillis;
+    }
+}
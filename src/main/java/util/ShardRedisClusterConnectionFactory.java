@@ -0,0 +1,401 @@
+package util;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Redis Cluster 版本的连接工厂，ShardRedisPoolManager 的 API 不变，换成这个工厂即运行在 Redis Cluster 上
+ * <p>
+ * 这里的“分片”是集群中的主节点：key 按 CRC16 算出槽位，再查槽位表得到节点下标，每个节点一个连接池。
+ * 启动时用 CLUSTER SLOTS 建立槽位表；命令收到 MOVED 时立即更新该槽位并在后台重建整张表（每秒最多一次），
+ * 收到 ASK 时只把这一条命令带上 ASKING 发给目标节点，槽位表不变。
+ * <p>
+ * 节点下标在工厂内固定不变，节点数上限为 maxNodes，ShardRedisCommandPolicy 等按分片下标建数组的组件用 getShardCount() 创建。
+ * 集群自己负责扩缩容和故障转移，不支持 ShardRedisMigration、热点 key 复制和分片熔断器。
+ */
+public class ShardRedisClusterConnectionFactory extends ShardRedisConnectionFactory {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisClusterConnectionFactory.class);
+
+    static final int SLOTS = 16384;
+
+    // 两次后台重建槽位表的最小间隔
+    private static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private final Set<HostAndPort> seeds;
+    private final GenericObjectPoolConfig poolConfig;
+    private final int connectionTimeout;
+    private final int soTimeout;
+    private final String password;
+
+    private final int maxNodes;
+    private final AtomicReferenceArray<JedisPool> nodePools;
+    private final AtomicReferenceArray<HostAndPort> nodes;
+    private final Map<String, Integer> nodeIndexes = new ConcurrentHashMap<>();
+    private final AtomicInteger nodeCount = new AtomicInteger();
+    // 槽位 -> 节点下标，-1 表示未知
+    private final AtomicIntegerArray slots = new AtomicIntegerArray(SLOTS);
+
+    private final Object refreshLock = new Object();
+    private final AtomicLong lastRefresh = new AtomicLong();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-redis-cluster-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ShardRedisClusterConnectionFactory(Set<HostAndPort> seeds, GenericObjectPoolConfig poolConfig) {
+        this(seeds, poolConfig, 2000, 2000, null, 32);
+    }
+
+    /**
+     * @param seeds    种子节点，任意几个可达的集群节点即可
+     * @param maxNodes 集群主节点数上限，节点下标的范围
+     */
+    public ShardRedisClusterConnectionFactory(Set<HostAndPort> seeds, GenericObjectPoolConfig poolConfig,
+                                              int connectionTimeout, int soTimeout, String password, int maxNodes) {
+        this.seeds = new LinkedHashSet<>(seeds);
+        this.poolConfig = poolConfig;
+        this.connectionTimeout = connectionTimeout;
+        this.soTimeout = soTimeout;
+        this.password = password;
+        this.maxNodes = maxNodes;
+        this.nodePools = new AtomicReferenceArray<>(maxNodes);
+        this.nodes = new AtomicReferenceArray<>(maxNodes);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            slots.set(slot, -1);
+        }
+        refreshSlots();
+    }
+
+    /**
+     * 根据 shardedRedis.properties 的配置创建：redis.cluster.nodes 为种子节点列表，连接池配置与分片模式相同
+     */
+    public static ShardRedisClusterConnectionFactory create(Properties props) {
+        int timeout = Integer.parseInt(props.getProperty("redis.timeout", "2000").trim());
+        int maxNodes = Integer.parseInt(props.getProperty("redis.cluster.maxNodes", "32").trim());
+        String password = props.getProperty("redis.password");
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        HealthCheckedJedisPool.configure(poolConfig);
+        applyPoolConfig(poolConfig, props, "redis.jedisPoolConfig.");
+
+        Set<HostAndPort> seeds = new LinkedHashSet<>();
+        for (String url : props.getProperty("redis.cluster.nodes", "").split(";")) {
+            url = url.trim();
+            if (url.isEmpty()) {
+                continue;
+            }
+            String[] hostAndPort = url.split(":");
+            seeds.add(new HostAndPort(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+        }
+        ShardRedisClusterConnectionFactory factory = new ShardRedisClusterConnectionFactory(seeds, poolConfig,
+                timeout, timeout, password == null || password.trim().isEmpty() ? null : password.trim(), maxNodes);
+        if (Boolean.parseBoolean(props.getProperty("redis.warmUp", "false").trim())) {
+            factory.warmUp();
+        }
+        return factory;
+    }
+
+    /**
+     * key 所在的槽位，按 Redis Cluster 规则：key 中第一个 "{" 与其后第一个 "}" 之间非空时只对这部分计算 CRC16
+     */
+    public static int getSlot(byte[] key) {
+        int from = 0;
+        int to = key.length;
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] == '{') {
+                for (int j = i + 1; j < key.length; j++) {
+                    if (key[j] == '}') {
+                        if (j > i + 1) {
+                            from = i + 1;
+                            to = j;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ key[i]) & 0xff]) & 0xffff;
+        }
+        return crc & (SLOTS - 1);
+    }
+
+    public static int getSlot(String key) {
+        int from = 0;
+        int to = key.length();
+        int open = key.indexOf('{');
+        if (open >= 0) {
+            int close = key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                from = open + 1;
+                to = close;
+            }
+        }
+        for (int i = from; i < to; i++) {
+            if (key.charAt(i) >= 0x80) {
+                // 非 ASCII 字符按 UTF-8 编码后计算
+                return getSlot(SafeEncoder.encode(key.substring(from, to)));
+            }
+        }
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ key.charAt(i)) & 0xff]) & 0xffff;
+        }
+        return crc & (SLOTS - 1);
+    }
+
+    @Override
+    public int getShardIndex(byte[] key) {
+        return nodeOf(getSlot(key));
+    }
+
+    @Override
+    public int getShardIndex(String key) {
+        return nodeOf(getSlot(key));
+    }
+
+    /**
+     * 槽位所在节点；槽位未知时在后台重建槽位表，先返回任意一个节点，由 MOVED 纠正
+     */
+    private int nodeOf(int slot) {
+        int node = slots.get(slot);
+        if (node < 0) {
+            scheduleRefresh();
+            return 0;
+        }
+        return node;
+    }
+
+    @Override
+    public int redirect(JedisRedirectionException e) {
+        int node = nodeIndex(e.getTargetNode());
+        if (node >= 0 && e instanceof JedisMovedDataException) {
+            slots.set(e.getSlot(), node);
+            scheduleRefresh();
+        }
+        return node;
+    }
+
+    private void scheduleRefresh() {
+        long now = System.currentTimeMillis();
+        long last = lastRefresh.get();
+        if (now - last < REFRESH_INTERVAL_MILLIS || !lastRefresh.compareAndSet(last, now)) {
+            return;
+        }
+        refresher.execute(this::refreshSlots);
+    }
+
+    /**
+     * 用 CLUSTER SLOTS 重建槽位表，依次尝试已知节点和种子节点，返回是否成功
+     */
+    public boolean refreshSlots() {
+        synchronized (refreshLock) {
+            Set<HostAndPort> candidates = new LinkedHashSet<>();
+            for (int i = 0; i < nodeCount.get(); i++) {
+                HostAndPort node = nodes.get(i);
+                if (node != null) {
+                    candidates.add(node);
+                }
+            }
+            candidates.addAll(seeds);
+            for (HostAndPort node : candidates) {
+                Jedis jedis = new Jedis(node.getHost(), node.getPort(), connectionTimeout, soTimeout);
+                try {
+                    if (password != null) {
+                        jedis.auth(password);
+                    }
+                    applySlots(node, jedis.clusterSlots());
+                    return true;
+                } catch (Exception e) {
+                    log.error("refresh cluster slots error, node " + node, e);
+                } finally {
+                    jedis.close();
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * CLUSTER SLOTS 的每一项为 [起始槽位, 结束槽位, [主节点 host, port, id], 从节点...]
+     */
+    @SuppressWarnings("unchecked")
+    private void applySlots(HostAndPort queried, List<Object> ranges) {
+        int[] table = new int[SLOTS];
+        Arrays.fill(table, -1);
+        for (Object item : ranges) {
+            List<Object> range = (List<Object>) item;
+            int start = ((Long) range.get(0)).intValue();
+            int end = ((Long) range.get(1)).intValue();
+            List<Object> master = (List<Object>) range.get(2);
+            String host = SafeEncoder.encode((byte[]) master.get(0));
+            int port = ((Long) master.get(1)).intValue();
+            int node = nodeIndex(new HostAndPort(host.isEmpty() ? queried.getHost() : host, port));
+            if (node < 0) {
+                continue;
+            }
+            for (int slot = start; slot <= end; slot++) {
+                table[slot] = node;
+            }
+        }
+        for (int slot = 0; slot < SLOTS; slot++) {
+            slots.set(slot, table[slot]);
+        }
+    }
+
+    /**
+     * 节点的下标，新节点分配下一个下标并建立连接池；超过 maxNodes 时返回 -1
+     */
+    private int nodeIndex(HostAndPort node) {
+        Integer index = nodeIndexes.get(node.toString());
+        if (index != null) {
+            return index;
+        }
+        synchronized (nodeIndexes) {
+            index = nodeIndexes.get(node.toString());
+            if (index != null) {
+                return index;
+            }
+            int next = nodeCount.get();
+            if (next >= maxNodes) {
+                log.error("cluster node ignored, maxNodes " + maxNodes + " reached: " + node);
+                return -1;
+            }
+            nodePools.set(next, new HealthCheckedJedisPool(poolConfig, node.getHost(), node.getPort(),
+                    connectionTimeout, soTimeout, password, 0, null, false, null, null, null));
+            nodes.set(next, node);
+            nodeCount.incrementAndGet();
+            nodeIndexes.put(node.toString(), next);
+            log.info("cluster node added: " + node + ", index " + next);
+            return next;
+        }
+    }
+
+    @Override
+    public boolean isShardPooled() {
+        return true;
+    }
+
+    @Override
+    public int getShardCount() {
+        return maxNodes;
+    }
+
+    @Override
+    public String getShardName(int shard) {
+        HostAndPort node = nodes.get(shard);
+        return node == null ? "unknown-" + shard : node.toString();
+    }
+
+    @Override
+    public Jedis getConnection(int shard) {
+        JedisPool pool = nodePools.get(shard);
+        if (pool == null) {
+            return null;
+        }
+        try {
+            return pool.getResource();
+        } catch (Exception e) {
+            log.error("getRedisClent error, node " + getShardName(shard), e);
+        }
+        return null;
+    }
+
+    @Override
+    public void returnResource(int shard, Jedis jedis, boolean broken, long elapsedNanos) {
+        // 槽位表刷新后下标可能已对应新的连接池，连接按借出时的连接池归还
+        release(jedis, broken);
+    }
+
+    @Override
+    public void validateIdle(int shard) {
+        JedisPool pool = nodePools.get(shard);
+        if (pool instanceof HealthCheckedJedisPool) {
+            ((HealthCheckedJedisPool) pool).validateIdle();
+        }
+    }
+
+    @Override
+    public void invalidate(int shard, Jedis jedis) {
+        release(jedis, true);
+    }
+
+    @Override
+    public JedisPool getShardPool(int shard) {
+        return nodePools.get(shard);
+    }
+
+    @Override
+    public void enableCircuitBreakers() {
+        throw new UnsupportedOperationException("circuit breakers are not supported on redis cluster");
+    }
+
+    @Override
+    public boolean warmUp() {
+        List<String> names = new ArrayList<>();
+        List<JedisPool> pools = new ArrayList<>();
+        for (int i = 0; i < nodeCount.get(); i++) {
+            names.add(getShardName(i));
+            pools.add(nodePools.get(i));
+        }
+        int[] connections = new int[pools.size()];
+        Arrays.fill(connections, poolConfig.getMinIdle());
+        return setReady(RedisPoolWarmer.warmUp(names, pools, connections, RedisScriptRegistry.getInstance()));
+    }
+
+    /**
+     * 已知的集群主节点，下标即节点下标
+     */
+    public List<HostAndPort> getNodes() {
+        List<HostAndPort> list = new ArrayList<>();
+        for (int i = 0; i < nodeCount.get(); i++) {
+            list.add(nodes.get(i));
+        }
+        return list;
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdown();
+        for (int i = 0; i < nodeCount.get(); i++) {
+            nodePools.get(i).close();
+        }
+    }
+}
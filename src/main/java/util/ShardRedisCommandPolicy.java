@@ -0,0 +1,275 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Protocol;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * 命令级别的超时预算与对冲读
+ * <p>
+ * 超时预算：命令执行前把连接的 socket 读超时临时改为该命令的预算，超时即视为失败、连接作废，
+ * 不再等满 shardedRedis.properties 里的 redis.timeout。多 key 命令（MGET、MSET、多 key DEL）、pipeline 和
+ * SCAN 删除这类不对应单个命令的调用耗时随 key 数增长，不受预算限制，也不计入对冲读的延迟统计。
+ * <p>
+ * 对冲读：只读命令先发给一个分片，超过该分片最近延迟的 p95（不低于 minHedgeDelayMillis）仍未返回时，
+ * 再向热点副本或同一分片的另一个连接发一份相同的请求，取先返回的结果。对冲读在独立线程池中执行。
+ */
+public class ShardRedisCommandPolicy {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisCommandPolicy.class);
+
+    // 命令执行失败的标记，与 null 结果区分
+    static final Object FAILED = new Object();
+
+    private static final int LATENCY_SAMPLES = 1024;
+
+    // 默认超时预算，0 表示使用连接本身的超时
+    private int defaultBudgetMillis;
+    private final Map<Protocol.Command, Integer> budgets = new EnumMap<>(Protocol.Command.class);
+
+    private boolean hedging;
+    private double hedgePercentile = 0.95;
+    private long minHedgeDelayMillis = 5;
+
+    // 每个分片最近 LATENCY_SAMPLES 次命令的耗时（纳秒），环形覆盖
+    private final AtomicLongArray[] latencies;
+    private final AtomicInteger[] latencyIndexes;
+    private volatile long[] hedgeDelayNanos;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "shard-redis-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-redis-latency");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder hedgedReads = new LongAdder();
+    private final LongAdder hedgesFired = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder deadlineExceeded = new LongAdder();
+
+    public ShardRedisCommandPolicy(int shards) {
+        this.latencies = new AtomicLongArray[shards];
+        this.latencyIndexes = new AtomicInteger[shards];
+        this.hedgeDelayNanos = new long[shards];
+        for (int i = 0; i < shards; i++) {
+            latencies[i] = new AtomicLongArray(LATENCY_SAMPLES);
+            latencyIndexes[i] = new AtomicInteger();
+        }
+        Arrays.fill(hedgeDelayNanos, TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis));
+        scheduler.scheduleAtFixedRate(this::updateHedgeDelays, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 命令的超时预算，单位毫秒，0 表示不限制；command 为 null 表示多 key 或 pipeline 调用，不限制
+     */
+    public int getBudgetMillis(Protocol.Command command) {
+        if (command == null) {
+            return 0;
+        }
+        Integer budget = budgets.get(command);
+        return budget != null ? budget : defaultBudgetMillis;
+    }
+
+    public void setBudgetMillis(Protocol.Command command, int millis) {
+        budgets.put(command, millis);
+    }
+
+    void recordLatency(int shard, long nanos) {
+        int i = latencyIndexes[shard].getAndIncrement() & (LATENCY_SAMPLES - 1);
+        latencies[shard].set(i, nanos);
+    }
+
+    void recordDeadlineExceeded() {
+        deadlineExceeded.increment();
+    }
+
+    private void updateHedgeDelays() {
+        try {
+            long min = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+            long[] delays = new long[latencies.length];
+            for (int shard = 0; shard < latencies.length; shard++) {
+                int recorded = latencyIndexes[shard].get();
+                int count = recorded < 0 || recorded > LATENCY_SAMPLES ? LATENCY_SAMPLES : recorded;
+                long[] samples = new long[count];
+                for (int i = 0; i < count; i++) {
+                    samples[i] = latencies[shard].get(i);
+                }
+                Arrays.sort(samples);
+                long percentile = count == 0 ? 0 : samples[Math.min(count - 1, (int) (count * hedgePercentile))];
+                delays[shard] = Math.max(min, percentile);
+            }
+            hedgeDelayNanos = delays;
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 对冲执行一次读：call 在线程池中对 shard 执行，超过对冲延迟仍未返回时再对 hedgeShard 执行一次，返回先成功的结果；
+     * call 失败时返回 FAILED，两次都失败返回 fallback；都失败且其中有分片熔断（failFast）时抛出 ShardRedisUnavailableException
+     */
+    @SuppressWarnings("unchecked")
+    <T> T hedge(int shard, int hedgeShard, T fallback, IntFunction<Object> call) {
+        hedgedReads.increment();
+        Race race = new Race();
+        race.launch(shard, false, call);
+        Object result;
+        try {
+            result = race.winner.get(hedgeDelayNanos[shard], TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            hedgesFired.increment();
+            race.launch(hedgeShard, true, call);
+            try {
+                result = race.winner.join();
+            } catch (CompletionException ex) {
+                ShardRedisUnavailableException.rethrowIfUnavailable(ex);
+                log.error(ex.getMessage(), ex);
+                return fallback;
+            }
+        } catch (Exception e) {
+            ShardRedisUnavailableException.rethrowIfUnavailable(e);
+            log.error(e.getMessage(), e);
+            return fallback;
+        }
+        return result == FAILED ? fallback : (T) result;
+    }
+
+    /**
+     * 一次对冲读中的所有请求，第一个成功的结果胜出
+     */
+    private class Race {
+        private final CompletableFuture<Object> winner = new CompletableFuture<>();
+        private int launched;
+        private int failed;
+        // 失败的请求中分片熔断的异常，所有请求都失败时交给调用方
+        private ShardRedisUnavailableException unavailable;
+
+        synchronized void launch(int shard, boolean hedge, IntFunction<Object> call) {
+            if (winner.isDone()) {
+                return;
+            }
+            launched++;
+            executor.execute(() -> {
+                Object result = FAILED;
+                try {
+                    result = call.apply(shard);
+                } catch (ShardRedisUnavailableException e) {
+                    result = e;
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                    result = FAILED;
+                } finally {
+                    finish(result, hedge);
+                }
+            });
+        }
+
+        synchronized void finish(Object result, boolean hedge) {
+            if (result instanceof ShardRedisUnavailableException) {
+                unavailable = (ShardRedisUnavailableException) result;
+                result = FAILED;
+            }
+            if (result == FAILED) {
+                if (++failed == launched) {
+                    if (unavailable != null) {
+                        winner.completeExceptionally(unavailable);
+                    } else {
+                        winner.complete(FAILED);
+                    }
+                }
+                return;
+            }
+            if (winner.complete(result) && hedge) {
+                hedgesWon.increment();
+            }
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * 使用对冲执行的读次数
+     */
+    public long getHedgedReads() {
+        return hedgedReads.sum();
+    }
+
+    /**
+     * 超过对冲延迟、实际发出了第二个请求的次数
+     */
+    public long getHedgesFired() {
+        return hedgesFired.sum();
+    }
+
+    /**
+     * 第二个请求先返回的次数
+     */
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * 因超过超时预算而失败的命令数
+     */
+    public long getDeadlineExceeded() {
+        return deadlineExceeded.sum();
+    }
+
+    public long getHedgeDelayMillis(int shard) {
+        return TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos[shard]);
+    }
+
+    public int getDefaultBudgetMillis() {
+        return defaultBudgetMillis;
+    }
+
+    public void setDefaultBudgetMillis(int defaultBudgetMillis) {
+        this.defaultBudgetMillis = defaultBudgetMillis;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public long getMinHedgeDelayMillis() {
+        return minHedgeDelayMillis;
+    }
+
+    public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+    }
+}
@@ -1,20 +1,252 @@
 package util;
 
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
 import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
 
 public class ShardRedisConnectionFactory {
     private static final Logger log = LoggerFactory.getLogger(ShardRedisConnectionFactory.class);
+    // 集群模式下一条命令最多跟随的 MOVED / ASK 次数
+    static final int MAX_REDIRECTS = 5;
 
     private ShardedJedisPool shardedJedisPool;
 
+    // 按分片独立的连接池，下标与 router 中的分片下标一致
+    private ShardRedisRouter router;
+    private JedisPool[] shardPools;
+    // 每个分片的熔断器，为 null 时不熔断
+    private ShardRedisCircuitBreaker[] circuitBreakers;
+    // 每个分片预热时建立的连接数，取该分片连接池的 minIdle
+    private int[] warmUpConnections;
+    private volatile boolean ready;
+
     public ShardRedisConnectionFactory(ShardedJedisPool shardedJedisPool) {
         this.shardedJedisPool = shardedJedisPool;
     }
 
+    /**
+     * 供自行管理连接池的子类使用，如 ShardRedisClusterConnectionFactory
+     */
+    protected ShardRedisConnectionFactory() {
+    }
+
+    /**
+     * 传入创建 shardedJedisPool 时使用的分片列表，计算 key 所在分片时不再借用 ShardedJedis
+     */
+    public ShardRedisConnectionFactory(ShardedJedisPool shardedJedisPool, List<JedisShardInfo> shards) {
+        this.shardedJedisPool = shardedJedisPool;
+        this.router = new ShardRedisRouter(shards);
+    }
+
+    public ShardRedisConnectionFactory(List<JedisShardInfo> shards, GenericObjectPoolConfig poolConfig) {
+        this(shards, poolConfig, Collections.<String, GenericObjectPoolConfig>emptyMap());
+    }
+
+    /**
+     * 每个分片一个连接池，先按 key 路由到分片，再只从该分片的池中借连接
+     *
+     * @param shards           分片列表
+     * @param poolConfig       默认连接池配置
+     * @param shardPoolConfigs 单个分片的连接池配置，key 为 host:port，未配置的分片使用默认配置
+     */
+    public ShardRedisConnectionFactory(List<JedisShardInfo> shards, GenericObjectPoolConfig poolConfig,
+                                       Map<String, GenericObjectPoolConfig> shardPoolConfigs) {
+        this(shards, poolConfig, shardPoolConfigs, false);
+    }
+
+    /**
+     * @param keyTag 是否按 key 中的 {tag} 路由，开启后带 tag 的 key 的归属会与 ShardedJedisPool 不同
+     */
+    public ShardRedisConnectionFactory(List<JedisShardInfo> shards, GenericObjectPoolConfig poolConfig,
+                                       Map<String, GenericObjectPoolConfig> shardPoolConfigs, boolean keyTag) {
+        this.router = new ShardRedisRouter(shards, keyTag);
+        this.shardPools = new JedisPool[router.size()];
+        this.warmUpConnections = new int[router.size()];
+        for (int i = 0; i < router.size(); i++) {
+            JedisShardInfo shard = router.getShardInfo(i);
+            GenericObjectPoolConfig config = shardPoolConfigs.get(shardName(shard));
+            if (config == null) {
+                config = poolConfig;
+            }
+            shardPools[i] = createPool(shard, config);
+            warmUpConnections[i] = config.getMinIdle();
+        }
+    }
+
+    /**
+     * 根据 shardedRedis.properties 的配置创建按分片建池的连接工厂
+     * <p>
+     * 单个分片可以用 redis.jedisPoolConfig.{host:port}.maxTotal / maxIdle / minIdle 覆盖默认配置，
+     * redis.keyTag=true 时按 key 中的 {tag} 路由，redis.warmUp=true 时创建后立即预热连接池；
+     * redis.cluster.enabled=true 时改为连接 Redis Cluster，见 ShardRedisClusterConnectionFactory
+     */
+    public static ShardRedisConnectionFactory create(Properties props) {
+        if (Boolean.parseBoolean(props.getProperty("redis.cluster.enabled", "false").trim())) {
+            return ShardRedisClusterConnectionFactory.create(props);
+        }
+        int timeout = Integer.parseInt(props.getProperty("redis.timeout", "2000"));
+        String prefix = "redis.jedisPoolConfig.";
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        HealthCheckedJedisPool.configure(poolConfig);
+        applyPoolConfig(poolConfig, props, prefix);
+
+        List<JedisShardInfo> shards = new ArrayList<>();
+        Map<String, GenericObjectPoolConfig> shardPoolConfigs = new HashMap<>();
+        for (String url : props.getProperty(prefix + "urls", "").split(";")) {
+            url = url.trim();
+            if (url.isEmpty()) {
+                continue;
+            }
+            String[] hostAndPort = url.split(":");
+            shards.add(new JedisShardInfo(hostAndPort[0], Integer.parseInt(hostAndPort[1]), timeout));
+
+            String shardPrefix = prefix + url + ".";
+            if (props.stringPropertyNames().stream().anyMatch(name -> name.startsWith(shardPrefix))) {
+                GenericObjectPoolConfig shardConfig = poolConfig.clone();
+                applyPoolConfig(shardConfig, props, shardPrefix);
+                shardPoolConfigs.put(url, shardConfig);
+            }
+        }
+        boolean keyTag = Boolean.parseBoolean(props.getProperty("redis.keyTag", "false").trim());
+        ShardRedisConnectionFactory factory = new ShardRedisConnectionFactory(shards, poolConfig, shardPoolConfigs, keyTag);
+        if (Boolean.parseBoolean(props.getProperty("redis.circuitBreaker.enabled", "false").trim())) {
+            factory.enableCircuitBreakers();
+            for (ShardRedisCircuitBreaker breaker : factory.circuitBreakers) {
+                applyCircuitBreakerConfig(breaker, props, "redis.circuitBreaker.");
+            }
+        }
+        if (Boolean.parseBoolean(props.getProperty("redis.warmUp", "false").trim())) {
+            factory.warmUp();
+        }
+        return factory;
+    }
+
+    private static void applyCircuitBreakerConfig(ShardRedisCircuitBreaker breaker, Properties props, String prefix) {
+        String value;
+        if ((value = props.getProperty(prefix + "failureRate")) != null) {
+            breaker.setFailureRateThreshold(Double.parseDouble(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "slowCallMillis")) != null) {
+            breaker.setSlowCallMillis(Long.parseLong(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "minRequests")) != null) {
+            breaker.setMinRequests(Integer.parseInt(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "openMillis")) != null) {
+            breaker.setOpenMillis(Long.parseLong(value.trim()));
+        }
+    }
+
+    /**
+     * 为每个分片开启熔断器，仅在按分片建池模式下有效
+     */
+    public void enableCircuitBreakers() {
+        ShardRedisCircuitBreaker[] breakers = new ShardRedisCircuitBreaker[shardPools.length];
+        for (int i = 0; i < breakers.length; i++) {
+            breakers[i] = new ShardRedisCircuitBreaker(shardName(router.getShardInfo(i)));
+        }
+        this.circuitBreakers = breakers;
+    }
+
+    static void applyPoolConfig(GenericObjectPoolConfig config, Properties props, String prefix) {
+        String value;
+        if ((value = props.getProperty(prefix + "maxTotal")) != null) {
+            config.setMaxTotal(Integer.parseInt(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "maxIdle")) != null) {
+            config.setMaxIdle(Integer.parseInt(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "minIdle")) != null) {
+            config.setMinIdle(Integer.parseInt(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "maxWaitTime")) != null) {
+            config.setMaxWaitMillis(Long.parseLong(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "testOnBorrow")) != null) {
+            config.setTestOnBorrow(Boolean.parseBoolean(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "testWhileIdle")) != null) {
+            config.setTestWhileIdle(Boolean.parseBoolean(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "timeBetweenEvictionRunsMillis")) != null) {
+            config.setTimeBetweenEvictionRunsMillis(Long.parseLong(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "numTestsPerEvictionRun")) != null) {
+            config.setNumTestsPerEvictionRun(Integer.parseInt(value.trim()));
+        }
+    }
+
+    private static JedisPool createPool(JedisShardInfo shard, GenericObjectPoolConfig config) {
+        return new HealthCheckedJedisPool(config, shard.getHost(), shard.getPort(), shard.getConnectionTimeout(),
+                shard.getSoTimeout(), shard.getPassword(), shard.getDb(), null, shard.getSsl(),
+                shard.getSslSocketFactory(), shard.getSslParameters(), shard.getHostnameVerifier());
+    }
+
+    static String shardName(JedisShardInfo shard) {
+        return shard.getHost() + ":" + shard.getPort();
+    }
+
+    /**
+     * 并行预热所有分片的连接池：每个分片建立 minIdle 个连接并预加载已注册的 Lua 脚本，全部成功后 isReady 返回 true。
+     * 仅适用于按分片建池模式
+     */
+    public boolean warmUp() {
+        if (shardPools == null) {
+            log.error("warmUp error: only supported in shard-pooled mode");
+            return false;
+        }
+        List<String> names = new ArrayList<>(shardPools.length);
+        for (JedisShardInfo shard : router.getShards()) {
+            names.add(shardName(shard));
+        }
+        return setReady(RedisPoolWarmer.warmUp(names, Arrays.asList(shardPools), warmUpConnections,
+                RedisScriptRegistry.getInstance()));
+    }
+
+    protected boolean setReady(boolean ready) {
+        this.ready = ready;
+        return ready;
+    }
+
+    /**
+     * 连接池是否已预热完成，可作为应用就绪检查的一部分
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 是否为按分片建池模式
+     */
+    public boolean isShardPooled() {
+        return shardPools != null;
+    }
+
     public ShardedJedis getConnection() {
+        if (shardedJedisPool == null) {
+            log.error("getRedisClent error: ShardedJedisPool is not configured in shard-pooled mode");
+            return null;
+        }
         try {
             ShardedJedis shardJedis = shardedJedisPool.getResource();
             return shardJedis;
@@ -24,6 +256,127 @@ public class ShardRedisConnectionFactory {
         return null;
     }
 
+    /**
+     * 分片下标的范围，按分片下标建数组的组件（ShardRedisCommandPolicy、合批执行器等）按这个大小创建
+     */
+    public int getShardCount() {
+        return shardPools != null ? shardPools.length : 1;
+    }
+
+    public String getShardName(int shard) {
+        return shardName(router.getShardInfo(shard));
+    }
+
+    /**
+     * 命令收到 MOVED / ASK 时调用，返回应该重试的分片下标；不是集群模式时返回 -1
+     */
+    public int redirect(JedisRedirectionException e) {
+        return -1;
+    }
+
+    /**
+     * 命令收到 MOVED / ASK 时调用：更新槽位表后到目标节点重新执行，ASK 时先发 ASKING，
+     * 最多跟随 MAX_REDIRECTS 次；无法重定向时抛出最后一次收到的重定向异常
+     */
+    <T> T executeRedirected(JedisRedirectionException e, JedisCallback.DoInJedis<T> action) {
+        JedisRedirectionException redirection = e;
+        for (int redirects = 0; redirects < MAX_REDIRECTS; redirects++) {
+            int shard = redirect(redirection);
+            if (shard < 0) {
+                break;
+            }
+            Jedis jedis = getConnection(shard);
+            if (jedis == null) {
+                throw new JedisConnectionException("could not get a resource from the pool, shard " + getShardName(shard));
+            }
+            boolean broken = false;
+            try {
+                if (redirection instanceof JedisAskDataException) {
+                    jedis.asking();
+                }
+                return action.doIn(jedis);
+            } catch (JedisRedirectionException next) {
+                redirection = next;
+            } catch (JedisConnectionException ex) {
+                broken = true;
+                throw ex;
+            } finally {
+                returnResource(shard, jedis, broken);
+            }
+        }
+        throw redirection;
+    }
+
+    /**
+     * 同 executeRedirected，用于 pipeline 中收到 MOVED / ASK 的单条命令
+     */
+    <T> T pipelineRedirected(JedisRedirectionException e, JedisCallback.DoInPipeline<T> command) {
+        return executeRedirected(e, jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            Response<T> response = command.doIn(pipeline);
+            pipeline.sync();
+            return response.get();
+        });
+    }
+
+    public int getShardIndex(byte[] key) {
+        return router.getShardIndex(key);
+    }
+
+    public int getShardIndex(String key) {
+        return router.getShardIndex(key);
+    }
+
+    /**
+     * 从指定分片的连接池借一个连接，分片熔断时直接返回 null；
+     * 半开状态下借到的连接就是探测请求，归还时按这个连接记录结果
+     */
+    public Jedis getConnection(int shard) {
+        ShardRedisCircuitBreaker breaker = circuitBreakers == null ? null : circuitBreakers[shard];
+        Object token = breaker == null ? null : breaker.tryAcquire();
+        if (breaker != null && token == null) {
+            return null;
+        }
+        try {
+            Jedis jedis = shardPools[shard].getResource();
+            if (breaker != null) {
+                breaker.bindProbe(token, jedis);
+            }
+            return jedis;
+        } catch (Exception e) {
+            log.error("getRedisClent error, shard " + shardName(router.getShardInfo(shard)), e);
+            if (breaker != null) {
+                if (isPoolExhausted(e)) {
+                    // 连接池耗尽说明分片忙而不是不可用，不计入失败
+                    breaker.releaseProbe(token);
+                } else {
+                    breaker.recordFailure(token);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 借连接失败是否只是因为连接池耗尽、等待超时；新建连接校验失败不算
+     */
+    private static boolean isPoolExhausted(Exception e) {
+        Throwable cause = e.getCause();
+        return cause instanceof NoSuchElementException
+                && (cause.getMessage() == null || !cause.getMessage().contains("validate"));
+    }
+
+    /**
+     * 分片的熔断器是否处于打开或半开状态
+     */
+    public boolean isCircuitOpen(int shard) {
+        return circuitBreakers != null && !circuitBreakers[shard].isClosed();
+    }
+
+    public ShardRedisCircuitBreaker getCircuitBreaker(int shard) {
+        return circuitBreakers == null ? null : circuitBreakers[shard];
+    }
+
     public void returnResource(ShardedJedis shardedJedis) {
         shardedJedisPool.returnResource(shardedJedis);
     }
@@ -36,6 +389,79 @@ public class ShardRedisConnectionFactory {
         }
     }
 
+    public void returnResource(int shard, Jedis jedis, boolean broken) {
+        returnResource(shard, jedis, broken, 0);
+    }
+
+    /**
+     * 归还连接，同时把本次命令的结果和耗时计入分片熔断器
+     */
+    public void returnResource(int shard, Jedis jedis, boolean broken, long elapsedNanos) {
+        if (circuitBreakers != null) {
+            if (broken) {
+                circuitBreakers[shard].recordFailure(jedis);
+            } else {
+                circuitBreakers[shard].recordSuccess(jedis, elapsedNanos);
+            }
+        }
+        release(jedis, broken);
+    }
+
+    /**
+     * 把连接归还到它所属的连接池；broken 为 true 而连接本身没有标记为断开时先断开 socket，下次借出时重新连接
+     */
+    static void release(Jedis jedis, boolean broken) {
+        if (broken && !jedis.getClient().isBroken()) {
+            try {
+                jedis.getClient().disconnect();
+            } catch (JedisConnectionException e) {
+                log.warn("disconnect error: " + e.getMessage());
+            }
+        }
+        jedis.close();
+    }
+
+    /**
+     * 命令执行中发现连接已断开时调用，在后台校验该分片的其余空闲连接
+     */
+    public void validateIdle(int shard) {
+        if (shardPools[shard] instanceof HealthCheckedJedisPool) {
+            ((HealthCheckedJedisPool) shardPools[shard]).validateIdle();
+        }
+    }
+
+    /**
+     * 销毁一个已断开的连接，不计入分片熔断器，用于换连接重试前；熔断器半开时探测请求的结果必须通过 returnResource 记录
+     */
+    public void invalidate(int shard, Jedis jedis) {
+        release(jedis, true);
+    }
+
+    /**
+     * 关闭所有连接池
+     */
+    public void close() {
+        if (shardedJedisPool != null) {
+            shardedJedisPool.close();
+        }
+        if (shardPools != null) {
+            for (JedisPool pool : shardPools) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * 分片路由，只用 ShardedJedisPool 创建且未传入分片列表时为 null
+     */
+    public ShardRedisRouter getRouter() {
+        return router;
+    }
+
+    public JedisPool getShardPool(int shard) {
+        return shardPools[shard];
+    }
+
     public ShardedJedisPool getShardedJedisPool() {
         return shardedJedisPool;
     }
@@ -0,0 +1,321 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热点 key 多分片复制
+ * <p>
+ * 每个统计窗口根据 ShardRedisHotKeySampler 的结果挑出读多写少、且 QPS 远高于所在分片平均水平的 key，
+ * 复制到另外 replicas 个分片上。副本所在分片由派生 key（key#hr1、key#hr2 ...）在哈希环上的位置决定，
+ * 副本本身沿用原 key 名（命令回调里绑定的是原 key），这些分片按路由本来不会持有这个 key，不会冲突。
+ * <p>
+ * 只有 GET、HGET 这类 key 不存在时返回 nil 的读命令会随机落到主分片或任一副本上，副本上读到 nil 时回到主分片；
+ * 其他读命令（TTL、HLEN、SMEMBERS 等在 key 不存在时也有正常返回值）和写命令只在主分片执行。
+ * 写命令执行后用 DUMP 与 RESTORE ... REPLACE 把主分片上的最新值同步到所有副本，主分片上 key 已不存在时删除副本；
+ * 同一个 key 的同步串行执行，后开始的同步一定读到更新的值，不会被先开始的同步用旧值覆盖。
+ * <p>
+ * 哪些 key 有副本只记录在本进程内，其他应用实例的写入不会触发同步。因此热点 key 在每个统计窗口重新同步一次，
+ * 副本的过期时间不超过 maxCopyTtlMillis，其他实例写入后副本最多落后一个统计窗口，本实例停止后副本也会自动过期。
+ * 对一致性要求更高的 key 不要开启，或所有实例都开启相同配置的复制。
+ * 连续 coolDownWindows 个窗口不再是热点的 key 取消复制并删除副本。分片迁移期间不要开启。
+ */
+public class ShardRedisHotKeyReplicator {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisHotKeyReplicator.class);
+
+    private final ShardRedisConnectionFactory factory;
+    private final ShardRedisHotKeySampler sampler;
+    private final ScheduledExecutorService scheduler;
+    // 按 key 的 64 位哈希索引，为空时命令路径上不做任何额外计算
+    private final Map<Long, Replica> replicas = new ConcurrentHashMap<>();
+
+    // 每个热点 key 的副本数
+    private int replicaCount = 2;
+    // 成为热点的最低读 QPS
+    private double minQps = 1000;
+    // 读 QPS 至少占所在分片总 QPS 的比例
+    private double minShardShare = 0.1;
+    // 写 QPS 与读 QPS 之比的上限，超过则不是读多写少
+    private double maxWriteRatio = 0.1;
+    // 连续多少个窗口不是热点后取消复制
+    private int coolDownWindows = 3;
+    // 副本的最长过期时间，单位毫秒，需大于统计窗口，默认两个窗口
+    private long maxCopyTtlMillis;
+
+    public ShardRedisHotKeyReplicator(ShardRedisConnectionFactory factory, ShardRedisHotKeySampler sampler) {
+        this.factory = factory;
+        this.sampler = sampler;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-redis-hot-key-replicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = sampler.getWindowMillis();
+        this.maxCopyTtlMillis = period * 2;
+        scheduler.scheduleAtFixedRate(this::refresh, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 返回 key 的复制信息，没有复制时返回 null
+     */
+    Replica lookup(String key) {
+        return replicas.isEmpty() ? null : replicas.get(ShardRedisRouter.hash(key, 0, key.length()));
+    }
+
+    Replica lookup(byte[] key) {
+        return replicas.isEmpty() ? null : replicas.get(ShardRedisRouter.hash(key, 0, key.length));
+    }
+
+    /**
+     * 按最新的热点统计增加或取消复制
+     */
+    void refresh() {
+        try {
+            Map<String, double[]> load = new HashMap<>();
+            for (ShardRedisHotKeySampler.HotKey hotKey : sampler.getHotKeys()) {
+                double[] qps = load.computeIfAbsent(hotKey.getKey(), k -> new double[2]);
+                qps[RedisCommands.isRead(Protocol.Command.valueOf(hotKey.getCommand())) ? 0 : 1] += hotKey.getEstimatedQps();
+            }
+            Set<Long> hot = new HashSet<>();
+            for (Map.Entry<String, double[]> entry : load.entrySet()) {
+                String key = entry.getKey();
+                double reads = entry.getValue()[0];
+                double writes = entry.getValue()[1];
+                int primary = factory.getShardIndex(key);
+                if (reads < minQps || writes > reads * maxWriteRatio || reads < sampler.getShardQps(primary) * minShardShare) {
+                    continue;
+                }
+                long hash = ShardRedisRouter.hash(key, 0, key.length());
+                hot.add(hash);
+                Replica replica = replicas.get(hash);
+                if (replica != null) {
+                    replica.coldWindows = 0;
+                    // 补上其他实例的写入，并延长副本的过期时间
+                    sync(replica);
+                } else {
+                    replicate(hash, SafeEncoder.encode(key), primary, reads);
+                }
+            }
+            for (Replica replica : new ArrayList<>(replicas.values())) {
+                if (!hot.contains(replica.hash) && ++replica.coldWindows >= coolDownWindows) {
+                    replicas.remove(replica.hash);
+                    for (int shard : replica.shards) {
+                        delete(shard, replica.key);
+                    }
+                    log.info("hot key replication removed: " + SafeEncoder.encode(replica.key));
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void replicate(long hash, byte[] key, int primary, double reads) {
+        Set<Integer> shards = new HashSet<>();
+        for (int i = 1; shards.size() < replicaCount && i <= replicaCount * 8; i++) {
+            byte[] derived = SafeEncoder.encode(SafeEncoder.encode(key) + "#hr" + i);
+            int shard = factory.getShardIndex(derived);
+            if (shard != primary) {
+                shards.add(shard);
+            }
+        }
+        if (shards.isEmpty()) {
+            return;
+        }
+        int[] copies = new int[shards.size()];
+        int n = 0;
+        for (int shard : shards) {
+            copies[n++] = shard;
+        }
+        Replica replica = new Replica(hash, key, primary, copies);
+        // 先同步数据再对外可见，避免读到空副本
+        if (sync(replica)) {
+            replicas.put(hash, replica);
+            log.info(String.format("hot key replicated to %d shards: %s, %.0f reads/s", copies.length,
+                    SafeEncoder.encode(key), reads));
+        }
+    }
+
+    /**
+     * 把主分片上的值同步到所有副本，返回是否全部成功
+     */
+    boolean sync(Replica replica) {
+        synchronized (replica) {
+            return doSync(replica);
+        }
+    }
+
+    private boolean doSync(Replica replica) {
+        byte[] value;
+        long pttl;
+        Jedis jedis = factory.getConnection(replica.primary);
+        if (jedis == null) {
+            return false;
+        }
+        boolean broken = false;
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            Response<byte[]> dump = pipeline.dump(replica.key);
+            Response<Long> ttl = pipeline.pttl(replica.key);
+            pipeline.sync();
+            value = dump.get();
+            pttl = ttl.get();
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            return false;
+        } finally {
+            factory.returnResource(replica.primary, jedis, broken);
+        }
+        boolean success = true;
+        for (int shard : replica.shards) {
+            success &= value == null || pttl == -2 ? delete(shard, replica.key) : restore(shard, replica.key, value, pttl);
+        }
+        return success;
+    }
+
+    private boolean restore(int shard, byte[] key, byte[] value, long pttl) {
+        Jedis jedis = factory.getConnection(shard);
+        if (jedis == null) {
+            return false;
+        }
+        boolean broken = false;
+        try {
+            long ttl = pttl < 0 ? maxCopyTtlMillis : Math.min(pttl, maxCopyTtlMillis);
+            RedisScriptRegistry.getInstance().evalsha(jedis, RedisScriptRegistry.REPLACE_RESTORE, 1,
+                    key, Protocol.toByteArray(ttl), value);
+            return true;
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            return false;
+        } finally {
+            factory.returnResource(shard, jedis, broken);
+        }
+    }
+
+    private boolean delete(int shard, byte[] key) {
+        Jedis jedis = factory.getConnection(shard);
+        if (jedis == null) {
+            return false;
+        }
+        boolean broken = false;
+        try {
+            jedis.del(key);
+            return true;
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            return false;
+        } finally {
+            factory.returnResource(shard, jedis, broken);
+        }
+    }
+
+    /**
+     * 当前被复制的 key
+     */
+    public Set<String> getReplicatedKeys() {
+        Set<String> keys = new HashSet<>();
+        for (Replica replica : replicas.values()) {
+            keys.add(SafeEncoder.encode(replica.key));
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    public int getReplicaCount() {
+        return replicaCount;
+    }
+
+    public void setReplicaCount(int replicaCount) {
+        this.replicaCount = replicaCount;
+    }
+
+    public double getMinQps() {
+        return minQps;
+    }
+
+    public void setMinQps(double minQps) {
+        this.minQps = minQps;
+    }
+
+    public double getMinShardShare() {
+        return minShardShare;
+    }
+
+    public void setMinShardShare(double minShardShare) {
+        this.minShardShare = minShardShare;
+    }
+
+    public double getMaxWriteRatio() {
+        return maxWriteRatio;
+    }
+
+    public void setMaxWriteRatio(double maxWriteRatio) {
+        this.maxWriteRatio = maxWriteRatio;
+    }
+
+    public long getMaxCopyTtlMillis() {
+        return maxCopyTtlMillis;
+    }
+
+    public void setMaxCopyTtlMillis(long maxCopyTtlMillis) {
+        this.maxCopyTtlMillis = maxCopyTtlMillis;
+    }
+
+    public int getCoolDownWindows() {
+        return coolDownWindows;
+    }
+
+    public void setCoolDownWindows(int coolDownWindows) {
+        this.coolDownWindows = coolDownWindows;
+    }
+
+    /**
+     * 一个被复制的热点 key
+     */
+    static class Replica {
+        final long hash;
+        final byte[] key;
+        final int primary;
+        final int[] shards;
+        volatile int coldWindows;
+
+        Replica(long hash, byte[] key, int primary, int[] shards) {
+            this.hash = hash;
+            this.key = key;
+            this.primary = primary;
+            this.shards = shards;
+        }
+
+        /**
+         * 在主分片和所有副本中随机选一个
+         */
+        int pickShard() {
+            int i = ThreadLocalRandom.current().nextInt(shards.length + 1);
+            return i == shards.length ? primary : shards[i];
+        }
+    }
+}
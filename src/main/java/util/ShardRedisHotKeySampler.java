@@ -0,0 +1,293 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Protocol;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点 key 采样统计
+ * <p>
+ * 命令路径上按 1/sampleRate 的概率采样，每个分片、每种命令各维护一个 Space-Saving 摘要（按 key 的 64 位哈希计数，
+ * 最多跟踪 capacity 个 key，满了以后新 key 替换计数最小的那个并继承其计数，估计 QPS 按扣除继承部分后的计数下界计算）。
+ * 每个统计窗口结束时把各摘要的 top-N 折算成估计 QPS 保存下来供查询，并打一条汇总日志。
+ */
+public class ShardRedisHotKeySampler {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisHotKeySampler.class);
+
+    private static final Protocol.Command[] COMMANDS = Protocol.Command.values();
+
+    private final ShardRedisRouter router;
+    private final int sampleRate;
+    private final int capacity;
+    private final int topN;
+    private final long windowMillis;
+    // summaries[shard][command.ordinal()]
+    private final Summary[][] summaries;
+    // 每个分片当前窗口的采样次数
+    private final LongAdder[] shardSamples;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long windowStart = System.currentTimeMillis();
+    private volatile List<HotKey> hotKeys = Collections.emptyList();
+    private volatile double[] shardQps;
+    private boolean logEnabled = true;
+
+    public ShardRedisHotKeySampler(ShardRedisRouter router) {
+        this(router, 10, 32, 10, 10000);
+    }
+
+    /**
+     * @param sampleRate   每 sampleRate 次命令采样一次
+     * @param capacity     每个摘要最多跟踪的 key 数
+     * @param topN         每个窗口保留的热点 key 数
+     * @param windowMillis 统计窗口，也是汇总日志的周期
+     */
+    public ShardRedisHotKeySampler(ShardRedisRouter router, int sampleRate, int capacity, int topN, long windowMillis) {
+        this.router = router;
+        this.sampleRate = sampleRate;
+        this.capacity = capacity;
+        this.topN = topN;
+        this.windowMillis = windowMillis;
+        this.summaries = new Summary[router.size()][COMMANDS.length];
+        this.shardSamples = new LongAdder[router.size()];
+        this.shardQps = new double[router.size()];
+        for (int i = 0; i < shardSamples.length; i++) {
+            shardSamples[i] = new LongAdder();
+        }
+        for (Summary[] shard : summaries) {
+            for (int i = 0; i < shard.length; i++) {
+                shard[i] = new Summary();
+            }
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-redis-hot-key-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::rotate, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void record(int shard, Protocol.Command command, String key) {
+        if (sampled()) {
+            shardSamples[shard].increment();
+            summaries[shard][command.ordinal()].add(ShardRedisRouter.hash(key, 0, key.length()), key);
+        }
+    }
+
+    public void record(int shard, Protocol.Command command, byte[] key) {
+        if (sampled()) {
+            shardSamples[shard].increment();
+            summaries[shard][command.ordinal()].add(ShardRedisRouter.hash(key, 0, key.length), key);
+        }
+    }
+
+    private boolean sampled() {
+        return sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * 结束当前窗口：汇总所有摘要的 top-N 并清空
+     */
+    void rotate() {
+        try {
+            long now = System.currentTimeMillis();
+            double seconds = Math.max(1, now - windowStart) / 1000.0;
+            windowStart = now;
+            List<HotKey> result = new ArrayList<>();
+            double[] qps = new double[shardSamples.length];
+            for (int shard = 0; shard < summaries.length; shard++) {
+                qps[shard] = shardSamples[shard].sumThenReset() * sampleRate / seconds;
+                String shardName = ShardRedisConnectionFactory.shardName(router.getShardInfo(shard));
+                for (int command = 0; command < COMMANDS.length; command++) {
+                    summaries[shard][command].drain(result, shardName, COMMANDS[command], sampleRate / seconds);
+                }
+            }
+            result.sort((a, b) -> Double.compare(b.estimatedQps, a.estimatedQps));
+            shardQps = qps;
+            hotKeys = Collections.unmodifiableList(result.size() > topN ? new ArrayList<>(result.subList(0, topN)) : result);
+            if (logEnabled && !hotKeys.isEmpty()) {
+                log.info("hot keys in last " + windowMillis + " ms: " + hotKeys);
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 上一个统计窗口的热点 key，按估计 QPS 从高到低排列
+     */
+    public List<HotKey> getHotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * 上一个统计窗口中指定分片的热点 key
+     */
+    public List<HotKey> getHotKeys(int shard) {
+        String shardName = ShardRedisConnectionFactory.shardName(router.getShardInfo(shard));
+        List<HotKey> result = new ArrayList<>();
+        for (HotKey hotKey : hotKeys) {
+            if (hotKey.shard.equals(shardName)) {
+                result.add(hotKey);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 上一个统计窗口中指定分片上所有命令的估计 QPS
+     */
+    public double getShardQps(int shard) {
+        return shardQps[shard];
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public boolean isLogEnabled() {
+        return logEnabled;
+    }
+
+    public void setLogEnabled(boolean logEnabled) {
+        this.logEnabled = logEnabled;
+    }
+
+    /**
+     * 一个分片上一种命令的 Space-Saving 摘要，数组在第一次采样时才分配
+     */
+    private class Summary {
+        private long[] hashes;
+        private long[] counts;
+        // 替换进来时继承的计数，count - error 是该 key 真实采样次数的下界
+        private long[] errors;
+        private Object[] keys;
+        private int size;
+
+        synchronized void add(long hash, Object key) {
+            if (hashes == null) {
+                hashes = new long[capacity];
+                counts = new long[capacity];
+                errors = new long[capacity];
+                keys = new Object[capacity];
+            }
+            int min = 0;
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            if (size < capacity) {
+                hashes[size] = hash;
+                counts[size] = 1;
+                errors[size] = 0;
+                keys[size++] = key;
+                return;
+            }
+            hashes[min] = hash;
+            errors[min] = counts[min];
+            counts[min]++;
+            keys[min] = key;
+        }
+
+        synchronized void drain(List<HotKey> result, String shard, Protocol.Command command, double qpsPerSample) {
+            // 按计数下界排序，每个摘要最多贡献 topN 个，避免 result 过大；下界为 0 的是被挤进来的冷 key
+            for (int n = 0; n < Math.min(size, topN); n++) {
+                int max = n;
+                for (int i = n + 1; i < size; i++) {
+                    if (counts[i] - errors[i] > counts[max] - errors[max]) {
+                        max = i;
+                    }
+                }
+                swap(n, max);
+                long guaranteed = counts[n] - errors[n];
+                if (guaranteed <= 0) {
+                    break;
+                }
+                Object key = keys[n];
+                result.add(new HotKey(key instanceof byte[] ? SafeEncoder.encode((byte[]) key) : (String) key,
+                        shard, command.name(), guaranteed * qpsPerSample));
+            }
+            size = 0;
+            if (keys != null) {
+                Arrays.fill(keys, null);
+            }
+        }
+
+        private void swap(int i, int j) {
+            long hash = hashes[i];
+            hashes[i] = hashes[j];
+            hashes[j] = hash;
+            long count = counts[i];
+            counts[i] = counts[j];
+            counts[j] = count;
+            long error = errors[i];
+            errors[i] = errors[j];
+            errors[j] = error;
+            Object key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+    }
+
+    /**
+     * 一个热点 key 及其估计 QPS
+     */
+    public static class HotKey {
+        private final String key;
+        private final String shard;
+        private final String command;
+        private final double estimatedQps;
+
+        HotKey(String key, String shard, String command, double estimatedQps) {
+            this.key = key;
+            this.shard = shard;
+            this.command = command;
+            this.estimatedQps = estimatedQps;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getShard() {
+            return shard;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public double getEstimatedQps() {
+            return estimatedQps;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s@%s %.0f/s", command, key, shard, estimatedQps);
+        }
+    }
+}
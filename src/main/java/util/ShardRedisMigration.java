@@ -0,0 +1,495 @@
+package util;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分片列表变化时的在线数据迁移
+ * <p>
+ * 迁移期间新旧两个哈希环同时存在：所有命令都按新环路由，访问一个归属发生变化、且所在旧分片还没迁移完的 key 时，
+ * 先从旧分片 DUMP 出来 RESTORE 到新分片再执行命令（读穿透）；后台线程对每个旧分片 SCAN，
+ * 用 pipeline 批量 DUMP / RESTORE / DEL 归属变化的 key，并按 maxKeysPerSecond 限速。
+ * <p>
+ * RESTORE 由脚本 RedisScriptRegistry.MIGRATE_RESTORE 执行：新分片上已存在的 key（已经迁移过或迁移后又被写入）不会被旧值覆盖；
+ * 每个 key 第一次恢复时在新分片上留下一个 markerTtlSeconds 秒过期的迁移标记，之后带着更早 DUMP 结果的恢复
+ * （读穿透与后台线程、多个应用实例之间并发迁移同一个 key）看到标记直接放弃，避免客户端在 DUMP 与 RESTORE
+ * 之间删除的 key 被旧值复活。DUMP 结果超过标记有效期的一半还没恢复时丢弃，由后台重新扫描。
+ */
+public class ShardRedisMigration implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisMigration.class);
+    private static final byte[] MARKER_PREFIX = SafeEncoder.encode("__resharded:");
+
+    private final ShardRedisConnectionFactory source;
+    private final ShardRedisConnectionFactory target;
+    // 旧分片在新分片列表中的下标，旧分片被移除时为 -1
+    private final int[] sourceToTarget;
+    // 旧分片是否已迁移完，只会由 false 变为 true，其他线程读到旧值只是多做一次 DUMP
+    private final boolean[] shardDone;
+
+    // 每次 SCAN 的 COUNT
+    private int scanCount = 100;
+    // 后台每秒最多迁移的 key 数
+    private int maxKeysPerSecond = 5000;
+    // 进度日志间隔，单位毫秒
+    private long progressLogMillis = 10000;
+    // 新分片上迁移标记的有效期，单位秒，需远大于一次 DUMP 到 RESTORE 的耗时
+    private int markerTtlSeconds = 60;
+
+    private final AtomicLong scannedKeys = new AtomicLong();
+    private final AtomicLong migratedKeys = new AtomicLong();
+    private final AtomicLong failedKeys = new AtomicLong();
+    private volatile long totalKeys;
+    private volatile boolean finished;
+    private volatile boolean stopped;
+    private Runnable onFinished;
+    private Thread thread;
+
+    public ShardRedisMigration(ShardRedisConnectionFactory source, ShardRedisConnectionFactory target) {
+        this.source = source;
+        this.target = target;
+        ShardRedisRouter sourceRouter = source.getRouter();
+        ShardRedisRouter targetRouter = target.getRouter();
+        this.sourceToTarget = new int[sourceRouter.size()];
+        this.shardDone = new boolean[sourceRouter.size()];
+        for (int i = 0; i < sourceRouter.size(); i++) {
+            String name = ShardRedisConnectionFactory.shardName(sourceRouter.getShardInfo(i));
+            sourceToTarget[i] = -1;
+            for (int j = 0; j < targetRouter.size(); j++) {
+                if (name.equals(ShardRedisConnectionFactory.shardName(targetRouter.getShardInfo(j)))) {
+                    sourceToTarget[i] = j;
+                }
+            }
+        }
+    }
+
+    /**
+     * 启动后台迁移线程
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "shard-redis-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止后台迁移，已迁移的 key 不会回滚，访问时的读穿透仍然有效
+     */
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * key 的归属发生变化且旧分片还没迁移完时，把它从旧分片迁到新分片
+     */
+    public void migrateKey(String key) {
+        int from = source.getShardIndex(key);
+        if (!shardDone[from] && sourceToTarget[from] != target.getShardIndex(key)) {
+            migrateKey(from, SafeEncoder.encode(key));
+        }
+    }
+
+    public void migrateKey(byte[] key) {
+        int from = source.getShardIndex(key);
+        if (!shardDone[from] && sourceToTarget[from] != target.getShardIndex(key)) {
+            migrateKey(from, key);
+        }
+    }
+
+    private void migrateKey(int from, byte[] key) {
+        Jedis jedis = source.getConnection(from);
+        if (jedis == null) {
+            return;
+        }
+        boolean broken = false;
+        try {
+            long dumpedAt = System.nanoTime();
+            Pipeline pipeline = jedis.pipelined();
+            Response<byte[]> dump = pipeline.dump(key);
+            Response<Long> pttl = pipeline.pttl(key);
+            pipeline.sync();
+            if (dump.get() == null || pttl.get() == -2) {
+                return;
+            }
+            if (isStale(dumpedAt)) {
+                failedKeys.incrementAndGet();
+                return;
+            }
+            if (restore(target.getShardIndex(key), key, dump.get(), pttl.get())) {
+                jedis.del(key);
+                migratedKeys.incrementAndGet();
+            }
+        } catch (Exception e) {
+            log.error("migrate key error, shard " + ShardRedisConnectionFactory.shardName(source.getRouter().getShardInfo(from)), e);
+            broken = true;
+            failedKeys.incrementAndGet();
+        } finally {
+            source.returnResource(from, jedis, broken);
+        }
+    }
+
+    private boolean restore(int to, byte[] key, byte[] value, long pttl) {
+        Jedis jedis = target.getConnection(to);
+        if (jedis == null) {
+            return false;
+        }
+        boolean broken = false;
+        try {
+            // 返回 0 / 1 / 2 都说明新分片上的数据已经是准的，旧分片上的可以删掉
+            RedisScriptRegistry.getInstance().evalsha(jedis, RedisScriptRegistry.MIGRATE_RESTORE, 2, restoreParams(key, value, pttl));
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            failedKeys.incrementAndGet();
+            return false;
+        } finally {
+            target.returnResource(to, jedis, broken);
+        }
+        return true;
+    }
+
+    private byte[][] restoreParams(byte[] key, byte[] value, long pttl) {
+        long ttl = pttl < 0 ? 0 : pttl;
+        return new byte[][]{key, ArrayUtils.addAll(MARKER_PREFIX, key), Protocol.toByteArray(ttl), value,
+                Protocol.toByteArray(markerTtlSeconds)};
+    }
+
+    /**
+     * DUMP 结果是否已经旧到迁移标记可能过期，再恢复就可能覆盖掉之后的删除
+     */
+    private boolean isStale(long dumpedAt) {
+        return System.nanoTime() - dumpedAt > TimeUnit.SECONDS.toNanos(markerTtlSeconds) / 2;
+    }
+
+    @Override
+    public void run() {
+        long begin = System.currentTimeMillis();
+        totalKeys = countKeys();
+        log.info("resharding started, " + totalKeys + " keys on " + shardDone.length + " shards");
+        long lastLog = begin;
+        for (int shard = 0; shard < shardDone.length && !stopped; shard++) {
+            // 有 key 迁移失败时重新扫描这个分片，直到一轮扫描没有失败
+            long failed;
+            do {
+                failed = failedKeys.get();
+                lastLog = scanShard(shard, lastLog);
+            } while (!stopped && failedKeys.get() > failed);
+            if (!stopped) {
+                shardDone[shard] = true;
+                log.info("resharding shard " + ShardRedisConnectionFactory.shardName(source.getRouter().getShardInfo(shard)) + " done");
+            }
+        }
+        if (stopped) {
+            log.info("resharding stopped");
+            return;
+        }
+        finished = true;
+        logProgress();
+        log.info("resharding finished in " + (System.currentTimeMillis() - begin) + " ms, the new shard list owns all data");
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    /**
+     * 完整扫描一遍旧分片，返回最近一次打印进度日志的时间
+     */
+    private long scanShard(int shard, long lastLog) {
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        while (!stopped) {
+            long batchBegin = System.nanoTime();
+            ScanResult<byte[]> scan = scan(shard, cursor);
+            if (scan == null) {
+                // 分片暂时不可用，稍后重试同一个游标
+                sleep(1000);
+                continue;
+            }
+            cursor = scan.getCursorAsBytes();
+            int moved = migrateBatch(shard, scan.getResult());
+            throttle(moved, batchBegin);
+            if (System.currentTimeMillis() - lastLog >= progressLogMillis) {
+                lastLog = System.currentTimeMillis();
+                logProgress();
+            }
+            if (Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY)) {
+                break;
+            }
+        }
+        return lastLog;
+    }
+
+    private long countKeys() {
+        long total = 0;
+        for (int shard = 0; shard < shardDone.length; shard++) {
+            Jedis jedis = source.getConnection(shard);
+            if (jedis == null) {
+                continue;
+            }
+            boolean broken = false;
+            try {
+                total += jedis.dbSize();
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                broken = true;
+            } finally {
+                source.returnResource(shard, jedis, broken);
+            }
+        }
+        return total;
+    }
+
+    private ScanResult<byte[]> scan(int shard, byte[] cursor) {
+        Jedis jedis = source.getConnection(shard);
+        if (jedis == null) {
+            return null;
+        }
+        boolean broken = false;
+        try {
+            return jedis.scan(cursor, new ScanParams().count(scanCount));
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            return null;
+        } finally {
+            source.returnResource(shard, jedis, broken);
+        }
+    }
+
+    /**
+     * 迁移一批 SCAN 出来的 key 中归属发生变化的部分：旧分片 pipeline DUMP + PTTL，
+     * 按新分片分组 pipeline RESTORE，成功（或新分片已有该 key）后在旧分片 pipeline DEL，返回处理的 key 数
+     */
+    private int migrateBatch(int shard, List<byte[]> keys) {
+        scannedKeys.addAndGet(keys.size());
+        List<byte[]> moved = new ArrayList<>();
+        for (byte[] key : keys) {
+            if (target.getShardIndex(key) != sourceToTarget[shard]) {
+                moved.add(key);
+            }
+        }
+        if (moved.isEmpty()) {
+            return 0;
+        }
+        Jedis jedis = source.getConnection(shard);
+        if (jedis == null) {
+            failedKeys.addAndGet(moved.size());
+            return moved.size();
+        }
+        boolean broken = false;
+        try {
+            long dumpedAt = System.nanoTime();
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<byte[]>> dumps = new ArrayList<>(moved.size());
+            List<Response<Long>> ttls = new ArrayList<>(moved.size());
+            for (byte[] key : moved) {
+                dumps.add(pipeline.dump(key));
+                ttls.add(pipeline.pttl(key));
+            }
+            pipeline.sync();
+
+            List<byte[]> restored = new ArrayList<>(moved.size());
+            for (int to = 0; to < target.getRouter().size(); to++) {
+                if (isStale(dumpedAt)) {
+                    // 剩下的 key 留给下一轮扫描
+                    failedKeys.incrementAndGet();
+                    break;
+                }
+                restoreBatch(to, moved, dumps, ttls, restored);
+            }
+            if (!restored.isEmpty()) {
+                jedis.del(restored.toArray(new byte[0][]));
+                migratedKeys.addAndGet(restored.size());
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            failedKeys.addAndGet(moved.size());
+        } finally {
+            source.returnResource(shard, jedis, broken);
+        }
+        return moved.size();
+    }
+
+    private void restoreBatch(int to, List<byte[]> keys, List<Response<byte[]>> dumps, List<Response<Long>> ttls,
+                              List<byte[]> restored) {
+        List<byte[]> batch = new ArrayList<>();
+        List<Response<Object>> replies = new ArrayList<>();
+        RedisScriptRegistry scripts = RedisScriptRegistry.getInstance();
+        byte[] sha = SafeEncoder.encode(scripts.getSha(RedisScriptRegistry.MIGRATE_RESTORE));
+        Jedis jedis = null;
+        boolean broken = false;
+        try {
+            Pipeline pipeline = null;
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                if (target.getShardIndex(key) != to || dumps.get(i).get() == null || ttls.get(i).get() == -2) {
+                    continue;
+                }
+                if (pipeline == null) {
+                    jedis = target.getConnection(to);
+                    if (jedis == null) {
+                        failedKeys.incrementAndGet();
+                        return;
+                    }
+                    // 节点可能重启过，每批先加载一次脚本
+                    jedis.scriptLoad(scripts.getScript(RedisScriptRegistry.MIGRATE_RESTORE));
+                    pipeline = jedis.pipelined();
+                }
+                batch.add(key);
+                replies.add(pipeline.evalsha(sha, 2, restoreParams(key, dumps.get(i).get(), ttls.get(i).get())));
+            }
+            if (pipeline == null) {
+                return;
+            }
+            pipeline.sync();
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    replies.get(i).get();
+                    restored.add(batch.get(i));
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                    failedKeys.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            broken = true;
+            failedKeys.addAndGet(batch.size());
+        } finally {
+            if (jedis != null) {
+                target.returnResource(to, jedis, broken);
+            }
+        }
+    }
+
+    /**
+     * 按 maxKeysPerSecond 计算这一批应占用的时间，不足则休眠补齐
+     */
+    private void throttle(int moved, long batchBegin) {
+        if (moved == 0 || maxKeysPerSecond <= 0) {
+            return;
+        }
+        long expected = TimeUnit.SECONDS.toNanos(moved) / maxKeysPerSecond;
+        long elapsed = System.nanoTime() - batchBegin;
+        if (expected > elapsed) {
+            sleep(TimeUnit.NANOSECONDS.toMillis(expected - elapsed));
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+    private void logProgress() {
+        int done = 0;
+        for (boolean shard : shardDone) {
+            if (shard) {
+                done++;
+            }
+        }
+        log.info(String.format("resharding progress %.1f%%: scanned %d/%d keys, migrated %d, failed %d, shards done %d/%d",
+                getProgress() * 100, scannedKeys.get(), totalKeys, migratedKeys.get(), failedKeys.get(), done, shardDone.length));
+    }
+
+    /**
+     * 按已扫描 key 数估算的进度，0 ~ 1
+     */
+    public double getProgress() {
+        if (finished) {
+            return 1;
+        }
+        long total = totalKeys;
+        return total <= 0 ? 0 : Math.min(1, (double) scannedKeys.get() / total);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public long getScannedKeys() {
+        return scannedKeys.get();
+    }
+
+    public long getMigratedKeys() {
+        return migratedKeys.get();
+    }
+
+    public long getFailedKeys() {
+        return failedKeys.get();
+    }
+
+    public long getTotalKeys() {
+        return totalKeys;
+    }
+
+    public ShardRedisConnectionFactory getSource() {
+        return source;
+    }
+
+    public ShardRedisConnectionFactory getTarget() {
+        return target;
+    }
+
+    public int getScanCount() {
+        return scanCount;
+    }
+
+    public void setScanCount(int scanCount) {
+        this.scanCount = scanCount;
+    }
+
+    public int getMaxKeysPerSecond() {
+        return maxKeysPerSecond;
+    }
+
+    public void setMaxKeysPerSecond(int maxKeysPerSecond) {
+        this.maxKeysPerSecond = maxKeysPerSecond;
+    }
+
+    public int getMarkerTtlSeconds() {
+        return markerTtlSeconds;
+    }
+
+    public void setMarkerTtlSeconds(int markerTtlSeconds) {
+        this.markerTtlSeconds = markerTtlSeconds;
+    }
+
+    public long getProgressLogMillis() {
+        return progressLogMillis;
+    }
+
+    public void setProgressLogMillis(long progressLogMillis) {
+        this.progressLogMillis = progressLogMillis;
+    }
+
+    /**
+     * 迁移完成后在迁移线程上执行
+     */
+    public void setOnFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
+    }
+}
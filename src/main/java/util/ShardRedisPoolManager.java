@@ -3,2930 +3,1765 @@ package util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.*;
-
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.SafeEncoder;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static redis.clients.jedis.Protocol.Command.*;
 
 public class ShardRedisPoolManager {
     private static final Logger log = LoggerFactory.getLogger(ShardRedisPoolManager.class);
 
-    private ShardRedisConnectionFactory factory;
+    private volatile ShardRedisConnectionFactory factory;
+    // 正在进行的分片迁移，为 null 时没有迁移
+    private volatile ShardRedisMigration migration;
+    // 热点 key 采样，为 null 时不采样
+    private volatile ShardRedisHotKeySampler hotKeySampler;
+    // 热点 key 多分片复制，为 null 时不复制
+    private volatile ShardRedisHotKeyReplicator hotKeyReplicator;
+    // 相同读请求合并，为 null 时不合并
+    private volatile ShardRedisSingleFlight singleFlight;
+    // 命令超时预算与对冲读，为 null 时不启用
+    private volatile ShardRedisCommandPolicy commandPolicy;
+
+    private volatile ShardRedisReplicaRouter replicaRouter;
+    // 分片熔断时是否抛出 ShardRedisUnavailableException，默认返回与未命中相同的默认值，由调用方回源
+    private boolean failFast;
+    // 自动合批执行器，为 null 时不开启合批，每条命令单独借连接执行
+    private volatile ShardRedisBatchExecutor batchExecutor;
+
+    // newBatch 创建的批量命令在单个分片上一个 pipeline 最多包含的命令数
+    private int maxBatchSize = 1000;
+    // 多 key 命令并行访问各分片所用的线程池
+    private ExecutorService scatterExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "shard-redis-scatter");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public ShardRedisConnectionFactory getFactory() {
         return factory;
     }
 
-    public void setFactory(ShardRedisConnectionFactory factory) {
+    public synchronized void setFactory(ShardRedisConnectionFactory factory) {
         this.factory = factory;
+        if (replicaRouter != null && replicaRouter.getFactory() != factory) {
+            // 从库按旧连接工厂的分片下标登记，需要按新连接工厂重新创建
+            log.warn("replica router disabled: it was created for another factory");
+            this.replicaRouter = null;
+        }
+    }
+
+    public ShardRedisBatchExecutor getBatchExecutor() {
+        return batchExecutor;
+    }
+
+    public void setBatchExecutor(ShardRedisBatchExecutor batchExecutor) {
+        this.batchExecutor = batchExecutor;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public ExecutorService getScatterExecutor() {
+        return scatterExecutor;
+    }
+
+    public void setScatterExecutor(ExecutorService scatterExecutor) {
+        this.scatterExecutor = scatterExecutor;
     }
 
     /**
-     * 设置单个值
-     *
-     * @param key
-     * @param value
-     * @return
+     * 切换到新的分片列表并在后台迁移数据，迁移期间命令按新分片列表路由，归属变化的 key 在访问时从旧分片读穿透；
+     * 新旧连接工厂都必须是按分片建池模式。迁移完成后旧连接工厂由调用方通过 migration.getSource() 关闭
+     * <p>
+     * 热点采样、热点副本、命令策略和读写分离都按旧分片列表建立，设置了其中任何一个时拒绝迁移，需先置为 null，
+     * 迁移完成后按新连接工厂重新创建。自动合批执行器会按新连接工厂重建，旧执行器在迁移完成后关闭
      */
-    public String set(String key, String value) {
-        String result = null;
+    public synchronized ShardRedisMigration startMigration(ShardRedisConnectionFactory target) {
+        if (migration != null) {
+            log.error("startMigration error: a migration is already running");
+            return null;
+        }
+        if (!factory.isShardPooled() || !target.isShardPooled()
+                || factory.getRouter() == null || target.getRouter() == null) {
+            log.error("startMigration error: both factories must be shard-pooled and not redis cluster");
+            return null;
+        }
+        if (hotKeySampler != null || hotKeyReplicator != null || commandPolicy != null || replicaRouter != null) {
+            log.error("startMigration error: unset hotKeySampler, hotKeyReplicator, commandPolicy and replicaRouter first");
+            return null;
+        }
+        ShardRedisMigration running = new ShardRedisMigration(factory, target);
+        ShardRedisBatchExecutor oldExecutor = batchExecutor;
+        if (oldExecutor != null) {
+            // 迁移期间不合批，旧执行器里已排队的命令在迁移完成前执行完
+            ShardRedisBatchExecutor executor = new ShardRedisBatchExecutor(target);
+            executor.setBatchWindowMicros(oldExecutor.getBatchWindowMicros());
+            executor.setMaxBatchSize(oldExecutor.getMaxBatchSize());
+            executor.setWaitTimeoutMillis(oldExecutor.getWaitTimeoutMillis());
+            this.batchExecutor = executor;
+        }
+        running.setOnFinished(() -> {
+            migration = null;
+            if (oldExecutor != null) {
+                oldExecutor.shutdown();
+            }
+        });
+        this.factory = target;
+        this.migration = running;
+        running.start();
+        return running;
+    }
+
+    public ShardRedisMigration getMigration() {
+        return migration;
+    }
+
+    public ShardRedisHotKeySampler getHotKeySampler() {
+        return hotKeySampler;
+    }
 
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 开启热点 key 采样，需要连接工厂带有分片路由
+     */
+    public synchronized void setHotKeySampler(ShardRedisHotKeySampler hotKeySampler) {
+        if (hotKeySampler != null && migration != null) {
+            log.error("setHotKeySampler error: a migration is running");
+            return;
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.set(key, value);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        this.hotKeySampler = hotKeySampler;
+    }
+
+    public ShardRedisHotKeyReplicator getHotKeyReplicator() {
+        return hotKeyReplicator;
+    }
+
+    /**
+     * 开启热点 key 多分片复制，仅在按分片建池模式下生效
+     */
+    public synchronized void setHotKeyReplicator(ShardRedisHotKeyReplicator hotKeyReplicator) {
+        if (hotKeyReplicator != null && migration != null) {
+            log.error("setHotKeyReplicator error: a migration is running");
+            return;
         }
-        return result;
+        this.hotKeyReplicator = hotKeyReplicator;
+    }
+
+    public ShardRedisSingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    public void setSingleFlight(ShardRedisSingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
     }
 
     /**
-     * 获取单个值
-     *
-     * @param key
-     * @return
+     * key 所在分片当前是否可用（熔断器未打开），调用方可以据此提前选择降级
      */
-    public String get(String key) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public boolean isAvailable(String key) {
+        return !factory.isShardPooled() || !factory.isCircuitOpen(factory.getShardIndex(key));
+    }
+
+    public boolean isAvailable(byte[] key) {
+        return !factory.isShardPooled() || !factory.isCircuitOpen(factory.getShardIndex(key));
+    }
+
+    public ShardRedisCommandPolicy getCommandPolicy() {
+        return commandPolicy;
+    }
+
+    /**
+     * 开启命令超时预算和对冲读，仅在按分片建池模式下生效
+     */
+    public synchronized void setCommandPolicy(ShardRedisCommandPolicy commandPolicy) {
+        if (commandPolicy != null && migration != null) {
+            log.error("setCommandPolicy error: a migration is running");
+            return;
         }
+        this.commandPolicy = commandPolicy;
+    }
 
-        boolean broken = false;
-        try {
-            result = shardedJedis.get(key);
+    public ShardRedisReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
 
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    /**
+     * 开启从库读，只读命令优先发往分片的从库，仅在按分片建池模式下生效
+     */
+    public synchronized void setReplicaRouter(ShardRedisReplicaRouter replicaRouter) {
+        if (replicaRouter != null && migration != null) {
+            log.error("setReplicaRouter error: a migration is running");
+            return;
         }
-        return result;
+        if (replicaRouter != null && replicaRouter.getFactory() != factory) {
+            log.error("setReplicaRouter error: the router was created for another factory");
+            return;
+        }
+        this.replicaRouter = replicaRouter;
     }
 
-    public Boolean exists(String key) {
-        Boolean result = false;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 命令执行模板：按 key 找到所在分片，只从该分片的连接池借连接执行
+     */
+    private <T> T execute(Protocol.Command command, String key, T fallback, JedisCallback.DoInJedis<T> action) {
+        sample(command, key);
+        if (!factory.isShardPooled()) {
+            return executeSharded(fallback, shardedJedis -> action.doIn(shardedJedis.getShard(key)));
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.exists(key);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        migrateKey(key);
+        return executeRouted(command, replicaOf(key), factory.getShardIndex(key), fallback, action);
+    }
+
+    private <T> T execute(Protocol.Command command, byte[] key, T fallback, JedisCallback.DoInJedis<T> action) {
+        sample(command, key);
+        if (!factory.isShardPooled()) {
+            return executeSharded(fallback, shardedJedis -> action.doIn(shardedJedis.getShard(key)));
         }
-        return result;
+        migrateKey(key);
+        return executeRouted(command, replicaOf(key), factory.getShardIndex(key), fallback, action);
     }
 
-    public String type(String key) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private void sample(Protocol.Command command, String key) {
+        ShardRedisHotKeySampler sampler = hotKeySampler;
+        if (sampler != null && factory.getRouter() != null) {
+            sampler.record(factory.getShardIndex(key), command, key);
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.type(key);
+    }
 
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    private void sample(Protocol.Command command, byte[] key) {
+        ShardRedisHotKeySampler sampler = hotKeySampler;
+        if (sampler != null && factory.getRouter() != null) {
+            sampler.record(factory.getShardIndex(key), command, key);
         }
-        return result;
     }
 
     /**
-     * 在某段时间后实现
-     *
-     * @param key
-     * @param seconds
-     * @return
+     * 参数只有 key 的只读命令：开启读合并时，同一 key 上并发的相同命令共用一次访问
      */
-    public Long expire(String key, int seconds) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private <T> T read(Protocol.Command command, String key, T fallback, JedisCallback.DoInJedis<T> action) {
+        ShardRedisSingleFlight flight = singleFlight;
+        if (flight == null) {
+            return execute(command, key, fallback, action);
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.expire(key, seconds);
+        return flight.execute(command, key, () -> execute(command, key, fallback, action));
+    }
 
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    private <T> T read(Protocol.Command command, byte[] key, T fallback, JedisCallback.DoInJedis<T> action) {
+        ShardRedisSingleFlight flight = singleFlight;
+        if (flight == null) {
+            return execute(command, key, fallback, action);
         }
-        return result;
+        return flight.execute(command, key, () -> execute(command, key, fallback, action));
     }
 
     /**
-     * 在某个时间点失效
-     *
-     * @param key
-     * @param unixTime
-     * @return
+     * 热点 key 的读命令随机分散到主分片和副本，写命令在主分片执行后同步到副本；
+     * 开启从库读时，其余读命令先发往分片的从库，没有可用从库或执行失败时回到主库
      */
-    public Long expireAt(String key, long unixTime) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
+    @SuppressWarnings("unchecked")
+    private <T> T executeRouted(Protocol.Command command, ShardRedisHotKeyReplicator.Replica replica, int shard,
+                                T fallback, JedisCallback.DoInJedis<T> action) {
+        ShardRedisCommandPolicy policy = commandPolicy;
+        boolean read = RedisCommands.isRead(command);
+        if (read && replica != null && !RedisCommands.isNilOnMiss(command)) {
+            // 副本上读不到时无法和正常返回值区分，只读主分片
+            replica = null;
+        }
+        ShardRedisReplicaRouter replicas = replicaRouter;
+        // 从库按创建时连接工厂的分片下标登记，连接工厂换过（例如迁移）后分片下标不再对应
+        if (read && replica == null && replicas != null && replicas.getFactory() == factory && migration == null) {
+            Object result = replicas.read(shard, action);
+            if (result != ShardRedisCommandPolicy.FAILED) {
+                return (T) result;
+            }
+        }
+        if (read && policy != null && policy.isHedging()) {
+            // 对冲请求优先发往另一个副本，没有副本时发往同一分片的另一个连接
+            int target = replica == null ? shard : replica.pickShard();
+            int hedge = replica == null ? shard : replica.pickShard();
+            T result = policy.hedge(target, hedge, fallback, s -> executeOrFail(command, s, action));
+            if (replica != null && target != shard && result == null) {
+                result = executeOnShard(command, shard, fallback, action);
+            }
             return result;
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.expireAt(key, unixTime);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        if (replica == null) {
+            return executeOnShard(command, shard, fallback, action);
+        }
+        if (read) {
+            int target = replica.pickShard();
+            T result = executeOnShard(command, target, fallback, action);
+            if (target != shard && result == null) {
+                // 副本上读不到时回到主分片
+                result = executeOnShard(command, shard, fallback, action);
+            }
+            return result;
         }
+        T result = executeOnShard(command, shard, fallback, action);
+        hotKeyReplicator.sync(replica);
         return result;
     }
 
-    public Long ttl(String key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private ShardRedisHotKeyReplicator.Replica replicaOf(String key) {
+        ShardRedisHotKeyReplicator replicator = hotKeyReplicator;
+        return replicator == null ? null : replicator.lookup(key);
+    }
+
+    private ShardRedisHotKeyReplicator.Replica replicaOf(byte[] key) {
+        ShardRedisHotKeyReplicator replicator = hotKeyReplicator;
+        return replicator == null ? null : replicator.lookup(key);
+    }
+
+    private void syncReplicas(String[] keys) {
+        ShardRedisHotKeyReplicator replicator = hotKeyReplicator;
+        if (replicator != null) {
+            for (String key : keys) {
+                ShardRedisHotKeyReplicator.Replica replica = replicator.lookup(key);
+                if (replica != null) {
+                    replicator.sync(replica);
+                }
+            }
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.ttl(key);
+    }
 
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    private void syncReplicas(byte[][] keys) {
+        ShardRedisHotKeyReplicator replicator = hotKeyReplicator;
+        if (replicator != null) {
+            for (byte[] key : keys) {
+                ShardRedisHotKeyReplicator.Replica replica = replicator.lookup(key);
+                if (replica != null) {
+                    replicator.sync(replica);
+                }
+            }
         }
-        return result;
     }
 
-    public boolean setbit(String key, long offset, boolean value) {
+    void migrateKey(String key) {
+        ShardRedisMigration running = migration;
+        if (running != null) {
+            running.migrateKey(key);
+        }
+    }
 
-        ShardedJedis shardedJedis = factory.getConnection();
-        boolean result = false;
-        if (shardedJedis == null) {
-            return result;
+    void migrateKey(byte[] key) {
+        ShardRedisMigration running = migration;
+        if (running != null) {
+            running.migrateKey(key);
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.setbit(key, offset, value);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    }
+
+    <T> T executeOnShard(int shard, T fallback, JedisCallback.DoInJedis<T> action) {
+        return executeOnShard(null, shard, fallback, action);
+    }
+
+    /**
+     * 设置了命令策略时，按命令的超时预算临时调整 socket 读超时，并记录每个分片的命令耗时。
+     * 命令执行中发现连接已断开时，后台校验该分片的其余空闲连接，幂等命令换一个新连接重试一次。
+     * 集群模式下收到 MOVED / ASK 时转到目标节点重试，最多 MAX_REDIRECTS 次
+     */
+    private <T> T executeOnShard(Protocol.Command command, int shard, T fallback, JedisCallback.DoInJedis<T> action) {
+        int redirects = 0;
+        boolean asking = false;
+        for (int attempt = 0; ; attempt++) {
+            Jedis jedis = factory.getConnection(shard);
+            if (jedis == null) {
+                if (failFast && factory.isCircuitOpen(shard)) {
+                    throw new ShardRedisUnavailableException(factory.getShardName(shard));
+                }
+                return fallback;
+            }
+            ShardRedisCommandPolicy policy = commandPolicy;
+            int budget = policy == null ? 0 : policy.getBudgetMillis(command);
+            int soTimeout = jedis.getClient().getSoTimeout();
+            boolean budgeted = budget > 0 && budget < soTimeout;
+            long begin = System.nanoTime();
+            boolean broken = false;
+            boolean retry = false;
+            int redirect = -1;
+            try {
+                if (budgeted) {
+                    jedis.getClient().setSoTimeout(budget);
+                    jedis.getClient().rollbackTimeout();
+                }
+                if (asking) {
+                    jedis.asking();
+                }
+                return action.doIn(jedis);
+            } catch (JedisRedirectionException e) {
+                redirect = redirects < ShardRedisConnectionFactory.MAX_REDIRECTS ? factory.redirect(e) : -1;
+                if (redirect < 0) {
+                    log.error(e.getMessage(), e);
+                    return fallback;
+                }
+                redirects++;
+                asking = e instanceof JedisAskDataException;
+                continue;
+            } catch (Exception e) {
+                // 只有连接断开和读超时说明连接不可用，计入熔断失败；Redis 返回的错误（WRONGTYPE、BUSYKEY、脚本错误等）
+                // 和回调本身抛出的异常不影响连接，照常归还并按成功计入熔断器
+                broken = e instanceof JedisConnectionException;
+                if (HealthCheckedJedisPool.isBroken(e)) {
+                    factory.validateIdle(shard);
+                    // 熔断器半开时这次请求是探测请求，不重试，按失败计入熔断器以释放探测名额
+                    retry = attempt == 0 && RedisCommands.isIdempotent(command) && !(action instanceof NoRetry)
+                            && !factory.isCircuitOpen(shard);
+                }
+                if (retry) {
+                    log.warn("connection broken, retry " + command + " on a fresh connection: " + e.getMessage());
+                    continue;
+                }
+                log.error(e.getMessage(), e);
+                if (budgeted && e.getCause() instanceof SocketTimeoutException) {
+                    policy.recordDeadlineExceeded();
+                }
+                return fallback;
+            } finally {
+                if (budgeted) {
+                    // 恢复连接本身的超时，断开的连接重新连接时也会用到；连接还可用时同时恢复 socket 上的超时
+                    jedis.getClient().setSoTimeout(soTimeout);
+                    if (!broken && !retry) {
+                        try {
+                            jedis.getClient().rollbackTimeout();
+                        } catch (JedisConnectionException e) {
+                            broken = true;
+                        }
+                    }
+                }
+                long elapsed = System.nanoTime() - begin;
+                // 多 key 和 pipeline 调用的耗时与单条命令不可比，不参与对冲延迟统计
+                if (policy != null && command != null) {
+                    policy.recordLatency(shard, elapsed);
+                }
+                if (retry) {
+                    factory.invalidate(shard, jedis);
+                } else {
+                    factory.returnResource(shard, jedis, broken, elapsed);
+                }
+                if (redirect >= 0) {
+                    shard = redirect;
+                }
+            }
         }
-        return result;
     }
 
-    public boolean getbit(String key, long offset) {
-        ShardedJedis shardedJedis = factory.getConnection();
-        boolean result = false;
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 标记命令在连接断开后不重试，用于参数决定是否幂等的命令，例如带 NX / XX 的 SET
+     */
+    private static final class NoRetry<T> implements JedisCallback.DoInJedis<T> {
+        private final JedisCallback.DoInJedis<T> action;
+
+        NoRetry(JedisCallback.DoInJedis<T> action) {
+            this.action = action;
         }
-        boolean broken = false;
 
-        try {
-            result = shardedJedis.getbit(key, offset);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        @Override
+        public T doIn(Jedis jedis) {
+            return action.doIn(jedis);
         }
-        return result;
     }
 
-    public long setrange(String key, long offset, String value) {
+    /**
+     * 同 executeOnShard，但失败时返回 ShardRedisCommandPolicy.FAILED，供对冲读区分失败和空结果
+     */
+    private Object executeOrFail(Protocol.Command command, int shard, JedisCallback.DoInJedis<?> action) {
+        return executeOnShard(command, shard, ShardRedisCommandPolicy.FAILED, jedis -> action.doIn(jedis));
+    }
+
+    /**
+     * 未按分片建池时，借用整个 ShardedJedis 执行
+     */
+    <T> T executeSharded(T fallback, Function<ShardedJedis, T> action) {
         ShardedJedis shardedJedis = factory.getConnection();
-        long result = 0;
         if (shardedJedis == null) {
-            return result;
+            return fallback;
         }
         boolean broken = false;
         try {
-            result = shardedJedis.setrange(key, offset, value);
+            return action.apply(shardedJedis);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             broken = true;
+            return fallback;
         } finally {
             factory.returnResource(shardedJedis, broken);
         }
-        return result;
     }
 
-    public String getrange(String key, long startOffset, long endOffset) {
-        ShardedJedis shardedJedis = factory.getConnection();
-        String result = null;
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 开启自动合批时，单 key 命令交给 batchExecutor 与其他线程的命令合并到同一个 pipeline 中执行
+     */
+    private <T> T batch(Protocol.Command type, String key, T fallback, JedisCallback.DoInPipeline<T> command) {
+        if (migration != null || replicaOf(key) != null || (replicaRouter != null && RedisCommands.isRead(type))) {
+            // 合批执行器按旧分片列表路由、也不认识热点副本和从库，这几种情况逐条执行
+            return execute(type, key, fallback, jedis -> pipelineOne(jedis, command));
         }
-        boolean broken = false;
+        sample(type, key);
         try {
-            result = shardedJedis.getrange(key, startOffset, endOffset);
-
+            return batchExecutor.execute(key, command);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+            if (failFast && factory.isShardPooled()) {
+                failIfUnavailable(factory.getShardIndex(key));
+            }
+            return fallback;
         }
-        return result;
     }
 
-    public String getSet(String key, String value) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private <T> T batch(Protocol.Command type, byte[] key, T fallback, JedisCallback.DoInPipeline<T> command) {
+        if (migration != null || replicaOf(key) != null || (replicaRouter != null && RedisCommands.isRead(type))) {
+            // 合批执行器按旧分片列表路由、也不认识热点副本和从库，这几种情况逐条执行
+            return execute(type, key, fallback, jedis -> pipelineOne(jedis, command));
         }
-        boolean broken = false;
+        sample(type, key);
         try {
-            result = shardedJedis.getSet(key, value);
+            return batchExecutor.execute(key, command);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+            if (failFast && factory.isShardPooled()) {
+                failIfUnavailable(factory.getShardIndex(key));
+            }
+            return fallback;
         }
-        return result;
     }
 
-    public Long setnx(String key, String value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private <T> T readBatched(Protocol.Command type, String key, T fallback, JedisCallback.DoInPipeline<T> command) {
+        ShardRedisSingleFlight flight = singleFlight;
+        if (flight == null) {
+            return batch(type, key, fallback, command);
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.setnx(key, value);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        return flight.execute(type, key, () -> batch(type, key, fallback, command));
+    }
+
+    private <T> T readBatched(Protocol.Command type, byte[] key, T fallback, JedisCallback.DoInPipeline<T> command) {
+        ShardRedisSingleFlight flight = singleFlight;
+        if (flight == null) {
+            return batch(type, key, fallback, command);
         }
-        return result;
+        return flight.execute(type, key, () -> batch(type, key, fallback, command));
     }
 
-    public String setex(String key, int seconds, String value) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 开启 failFast 且分片熔断器未关闭时抛出 ShardRedisUnavailableException
+     */
+    private void failIfUnavailable(int shard) {
+        if (factory.isCircuitOpen(shard)) {
+            throw new ShardRedisUnavailableException(factory.getShardName(shard));
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.setex(key, seconds, value);
+    }
 
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long decrBy(String key, long integer) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.decrBy(key, integer);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long decr(String key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.decr(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long incrBy(String key, long integer) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.incrBy(key, integer);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long incr(String key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.incr(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long append(String key, String value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.append(key, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String substr(String key, int start, int end) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.substr(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long hset(String key, String field, String value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hset(key, field, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String hget(String key, String field) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hget(key, field);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long hsetnx(String key, String field, String value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hsetnx(key, field, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String hmset(String key, Map<String, String> hash) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hmset(key, hash);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public List<String> hmget(String key, String... fields) {
-        List<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hmget(key, fields);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long hincrBy(String key, String field, long value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hincrBy(key, field, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Boolean hexists(String key, String field) {
-        Boolean result = false;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hexists(key, field);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long del(String key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.del(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long del(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.del(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long hdel(String key, String field) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hdel(key, field);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long hlen(String key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hlen(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> hkeys(String key) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hkeys(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public List<String> hvals(String key) {
-        List<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hvals(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Map<String, String> hgetAll(String key) {
-        Map<String, String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.hgetAll(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    // ================list ====== l表示 list或 left, r表示right====================
-    public Long rpush(String key, String string) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.rpush(key, string);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long lpush(String key, String string) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.lpush(key, string);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long llen(String key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.llen(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public List<String> lrange(String key, long start, long end) {
-        List<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.lrange(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String ltrim(String key, long start, long end) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.ltrim(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String lindex(String key, long index) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.lindex(key, index);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String lset(String key, long index, String value) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.lset(key, index, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long lrem(String key, long count, String value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.lrem(key, count, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String lpop(String key) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.lpop(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String rpop(String key) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.rpop(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    //return 1 add a not exist value ,
-    //return 0 add a exist value
-    public Long sadd(String key, String member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.sadd(key, member);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> smembers(String key) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.smembers(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long srem(String key, String member) {
-        ShardedJedis shardedJedis = factory.getConnection();
-
-        Long result = null;
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.srem(key, member);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String spop(String key) {
-        ShardedJedis shardedJedis = factory.getConnection();
-        String result = null;
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.spop(key);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long scard(String key) {
-        ShardedJedis shardedJedis = factory.getConnection();
-        Long result = null;
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.scard(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Boolean sismember(String key, String member) {
-        ShardedJedis shardedJedis = factory.getConnection();
-        Boolean result = null;
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.sismember(key, member);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String srandmember(String key) {
-        ShardedJedis shardedJedis = factory.getConnection();
-        String result = null;
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.srandmember(key);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zadd(String key, double score, String member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zadd(key, score, member);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> zrange(String key, int start, int end) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zrange(key, start, end);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zrem(String key, String member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zrem(key, member);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Double zincrby(String key, double score, String member) {
-        Double result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zincrby(key, score, member);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zrank(String key, String member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrank(key, member);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zrevrank(String key, String member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrevrank(key, member);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> zrevrange(String key, int start, int end) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrevrange(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<Tuple> zrangeWithScores(String key, int start, int end) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrangeWithScores(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<Tuple> zrevrangeWithScores(String key, int start, int end) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrevrangeWithScores(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zcard(String key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zcard(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Double zscore(String key, String member) {
-        Double result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zscore(key, member);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public List<String> sort(String key) {
-        List<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.sort(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public List<String> sort(String key, SortingParams sortingParameters) {
-        List<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.sort(key, sortingParameters);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zcount(String key, double min, double max) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zcount(key, min, max);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> zrangeByScore(String key, double min, double max) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrangeByScore(key, min, max);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> zrevrangeByScore(String key, double max, double min) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrevrangeByScore(key, max, min);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> zrangeByScore(String key, double min, double max, int offset, int count) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrangeByScore(key, min, max, offset, count);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<String> zrevrangeByScore(String key, double max, double min, int offset, int count) {
-        Set<String> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrevrangeByScore(key, max, min, offset, count);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<Tuple> zrangeByScoreWithScores(String key, double min, double max) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrangeByScoreWithScores(key, min, max);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<Tuple> zrevrangeByScoreWithScores(String key, double max, double min) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrevrangeByScoreWithScores(key, max, min);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<Tuple> zrangeByScoreWithScores(String key, double min, double max, int offset, int count) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrangeByScoreWithScores(key, min, max, offset, count);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Set<Tuple> zrevrangeByScoreWithScores(String key, double max, double min, int offset, int count) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zrevrangeByScoreWithScores(key, max, min, offset, count);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zremrangeByRank(String key, int start, int end) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zremrangeByRank(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long zremrangeByScore(String key, double start, double end) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.zremrangeByScore(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long linsert(String key, BinaryClient.LIST_POSITION where, String pivot, String value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.linsert(key, where, pivot, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String set(byte[] key, byte[] value) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.set(key, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public byte[] get(byte[] key) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.get(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Boolean exists(byte[] key) {
-        Boolean result = false;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.exists(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String type(byte[] key) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.type(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long expire(byte[] key, int seconds) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.expire(key, seconds);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long expireAt(byte[] key, long unixTime) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.expireAt(key, unixTime);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long ttl(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.ttl(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public byte[] getSet(byte[] key, byte[] value) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.getSet(key, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long setnx(byte[] key, byte[] value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.setnx(key, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String setex(byte[] key, int seconds, byte[] value) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.setex(key, seconds, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long decrBy(byte[] key, long integer) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.decrBy(key, integer);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long decr(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.decr(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long incrBy(byte[] key, long integer) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.incrBy(key, integer);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long incr(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.incr(key);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long append(byte[] key, byte[] value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.append(key, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public byte[] substr(byte[] key, int start, int end) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.substr(key, start, end);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long hset(byte[] key, byte[] field, byte[] value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.hset(key, field, value);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public byte[] hget(byte[] key, byte[] field) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.hget(key, field);
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public Long hsetnx(byte[] key, byte[] field, byte[] value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.hsetnx(key, field, value);
-
-        } catch (Exception e) {
-
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
-    }
-
-    public String hmset(byte[] key, Map<byte[], byte[]> hash) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.hmset(key, hash);
-
-        } catch (Exception e) {
+    private static <T> T pipelineOne(Jedis jedis, JedisCallback.DoInPipeline<T> command) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<T> response = command.doIn(pipeline);
+        pipeline.sync();
+        return response.get();
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    /**
+     * 设置单个值
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    public String set(String key, String value) {
+        if (batchExecutor != null) {
+            return batch(SET, key, null, p -> p.set(key, value));
         }
-        return result;
+        return execute(SET, key, null, jedis -> jedis.set(key, value));
     }
 
-    public List<byte[]> hmget(byte[] key, byte[]... fields) {
-        List<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 获取单个值
+     *
+     * @param key
+     * @return
+     */
+    public String get(String key) {
+        if (batchExecutor != null) {
+            return readBatched(GET, key, null, p -> p.get(key));
         }
-        boolean broken = false;
-        try {
+        return read(GET, key, null, jedis -> jedis.get(key));
+    }
 
-            result = shardedJedis.hmget(key, fields);
+    public Boolean exists(String key) {
+        if (batchExecutor != null) {
+            return readBatched(EXISTS, key, false, p -> p.exists(key));
+        }
+        return read(EXISTS, key, false, jedis -> jedis.exists(key));
+    }
 
-        } catch (Exception e) {
+    public String type(String key) {
+        return read(TYPE, key, null, jedis -> jedis.type(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    /**
+     * 在某段时间后实现
+     *
+     * @param key
+     * @param seconds
+     * @return
+     */
+    public Long expire(String key, int seconds) {
+        if (batchExecutor != null) {
+            return batch(EXPIRE, key, null, p -> p.expire(key, seconds));
         }
-        return result;
+        return execute(EXPIRE, key, null, jedis -> jedis.expire(key, seconds));
     }
 
-    public Long hincrBy(byte[] key, byte[] field, long value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    /**
+     * 在某个时间点失效
+     *
+     * @param key
+     * @param unixTime
+     * @return
+     */
+    public Long expireAt(String key, long unixTime) {
+        return execute(EXPIREAT, key, null, jedis -> jedis.expireAt(key, unixTime));
+    }
 
-            result = shardedJedis.hincrBy(key, field, value);
+    public Long ttl(String key) {
+        if (batchExecutor != null) {
+            return readBatched(TTL, key, null, p -> p.ttl(key));
+        }
+        return read(TTL, key, null, jedis -> jedis.ttl(key));
+    }
 
-        } catch (Exception e) {
+    public boolean setbit(String key, long offset, boolean value) {
+        return execute(SETBIT, key, false, jedis -> jedis.setbit(key, offset, value));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public boolean getbit(String key, long offset) {
+        return execute(GETBIT, key, false, jedis -> jedis.getbit(key, offset));
     }
 
-    public Boolean hexists(byte[] key, byte[] field) {
-        Boolean result = false;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public long setrange(String key, long offset, String value) {
+        return execute(SETRANGE, key, 0L, jedis -> jedis.setrange(key, offset, value));
+    }
 
-            result = shardedJedis.hexists(key, field);
+    public String getrange(String key, long startOffset, long endOffset) {
+        return execute(GETRANGE, key, null, jedis -> jedis.getrange(key, startOffset, endOffset));
+    }
 
-        } catch (Exception e) {
+    public String getSet(String key, String value) {
+        return execute(GETSET, key, null, jedis -> jedis.getSet(key, value));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long setnx(String key, String value) {
+        return execute(SETNX, key, null, jedis -> jedis.setnx(key, value));
     }
 
-    public Long hdel(byte[] key, byte[] field) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public String setex(String key, int seconds, String value) {
+        if (batchExecutor != null) {
+            return batch(SETEX, key, null, p -> p.setex(key, seconds, value));
         }
-        boolean broken = false;
-        try {
+        return execute(SETEX, key, null, jedis -> jedis.setex(key, seconds, value));
+    }
 
-            result = shardedJedis.hdel(key, field);
+    public Long decrBy(String key, long integer) {
+        return execute(DECRBY, key, null, jedis -> jedis.decrBy(key, integer));
+    }
 
-        } catch (Exception e) {
+    public Long decr(String key) {
+        if (batchExecutor != null) {
+            return batch(DECR, key, null, p -> p.decr(key));
+        }
+        return execute(DECR, key, null, jedis -> jedis.decr(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long incrBy(String key, long integer) {
+        if (batchExecutor != null) {
+            return batch(INCRBY, key, null, p -> p.incrBy(key, integer));
         }
-        return result;
+        return execute(INCRBY, key, null, jedis -> jedis.incrBy(key, integer));
     }
 
-    public Long hlen(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long incr(String key) {
+        if (batchExecutor != null) {
+            return batch(INCR, key, null, p -> p.incr(key));
         }
-        boolean broken = false;
-        try {
+        return execute(INCR, key, null, jedis -> jedis.incr(key));
+    }
 
-            result = shardedJedis.hlen(key);
+    public Long append(String key, String value) {
+        return execute(APPEND, key, null, jedis -> jedis.append(key, value));
+    }
 
-        } catch (Exception e) {
+    public String substr(String key, int start, int end) {
+        return execute(SUBSTR, key, null, jedis -> jedis.substr(key, start, end));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long hset(String key, String field, String value) {
+        if (batchExecutor != null) {
+            return batch(HSET, key, null, p -> p.hset(key, field, value));
         }
-        return result;
+        return execute(HSET, key, null, jedis -> jedis.hset(key, field, value));
     }
 
-    public Set<byte[]> hkeys(byte[] key) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public String hget(String key, String field) {
+        if (batchExecutor != null) {
+            return batch(HGET, key, null, p -> p.hget(key, field));
         }
-        boolean broken = false;
-        try {
+        return execute(HGET, key, null, jedis -> jedis.hget(key, field));
+    }
 
-            result = shardedJedis.hkeys(key);
+    public Long hsetnx(String key, String field, String value) {
+        return execute(HSETNX, key, null, jedis -> jedis.hsetnx(key, field, value));
+    }
 
-        } catch (Exception e) {
+    public String hmset(String key, Map<String, String> hash) {
+        return execute(HMSET, key, null, jedis -> jedis.hmset(key, hash));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public List<String> hmget(String key, String... fields) {
+        if (batchExecutor != null) {
+            return batch(HMGET, key, null, p -> p.hmget(key, fields));
         }
-        return result;
+        return execute(HMGET, key, null, jedis -> jedis.hmget(key, fields));
     }
 
-    public Collection<byte[]> hvals(byte[] key) {
-        Collection<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long hincrBy(String key, String field, long value) {
+        if (batchExecutor != null) {
+            return batch(HINCRBY, key, null, p -> p.hincrBy(key, field, value));
         }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.hvals(key);
+        return execute(HINCRBY, key, null, jedis -> jedis.hincrBy(key, field, value));
+    }
 
-        } catch (Exception e) {
+    public Boolean hexists(String key, String field) {
+        return execute(HEXISTS, key, false, jedis -> jedis.hexists(key, field));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long del(String key) {
+        if (batchExecutor != null) {
+            return batch(DEL, key, null, p -> p.del(key));
         }
-        return result;
+        return execute(DEL, key, null, jedis -> jedis.del(key));
     }
 
-    public Map<byte[], byte[]> hgetAll(byte[] key) {
-        Map<byte[], byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long del(byte[] key) {
+        if (batchExecutor != null) {
+            return batch(DEL, key, null, p -> p.del(key));
         }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.hgetAll(key);
+        return execute(DEL, key, null, jedis -> jedis.del(key));
+    }
 
-        } catch (Exception e) {
+    public Long hdel(String key, String field) {
+        return execute(HDEL, key, null, jedis -> jedis.hdel(key, field));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long hlen(String key) {
+        return read(HLEN, key, null, jedis -> jedis.hlen(key));
     }
 
-    public Long rpush(byte[] key, byte[] string) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<String> hkeys(String key) {
+        return execute(HKEYS, key, null, jedis -> jedis.hkeys(key));
+    }
 
-            result = shardedJedis.rpush(key, string);
+    public List<String> hvals(String key) {
+        return execute(HVALS, key, null, jedis -> jedis.hvals(key));
+    }
 
-        } catch (Exception e) {
+    public Map<String, String> hgetAll(String key) {
+        return execute(HGETALL, key, null, jedis -> jedis.hgetAll(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    // ================list ====== l表示 list或 left, r表示right====================
+    public Long rpush(String key, String string) {
+        return execute(RPUSH, key, null, jedis -> jedis.rpush(key, string));
     }
 
-    public Long lpush(byte[] key, byte[] string) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Long lpush(String key, String string) {
+        return execute(LPUSH, key, null, jedis -> jedis.lpush(key, string));
+    }
 
-            result = shardedJedis.lpush(key, string);
+    public Long llen(String key) {
+        return read(LLEN, key, null, jedis -> jedis.llen(key));
+    }
 
-        } catch (Exception e) {
+    public List<String> lrange(String key, long start, long end) {
+        return execute(LRANGE, key, null, jedis -> jedis.lrange(key, start, end));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public String ltrim(String key, long start, long end) {
+        return execute(LTRIM, key, null, jedis -> jedis.ltrim(key, start, end));
     }
 
-    public Long llen(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public String lindex(String key, long index) {
+        return execute(LINDEX, key, null, jedis -> jedis.lindex(key, index));
+    }
 
-            result = shardedJedis.llen(key);
+    public String lset(String key, long index, String value) {
+        return execute(LSET, key, null, jedis -> jedis.lset(key, index, value));
+    }
 
-        } catch (Exception e) {
+    public Long lrem(String key, long count, String value) {
+        return execute(LREM, key, null, jedis -> jedis.lrem(key, count, value));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public String lpop(String key) {
+        return execute(LPOP, key, null, jedis -> jedis.lpop(key));
     }
 
-    public List<byte[]> lrange(byte[] key, int start, int end) {
-        List<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public String rpop(String key) {
+        return execute(RPOP, key, null, jedis -> jedis.rpop(key));
+    }
 
-            result = shardedJedis.lrange(key, start, end);
+    //return 1 add a not exist value ,
+    //return 0 add a exist value
+    public Long sadd(String key, String member) {
+        if (batchExecutor != null) {
+            return batch(SADD, key, null, p -> p.sadd(key, member));
+        }
+        return execute(SADD, key, null, jedis -> jedis.sadd(key, member));
+    }
 
-        } catch (Exception e) {
+    public Set<String> smembers(String key) {
+        return execute(SMEMBERS, key, null, jedis -> jedis.smembers(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long srem(String key, String member) {
+        return execute(SREM, key, null, jedis -> jedis.srem(key, member));
     }
 
-    public String ltrim(byte[] key, int start, int end) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public String spop(String key) {
+        return execute(SPOP, key, null, jedis -> jedis.spop(key));
+    }
 
-            result = shardedJedis.ltrim(key, start, end);
+    public Long scard(String key) {
+        return read(SCARD, key, null, jedis -> jedis.scard(key));
+    }
 
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Boolean sismember(String key, String member) {
+        if (batchExecutor != null) {
+            return batch(SISMEMBER, key, null, p -> p.sismember(key, member));
         }
-        return result;
+        return execute(SISMEMBER, key, null, jedis -> jedis.sismember(key, member));
     }
 
-    public byte[] lindex(byte[] key, int index) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public String srandmember(String key) {
+        return execute(SRANDMEMBER, key, null, jedis -> jedis.srandmember(key));
+    }
+
+    public Long zadd(String key, double score, String member) {
+        if (batchExecutor != null) {
+            return batch(ZADD, key, null, p -> p.zadd(key, score, member));
         }
-        boolean broken = false;
-        try {
+        return execute(ZADD, key, null, jedis -> jedis.zadd(key, score, member));
+    }
 
-            result = shardedJedis.lindex(key, index);
+    public Set<String> zrange(String key, int start, int end) {
+        return execute(ZRANGE, key, null, jedis -> jedis.zrange(key, start, end));
+    }
 
-        } catch (Exception e) {
+    public Long zrem(String key, String member) {
+        return execute(ZREM, key, null, jedis -> jedis.zrem(key, member));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Double zincrby(String key, double score, String member) {
+        if (batchExecutor != null) {
+            return batch(ZINCRBY, key, null, p -> p.zincrby(key, score, member));
         }
-        return result;
+        return execute(ZINCRBY, key, null, jedis -> jedis.zincrby(key, score, member));
     }
 
-    public String lset(byte[] key, int index, byte[] value) {
-        String result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long zrank(String key, String member) {
+        if (batchExecutor != null) {
+            return batch(ZRANK, key, null, p -> p.zrank(key, member));
         }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.lset(key, index, value);
-
-        } catch (Exception e) {
+        return execute(ZRANK, key, null, jedis -> jedis.zrank(key, member));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long zrevrank(String key, String member) {
+        if (batchExecutor != null) {
+            return batch(ZREVRANK, key, null, p -> p.zrevrank(key, member));
         }
-        return result;
+        return execute(ZREVRANK, key, null, jedis -> jedis.zrevrank(key, member));
     }
 
-    public Long lrem(byte[] key, int count, byte[] value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<String> zrevrange(String key, int start, int end) {
+        return execute(ZREVRANGE, key, null, jedis -> jedis.zrevrange(key, start, end));
+    }
 
-            result = shardedJedis.lrem(key, count, value);
+    public Set<Tuple> zrangeWithScores(String key, int start, int end) {
+        return execute(ZRANGE, key, null, jedis -> jedis.zrangeWithScores(key, start, end));
+    }
 
-        } catch (Exception e) {
+    public Set<Tuple> zrevrangeWithScores(String key, int start, int end) {
+        return execute(ZREVRANGE, key, null, jedis -> jedis.zrevrangeWithScores(key, start, end));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long zcard(String key) {
+        return read(ZCARD, key, null, jedis -> jedis.zcard(key));
     }
 
-    public byte[] lpop(byte[] key) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Double zscore(String key, String member) {
+        if (batchExecutor != null) {
+            return batch(ZSCORE, key, null, p -> p.zscore(key, member));
         }
-        boolean broken = false;
-        try {
+        return execute(ZSCORE, key, null, jedis -> jedis.zscore(key, member));
+    }
 
-            result = shardedJedis.lpop(key);
+    public List<String> sort(String key) {
+        return execute(SORT, key, null, jedis -> jedis.sort(key));
+    }
 
-        } catch (Exception e) {
+    public List<String> sort(String key, SortingParams sortingParameters) {
+        return execute(SORT, key, null, jedis -> jedis.sort(key, sortingParameters));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long zcount(String key, double min, double max) {
+        return execute(ZCOUNT, key, null, jedis -> jedis.zcount(key, min, max));
     }
 
-    public byte[] rpop(byte[] key) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<String> zrangeByScore(String key, double min, double max) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScore(key, min, max));
+    }
 
-            result = shardedJedis.rpop(key);
+    public Set<String> zrevrangeByScore(String key, double max, double min) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScore(key, max, min));
+    }
 
-        } catch (Exception e) {
+    public Set<String> zrangeByScore(String key, double min, double max, int offset, int count) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScore(key, min, max, offset, count));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Set<String> zrevrangeByScore(String key, double max, double min, int offset, int count) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScore(key, max, min, offset, count));
     }
 
-    public Long sadd(byte[] key, byte[] member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<Tuple> zrangeByScoreWithScores(String key, double min, double max) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScoreWithScores(key, min, max));
+    }
 
-            result = shardedJedis.sadd(key, member);
+    public Set<Tuple> zrevrangeByScoreWithScores(String key, double max, double min) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScoreWithScores(key, max, min));
+    }
 
-        } catch (Exception e) {
+    public Set<Tuple> zrangeByScoreWithScores(String key, double min, double max, int offset, int count) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScoreWithScores(key, min, max, offset, count));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Set<Tuple> zrevrangeByScoreWithScores(String key, double max, double min, int offset, int count) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScoreWithScores(key, max, min, offset, count));
     }
 
-    public Set<byte[]> smembers(byte[] key) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Long zremrangeByRank(String key, int start, int end) {
+        return execute(ZREMRANGEBYRANK, key, null, jedis -> jedis.zremrangeByRank(key, start, end));
+    }
 
-            result = shardedJedis.smembers(key);
+    public Long zremrangeByScore(String key, double start, double end) {
+        return execute(ZREMRANGEBYSCORE, key, null, jedis -> jedis.zremrangeByScore(key, start, end));
+    }
 
-        } catch (Exception e) {
+    public Long linsert(String key, BinaryClient.LIST_POSITION where, String pivot, String value) {
+        return execute(LINSERT, key, null, jedis -> jedis.linsert(key, where, pivot, value));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public String set(byte[] key, byte[] value) {
+        if (batchExecutor != null) {
+            return batch(SET, key, null, p -> p.set(key, value));
         }
-        return result;
+        return execute(SET, key, null, jedis -> jedis.set(key, value));
     }
 
-    public Long srem(byte[] key, byte[] member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * SET key value NX|XX EX|PX time，条件不满足时返回 null
+     */
+    public String set(byte[] key, byte[] value, String nxxx, String expx, long time) {
+        // 条件写入不能在断线后重试：第一次已写入但回复丢失时，重试会因条件不满足返回 null
+        return execute(SET, key, null,
+                new NoRetry<>(jedis -> jedis.set(key, value, SafeEncoder.encode(nxxx), SafeEncoder.encode(expx), time)));
+    }
+
+    public byte[] get(byte[] key) {
+        if (batchExecutor != null) {
+            return readBatched(GET, key, null, p -> p.get(key));
         }
-        boolean broken = false;
-        try {
+        return read(GET, key, null, jedis -> jedis.get(key));
+    }
 
-            result = shardedJedis.srem(key, member);
+    public Boolean exists(byte[] key) {
+        if (batchExecutor != null) {
+            return readBatched(EXISTS, key, false, p -> p.exists(key));
+        }
+        return read(EXISTS, key, false, jedis -> jedis.exists(key));
+    }
 
-        } catch (Exception e) {
+    public String type(byte[] key) {
+        return read(TYPE, key, null, jedis -> jedis.type(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long expire(byte[] key, int seconds) {
+        if (batchExecutor != null) {
+            return batch(EXPIRE, key, null, p -> p.expire(key, seconds));
         }
-        return result;
+        return execute(EXPIRE, key, null, jedis -> jedis.expire(key, seconds));
     }
 
-    public byte[] spop(byte[] key) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long expireAt(byte[] key, long unixTime) {
+        return execute(EXPIREAT, key, null, jedis -> jedis.expireAt(key, unixTime));
+    }
+
+    public Long ttl(byte[] key) {
+        if (batchExecutor != null) {
+            return readBatched(TTL, key, null, p -> p.ttl(key));
         }
-        boolean broken = false;
-        try {
+        return read(TTL, key, null, jedis -> jedis.ttl(key));
+    }
 
-            result = shardedJedis.spop(key);
+    public byte[] getSet(byte[] key, byte[] value) {
+        return execute(GETSET, key, null, jedis -> jedis.getSet(key, value));
+    }
 
-        } catch (Exception e) {
+    public Long setnx(byte[] key, byte[] value) {
+        return execute(SETNX, key, null, jedis -> jedis.setnx(key, value));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public String setex(byte[] key, int seconds, byte[] value) {
+        if (batchExecutor != null) {
+            return batch(SETEX, key, null, p -> p.setex(key, seconds, value));
         }
-        return result;
+        return execute(SETEX, key, null, jedis -> jedis.setex(key, seconds, value));
     }
 
-    public Long scard(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    /**
+     * key 不存在时写入并设置过期时间（秒，0 表示不过期），返回已有的值，写入成功返回 null；一次往返原子执行
+     */
+    public byte[] setIfAbsent(byte[] key, byte[] value, int seconds) {
+        return (byte[]) evalsha(RedisScriptRegistry.SET_IF_ABSENT, key, value, Protocol.toByteArray(seconds));
+    }
 
-            result = shardedJedis.scard(key);
+    /**
+     * 值等于 value 时才删除 key，用于释放 SET NX 加的锁，避免删掉锁过期后别人加的锁
+     */
+    public boolean deleteIfEquals(byte[] key, byte[] value) {
+        Object deleted = evalsha(RedisScriptRegistry.DELETE_IF_EQUALS, key, value);
+        return deleted instanceof Long && (Long) deleted > 0;
+    }
 
-        } catch (Exception e) {
+    /**
+     * 自增并设置过期时间，一次往返原子执行
+     */
+    public Long incrBy(String key, long integer, int seconds) {
+        return (Long) evalsha(RedisScriptRegistry.INCR_EXPIRE, SafeEncoder.encode(key),
+                Protocol.toByteArray(integer), Protocol.toByteArray(seconds));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    /**
+     * 在 key 所在分片上用 EVALSHA 执行已注册的单 key 脚本，脚本未加载时自动加载，见 RedisScriptRegistry
+     */
+    public Object evalsha(String script, byte[] key, byte[]... args) {
+        byte[][] params = new byte[args.length + 1][];
+        params[0] = key;
+        System.arraycopy(args, 0, params, 1, args.length);
+        return execute(EVALSHA, key, null, jedis -> RedisScriptRegistry.getInstance().evalsha(jedis, script, 1, params));
     }
 
-    public Boolean sismember(byte[] key, byte[] member) {
-        Boolean result = false;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-
-            result = shardedJedis.sismember(key, member);
+    public Long decrBy(byte[] key, long integer) {
+        return execute(DECRBY, key, null, jedis -> jedis.decrBy(key, integer));
+    }
 
-        } catch (Exception e) {
+    public Long decr(byte[] key) {
+        if (batchExecutor != null) {
+            return batch(DECR, key, null, p -> p.decr(key));
+        }
+        return execute(DECR, key, null, jedis -> jedis.decr(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long incrBy(byte[] key, long integer) {
+        if (batchExecutor != null) {
+            return batch(INCRBY, key, null, p -> p.incrBy(key, integer));
         }
-        return result;
+        return execute(INCRBY, key, null, jedis -> jedis.incrBy(key, integer));
     }
 
-    public byte[] srandmember(byte[] key) {
-        byte[] result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long incr(byte[] key) {
+        if (batchExecutor != null) {
+            return batch(INCR, key, null, p -> p.incr(key));
         }
-        boolean broken = false;
-        try {
+        return execute(INCR, key, null, jedis -> jedis.incr(key));
+    }
 
-            result = shardedJedis.srandmember(key);
+    public Long append(byte[] key, byte[] value) {
+        return execute(APPEND, key, null, jedis -> jedis.append(key, value));
+    }
 
-        } catch (Exception e) {
+    public byte[] substr(byte[] key, int start, int end) {
+        return execute(SUBSTR, key, null, jedis -> jedis.substr(key, start, end));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long hset(byte[] key, byte[] field, byte[] value) {
+        if (batchExecutor != null) {
+            return batch(HSET, key, null, p -> p.hset(key, field, value));
         }
-        return result;
+        return execute(HSET, key, null, jedis -> jedis.hset(key, field, value));
     }
 
-    public Long zadd(byte[] key, double score, byte[] member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public byte[] hget(byte[] key, byte[] field) {
+        if (batchExecutor != null) {
+            return batch(HGET, key, null, p -> p.hget(key, field));
         }
-        boolean broken = false;
-        try {
+        return execute(HGET, key, null, jedis -> jedis.hget(key, field));
+    }
 
-            result = shardedJedis.zadd(key, score, member);
+    public Long hsetnx(byte[] key, byte[] field, byte[] value) {
+        return execute(HSETNX, key, null, jedis -> jedis.hsetnx(key, field, value));
+    }
 
-        } catch (Exception e) {
+    public String hmset(byte[] key, Map<byte[], byte[]> hash) {
+        return execute(HMSET, key, null, jedis -> jedis.hmset(key, hash));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public List<byte[]> hmget(byte[] key, byte[]... fields) {
+        if (batchExecutor != null) {
+            return batch(HMGET, key, null, p -> p.hmget(key, fields));
         }
-        return result;
+        return execute(HMGET, key, null, jedis -> jedis.hmget(key, fields));
     }
 
-    public Set<byte[]> zrange(byte[] key, int start, int end) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long hincrBy(byte[] key, byte[] field, long value) {
+        if (batchExecutor != null) {
+            return batch(HINCRBY, key, null, p -> p.hincrBy(key, field, value));
         }
-        boolean broken = false;
-        try {
+        return execute(HINCRBY, key, null, jedis -> jedis.hincrBy(key, field, value));
+    }
 
-            result = shardedJedis.zrange(key, start, end);
+    public Boolean hexists(byte[] key, byte[] field) {
+        return execute(HEXISTS, key, false, jedis -> jedis.hexists(key, field));
+    }
 
-        } catch (Exception e) {
+    public Long hdel(byte[] key, byte[] field) {
+        return execute(HDEL, key, null, jedis -> jedis.hdel(key, field));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long hlen(byte[] key) {
+        return read(HLEN, key, null, jedis -> jedis.hlen(key));
     }
 
-    public Long zrem(byte[] key, byte[] member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<byte[]> hkeys(byte[] key) {
+        return execute(HKEYS, key, null, jedis -> jedis.hkeys(key));
+    }
 
-            result = shardedJedis.zrem(key, member);
+    public Collection<byte[]> hvals(byte[] key) {
+        return execute(HVALS, key, null, jedis -> jedis.hvals(key));
+    }
 
-        } catch (Exception e) {
+    public Map<byte[], byte[]> hgetAll(byte[] key) {
+        return execute(HGETALL, key, null, jedis -> jedis.hgetAll(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long rpush(byte[] key, byte[] string) {
+        return execute(RPUSH, key, null, jedis -> jedis.rpush(key, string));
     }
 
-    public Double zincrby(byte[] key, double score, byte[] member) {
-        Double result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Long lpush(byte[] key, byte[] string) {
+        return execute(LPUSH, key, null, jedis -> jedis.lpush(key, string));
+    }
 
-            result = shardedJedis.zincrby(key, score, member);
+    public Long llen(byte[] key) {
+        return read(LLEN, key, null, jedis -> jedis.llen(key));
+    }
 
-        } catch (Exception e) {
+    public List<byte[]> lrange(byte[] key, int start, int end) {
+        return execute(LRANGE, key, null, jedis -> jedis.lrange(key, start, end));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public String ltrim(byte[] key, int start, int end) {
+        return execute(LTRIM, key, null, jedis -> jedis.ltrim(key, start, end));
     }
 
-    public Long zrank(byte[] key, byte[] member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public byte[] lindex(byte[] key, int index) {
+        return execute(LINDEX, key, null, jedis -> jedis.lindex(key, index));
+    }
 
-            result = shardedJedis.zrank(key, member);
+    public String lset(byte[] key, int index, byte[] value) {
+        return execute(LSET, key, null, jedis -> jedis.lset(key, index, value));
+    }
 
-        } catch (Exception e) {
+    public Long lrem(byte[] key, int count, byte[] value) {
+        return execute(LREM, key, null, jedis -> jedis.lrem(key, count, value));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public byte[] lpop(byte[] key) {
+        return execute(LPOP, key, null, jedis -> jedis.lpop(key));
     }
 
-    public Long zrevrank(byte[] key, byte[] member) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public byte[] rpop(byte[] key) {
+        return execute(RPOP, key, null, jedis -> jedis.rpop(key));
+    }
+
+    public Long sadd(byte[] key, byte[] member) {
+        if (batchExecutor != null) {
+            return batch(SADD, key, null, p -> p.sadd(key, member));
         }
-        boolean broken = false;
-        try {
+        return execute(SADD, key, null, jedis -> jedis.sadd(key, member));
+    }
 
-            result = shardedJedis.zrevrank(key, member);
+    public Set<byte[]> smembers(byte[] key) {
+        return execute(SMEMBERS, key, null, jedis -> jedis.smembers(key));
+    }
 
-        } catch (Exception e) {
+    public Long srem(byte[] key, byte[] member) {
+        return execute(SREM, key, null, jedis -> jedis.srem(key, member));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public byte[] spop(byte[] key) {
+        return execute(SPOP, key, null, jedis -> jedis.spop(key));
     }
 
-    public Set<byte[]> zrevrange(byte[] key, int start, int end) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Long scard(byte[] key) {
+        return read(SCARD, key, null, jedis -> jedis.scard(key));
+    }
 
-            result = shardedJedis.zrevrange(key, start, end);
+    public Boolean sismember(byte[] key, byte[] member) {
+        if (batchExecutor != null) {
+            return batch(SISMEMBER, key, false, p -> p.sismember(key, member));
+        }
+        return execute(SISMEMBER, key, false, jedis -> jedis.sismember(key, member));
+    }
 
-        } catch (Exception e) {
+    public byte[] srandmember(byte[] key) {
+        return execute(SRANDMEMBER, key, null, jedis -> jedis.srandmember(key));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long zadd(byte[] key, double score, byte[] member) {
+        if (batchExecutor != null) {
+            return batch(ZADD, key, null, p -> p.zadd(key, score, member));
         }
-        return result;
+        return execute(ZADD, key, null, jedis -> jedis.zadd(key, score, member));
     }
 
-    public Set<Tuple> zrangeWithScores(byte[] key, int start, int end) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<byte[]> zrange(byte[] key, int start, int end) {
+        return execute(ZRANGE, key, null, jedis -> jedis.zrange(key, start, end));
+    }
 
-            result = shardedJedis.zrangeWithScores(key, start, end);
+    public Long zrem(byte[] key, byte[] member) {
+        return execute(ZREM, key, null, jedis -> jedis.zrem(key, member));
+    }
 
-        } catch (Exception e) {
+    public Double zincrby(byte[] key, double score, byte[] member) {
+        if (batchExecutor != null) {
+            return batch(ZINCRBY, key, null, p -> p.zincrby(key, score, member));
+        }
+        return execute(ZINCRBY, key, null, jedis -> jedis.zincrby(key, score, member));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long zrank(byte[] key, byte[] member) {
+        if (batchExecutor != null) {
+            return batch(ZRANK, key, null, p -> p.zrank(key, member));
         }
-        return result;
+        return execute(ZRANK, key, null, jedis -> jedis.zrank(key, member));
     }
 
-    public Set<Tuple> zrevrangeWithScores(byte[] key, int start, int end) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long zrevrank(byte[] key, byte[] member) {
+        if (batchExecutor != null) {
+            return batch(ZREVRANK, key, null, p -> p.zrevrank(key, member));
         }
-        boolean broken = false;
-        try {
+        return execute(ZREVRANK, key, null, jedis -> jedis.zrevrank(key, member));
+    }
 
-            result = shardedJedis.zrevrangeWithScores(key, start, end);
+    public Set<byte[]> zrevrange(byte[] key, int start, int end) {
+        return execute(ZREVRANGE, key, null, jedis -> jedis.zrevrange(key, start, end));
+    }
 
-        } catch (Exception e) {
+    public Set<Tuple> zrangeWithScores(byte[] key, int start, int end) {
+        return execute(ZRANGE, key, null, jedis -> jedis.zrangeWithScores(key, start, end));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Set<Tuple> zrevrangeWithScores(byte[] key, int start, int end) {
+        return execute(ZREVRANGE, key, null, jedis -> jedis.zrevrangeWithScores(key, start, end));
     }
 
     public Long zcard(byte[] key) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+        return read(ZCARD, key, null, jedis -> jedis.zcard(key));
+    }
+
+    public Double zscore(byte[] key, byte[] member) {
+        if (batchExecutor != null) {
+            return batch(ZSCORE, key, null, p -> p.zscore(key, member));
         }
-        boolean broken = false;
-        try {
+        return execute(ZSCORE, key, null, jedis -> jedis.zscore(key, member));
+    }
 
-            result = shardedJedis.zcard(key);
+    public List<byte[]> sort(byte[] key) {
+        return execute(SORT, key, null, jedis -> jedis.sort(key));
+    }
 
-        } catch (Exception e) {
+    public List<byte[]> sort(byte[] key, SortingParams sortingParameters) {
+        return execute(SORT, key, null, jedis -> jedis.sort(key, sortingParameters));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long zcount(byte[] key, double min, double max) {
+        return execute(ZCOUNT, key, null, jedis -> jedis.zcount(key, min, max));
     }
 
-    public Double zscore(byte[] key, byte[] member) {
-        Double result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<byte[]> zrangeByScore(byte[] key, double min, double max) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScore(key, min, max));
+    }
 
-            result = shardedJedis.zscore(key, member);
+    public Set<byte[]> zrangeByScore(byte[] key, double min, double max, int offset, int count) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScore(key, min, max, offset, count));
+    }
 
-        } catch (Exception e) {
+    public Set<Tuple> zrangeByScoreWithScores(byte[] key, double min, double max) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScoreWithScores(key, min, max));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Set<Tuple> zrangeByScoreWithScores(byte[] key, double min, double max, int offset, int count) {
+        return execute(ZRANGEBYSCORE, key, null, jedis -> jedis.zrangeByScoreWithScores(key, min, max, offset, count));
     }
 
-    public List<byte[]> sort(byte[] key) {
-        List<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.sort(key);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Set<byte[]> zrevrangeByScore(byte[] key, double max, double min) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScore(key, max, min));
     }
 
-    public List<byte[]> sort(byte[] key, SortingParams sortingParameters) {
-        List<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.sort(key, sortingParameters);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Set<byte[]> zrevrangeByScore(byte[] key, double max, double min, int offset, int count) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScore(key, max, min, offset, count));
     }
 
-    public Long zcount(byte[] key, double min, double max) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Set<Tuple> zrevrangeByScoreWithScores(byte[] key, double max, double min) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScoreWithScores(key, max, min));
+    }
 
-            result = shardedJedis.zcount(key, min, max);
+    public Set<Tuple> zrevrangeByScoreWithScores(byte[] key, double max, double min, int offset, int count) {
+        return execute(ZREVRANGEBYSCORE, key, null, jedis -> jedis.zrevrangeByScoreWithScores(key, max, min, offset, count));
+    }
 
-        } catch (Exception e) {
+    public Long zremrangeByRank(byte[] key, int start, int end) {
+        return execute(ZREMRANGEBYRANK, key, null, jedis -> jedis.zremrangeByRank(key, start, end));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    public Long zremrangeByScore(byte[] key, double start, double end) {
+        return execute(ZREMRANGEBYSCORE, key, null, jedis -> jedis.zremrangeByScore(key, start, end));
     }
 
-    public Set<byte[]> zrangeByScore(byte[] key, double min, double max) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
+    public Long linsert(byte[] key, BinaryClient.LIST_POSITION where, byte[] pivot, byte[] value) {
+        return execute(LINSERT, key, null, jedis -> jedis.linsert(key, where, pivot, value));
+    }
 
-            result = shardedJedis.zrangeByScore(key, min, max);
+    /**
+     * 批量获取，key 按分片分组，每个分片一条 MGET 并行执行，结果按传入 key 的顺序返回；
+     * 某个分片失败时该分片上的 key 对应位置为 null
+     */
+    public List<String> mget(String... keys) {
+        String[] values = new String[keys.length];
+        if (!factory.isShardPooled()) {
+            List<String> result = pipelineEach(keys.length, (p, i) -> p.get(keys[i]));
+            return result != null ? result : Arrays.asList(values);
+        }
+        scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> {
+            List<String> reply = jedis.mget(select(keys, positions));
+            for (int i = 0; i < positions.length; i++) {
+                values[positions[i]] = reply.get(i);
+            }
+            return reply;
+        });
+        return Arrays.asList(values);
+    }
+
+    public List<byte[]> mget(byte[]... keys) {
+        byte[][] values = new byte[keys.length][];
+        if (!factory.isShardPooled()) {
+            List<byte[]> result = pipelineEach(keys.length, (p, i) -> p.get(keys[i]));
+            return result != null ? result : Arrays.asList(values);
+        }
+        scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> {
+            List<byte[]> reply = jedis.mget(select(keys, positions));
+            for (int i = 0; i < positions.length; i++) {
+                values[positions[i]] = reply.get(i);
+            }
+            return reply;
+        });
+        return Arrays.asList(values);
+    }
 
-        } catch (Exception e) {
+    /**
+     * 批量设置，每个分片一条 MSET 并行执行，全部成功返回 OK，否则返回 null
+     */
+    public String mset(Map<String, String> hash) {
+        String[] keys = hash.keySet().toArray(new String[0]);
+        if (!factory.isShardPooled()) {
+            List<String> result = pipelineEach(keys.length, (p, i) -> p.set(keys[i], hash.get(keys[i])));
+            return result != null ? "OK" : null;
+        }
+        List<String> replies = scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> {
+            String[] keysvalues = new String[positions.length * 2];
+            for (int i = 0; i < positions.length; i++) {
+                keysvalues[2 * i] = keys[positions[i]];
+                keysvalues[2 * i + 1] = hash.get(keys[positions[i]]);
+            }
+            return jedis.mset(keysvalues);
+        });
+        syncReplicas(keys);
+        return replies.contains(null) ? null : "OK";
+    }
+
+    public String msetBinary(Map<byte[], byte[]> hash) {
+        byte[][] keys = new byte[hash.size()][];
+        byte[][] values = new byte[hash.size()][];
+        int n = 0;
+        for (Map.Entry<byte[], byte[]> entry : hash.entrySet()) {
+            keys[n] = entry.getKey();
+            values[n++] = entry.getValue();
+        }
+        if (!factory.isShardPooled()) {
+            List<String> result = pipelineEach(keys.length, (p, i) -> p.set(keys[i], values[i]));
+            return result != null ? "OK" : null;
+        }
+        List<String> replies = scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> {
+            byte[][] keysvalues = new byte[positions.length * 2][];
+            for (int i = 0; i < positions.length; i++) {
+                keysvalues[2 * i] = keys[positions[i]];
+                keysvalues[2 * i + 1] = values[positions[i]];
+            }
+            return jedis.mset(keysvalues);
+        });
+        syncReplicas(keys);
+        return replies.contains(null) ? null : "OK";
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    /**
+     * 批量删除，返回删除的 key 数量，任一分片失败返回 null
+     */
+    public Long del(String... keys) {
+        if (!factory.isShardPooled()) {
+            return sum(pipelineEach(keys.length, (p, i) -> p.del(keys[i])));
         }
-        return result;
+        Long deleted = sum(scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> jedis.del(select(keys, positions))));
+        syncReplicas(keys);
+        return deleted;
     }
 
-    public Set<byte[]> zrangeByScore(byte[] key, double min, double max, int offset, int count) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    public Long del(byte[]... keys) {
+        if (!factory.isShardPooled()) {
+            return sum(pipelineEach(keys.length, (p, i) -> p.del(keys[i])));
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zrangeByScore(key, min, max, offset, count);
-        } catch (Exception e) {
+        Long deleted = sum(scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> jedis.del(select(keys, positions))));
+        syncReplicas(keys);
+        return deleted;
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
-        }
-        return result;
+    /**
+     * 逐个分片用 SCAN MATCH 找出匹配 pattern 的 key 并删除，每批最多 count 个，批与批之间暂停 pauseMillis，
+     * 用于在后台慢慢清理废弃的数据；返回删除的 key 数，线程被中断时提前返回
+     * <p>
+     * 仅适用于按分片建池模式；不可用的分片跳过，不保证删掉扫描期间新写入的 key
+     */
+    public long scanDelete(byte[] pattern, int count, long pauseMillis) {
+        if (!factory.isShardPooled()) {
+            log.warn("scanDelete requires shard pooled mode");
+            return 0;
+        }
+        ScanParams params = new ScanParams().match(pattern).count(count);
+        long deleted = 0;
+        for (int shard = 0; shard < factory.getShardCount(); shard++) {
+            byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                byte[] current = cursor;
+                ScanResult<byte[]> result = executeOnShard(SCAN, shard, null, jedis -> jedis.scan(current, params));
+                if (result == null) {
+                    break;
+                }
+                List<byte[]> keys = result.getResult();
+                if (!keys.isEmpty()) {
+                    Long removed = executeOnShard(DEL, shard, null, jedis -> jedis.del(keys.toArray(new byte[keys.size()][])));
+                    deleted += removed == null ? 0 : removed;
+                }
+                cursor = result.getCursorAsBytes();
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return deleted;
+                }
+            } while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+        }
+        return deleted;
     }
 
-    public Set<Tuple> zrangeByScoreWithScores(byte[] key, double min, double max) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 批量判断存在，返回存在的 key 数量，任一分片失败返回 null
+     */
+    public Long exists(String... keys) {
+        if (!factory.isShardPooled()) {
+            List<Boolean> result = pipelineEach(keys.length, (p, i) -> p.exists(keys[i]));
+            return result == null ? null : result.stream().filter(Boolean.TRUE::equals).count();
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zrangeByScoreWithScores(key, min, max);
-        } catch (Exception e) {
+        return sum(scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> jedis.exists(select(keys, positions))));
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    public Long exists(byte[]... keys) {
+        if (!factory.isShardPooled()) {
+            List<Boolean> result = pipelineEach(keys.length, (p, i) -> p.exists(keys[i]));
+            return result == null ? null : result.stream().filter(Boolean.TRUE::equals).count();
         }
-        return result;
+        return sum(scatter(shardsOf(keys), slotsOf(keys), (jedis, positions) -> jedis.exists(select(keys, positions))));
     }
 
-    public Set<Tuple> zrangeByScoreWithScores(byte[] key, double min, double max, int offset, int count) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 发布消息到 channel 所在的分片，返回收到消息的订阅者数
+     */
+    public Long publish(String channel, String message) {
+        return execute(PUBLISH, channel, null, jedis -> jedis.publish(channel, message));
+    }
+
+    /**
+     * 在 channel 所在的分片上订阅，阻塞到 pubSub 取消订阅或连接断开为止，期间一直占用该分片的一个连接；
+     * 取消订阅后返回 true，借不到连接或连接断开返回 false，由调用方决定是否重新订阅
+     */
+    public boolean subscribe(JedisPubSub pubSub, String channel) {
+        if (!factory.isShardPooled()) {
+            return executeSharded(false, shardedJedis -> {
+                shardedJedis.getShard(channel).subscribe(pubSub, channel);
+                return true;
+            });
+        }
+        int shard = factory.getShardIndex(channel);
+        Jedis jedis = factory.getConnection(shard);
+        if (jedis == null) {
+            return false;
         }
         boolean broken = false;
         try {
-            result = shardedJedis.zrangeByScoreWithScores(key, min, max, offset, count);
+            jedis.subscribe(pubSub, channel);
+            return true;
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             broken = true;
+            return false;
         } finally {
-            factory.returnResource(shardedJedis, broken);
+            factory.returnResource(shard, jedis, broken);
         }
-        return result;
     }
 
-    public Set<byte[]> zrevrangeByScore(byte[] key, double max, double min) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
+    /**
+     * 多 key 命令中单个分片上的操作，positions 为该分片上的 key 在原数组中的下标
+     */
+    private interface ShardCall<T> {
+        T call(Jedis jedis, int[] positions);
+    }
+
+    /**
+     * 把 key 按分片分组，其他分片交给 scatterExecutor 并行执行，当前线程执行第一组；
+     * 返回各分片的结果，失败的分片为 null。slotOfKey 不为 null 时（集群模式）同一节点上的 key 再按槽位分组，
+     * 在同一个连接上逐个槽位执行，避免跨槽位的多 key 命令返回 CROSSSLOT
+     */
+    private <T> List<T> scatter(int[] shardOfKey, int[] slotOfKey, ShardCall<T> call) {
+        Map<Integer, int[]> groups = group(shardOfKey);
+        List<T> results = new ArrayList<>(groups.size());
+        List<CompletableFuture<List<T>>> futures = new ArrayList<>(groups.size());
+        Map.Entry<Integer, int[]> local = null;
+        for (Map.Entry<Integer, int[]> group : groups.entrySet()) {
+            if (local == null) {
+                local = group;
+                continue;
+            }
+            futures.add(CompletableFuture.supplyAsync(
+                    () -> executeOnShard(group.getKey(), null, jedis -> callBySlot(jedis, group.getValue(), slotOfKey, call)),
+                    scatterExecutor));
+        }
+        if (local != null) {
+            int[] positions = local.getValue();
+            addResults(results, executeOnShard(local.getKey(), null, jedis -> callBySlot(jedis, positions, slotOfKey, call)));
+        }
+        for (CompletableFuture<List<T>> future : futures) {
+            try {
+                addResults(results, future.join());
+            } catch (CompletionException e) {
+                ShardRedisUnavailableException.rethrowIfUnavailable(e);
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    private <T> List<T> callBySlot(Jedis jedis, int[] positions, int[] slotOfKey, ShardCall<T> call) {
+        if (slotOfKey == null) {
+            return Collections.singletonList(call.call(jedis, positions));
+        }
+        int[] slots = new int[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            slots[i] = slotOfKey[positions[i]];
+        }
+        Map<Integer, int[]> bySlot = group(slots);
+        List<T> replies = new ArrayList<>(bySlot.size());
+        for (int[] indexes : bySlot.values()) {
+            int[] sub = new int[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                sub[i] = positions[indexes[i]];
+            }
+            replies.add(callSlot(jedis, sub, call));
+        }
+        return replies;
+    }
+
+    /**
+     * 在一个槽位上执行；槽位已迁到其他节点时只把这个槽位重定向过去，同一节点上的其他槽位不受影响，
+     * 重定向失败时这个槽位的结果为 null
+     */
+    private <T> T callSlot(Jedis jedis, int[] positions, ShardCall<T> call) {
         try {
-            result = shardedJedis.zrevrangeByScore(key, max, min);
-        } catch (Exception e) {
+            return call.call(jedis, positions);
+        } catch (JedisRedirectionException e) {
+            try {
+                return factory.executeRedirected(e, other -> call.call(other, positions));
+            } catch (Exception ex) {
+                log.error(ex.getMessage(), ex);
+                return null;
+            }
+        }
+    }
 
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    private static <T> void addResults(List<T> results, List<T> replies) {
+        if (replies == null) {
+            results.add(null);
+        } else {
+            results.addAll(replies);
         }
-        return result;
     }
 
-    public Set<byte[]> zrevrangeByScore(byte[] key, double max, double min, int offset, int count) {
-        Set<byte[]> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private static Map<Integer, int[]> group(int[] shardOfKey) {
+        Map<Integer, Integer> counts = new LinkedHashMap<>();
+        for (int shard : shardOfKey) {
+            counts.merge(shard, 1, Integer::sum);
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zrevrangeByScore(key, max, min, offset, count);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        Map<Integer, int[]> groups = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+            groups.put(count.getKey(), new int[count.getValue()]);
         }
-        return result;
+        Map<Integer, Integer> filled = new HashMap<>();
+        for (int i = 0; i < shardOfKey.length; i++) {
+            int n = filled.merge(shardOfKey[i], 1, Integer::sum);
+            groups.get(shardOfKey[i])[n - 1] = i;
+        }
+        return groups;
     }
 
-    public Set<Tuple> zrevrangeByScoreWithScores(byte[] key, double max, double min) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private int[] shardsOf(String[] keys) {
+        int[] shards = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            migrateKey(keys[i]);
+            shards[i] = factory.getShardIndex(keys[i]);
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zrevrangeByScoreWithScores(key, max, min);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        return shards;
+    }
+
+    private int[] shardsOf(byte[][] keys) {
+        int[] shards = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            migrateKey(keys[i]);
+            shards[i] = factory.getShardIndex(keys[i]);
         }
-        return result;
+        return shards;
     }
 
-    public Set<Tuple> zrevrangeByScoreWithScores(byte[] key, double max, double min, int offset, int count) {
-        Set<Tuple> result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    /**
+     * 集群模式下每个 key 的槽位，其他模式返回 null
+     */
+    private int[] slotsOf(String[] keys) {
+        if (!(factory instanceof ShardRedisClusterConnectionFactory)) {
+            return null;
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zrevrangeByScoreWithScores(key, max, min, offset, count);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        int[] slots = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            slots[i] = ShardRedisClusterConnectionFactory.getSlot(keys[i]);
         }
-        return result;
+        return slots;
     }
 
-    public Long zremrangeByRank(byte[] key, int start, int end) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private int[] slotsOf(byte[][] keys) {
+        if (!(factory instanceof ShardRedisClusterConnectionFactory)) {
+            return null;
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zremrangeByRank(key, start, end);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        int[] slots = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            slots[i] = ShardRedisClusterConnectionFactory.getSlot(keys[i]);
         }
-        return result;
+        return slots;
     }
 
-    public Long zremrangeByScore(byte[] key, double start, double end) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
-        }
-        boolean broken = false;
-        try {
-            result = shardedJedis.zremrangeByScore(key, start, end);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+    private static <K> K[] select(K[] keys, int[] positions) {
+        K[] selected = Arrays.copyOf(keys, positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            selected[i] = keys[positions[i]];
         }
-        return result;
+        return selected;
     }
 
-    public Long linsert(byte[] key, BinaryClient.LIST_POSITION where, byte[] pivot, byte[] value) {
-        Long result = null;
-        ShardedJedis shardedJedis = factory.getConnection();
-        if (shardedJedis == null) {
-            return result;
+    private static Long sum(List<Long> replies) {
+        if (replies == null || replies.contains(null)) {
+            return null;
         }
-        boolean broken = false;
-        try {
-            result = shardedJedis.linsert(key, where, pivot, value);
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            broken = true;
-        } finally {
-            factory.returnResource(shardedJedis, broken);
+        long total = 0;
+        for (Long reply : replies) {
+            total += reply;
         }
-        return result;
+        return total;
+    }
+
+    /**
+     * 未按分片建池时，用 ShardedJedisPipeline 对每个 key 执行一条命令，每个分片一次往返
+     */
+    private <T> List<T> pipelineEach(int count, BiFunction<ShardedJedisPipeline, Integer, Response<T>> op) {
+        return executeSharded(null, shardedJedis -> {
+            ShardedJedisPipeline pipeline = shardedJedis.pipelined();
+            List<Response<T>> responses = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                responses.add(op.apply(pipeline, i));
+            }
+            pipeline.sync();
+            List<T> result = new ArrayList<>(count);
+            for (Response<T> response : responses) {
+                result.add(response.get());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * 创建一个类型化的批量命令，见 ShardRedisBatch
+     */
+    public ShardRedisBatch newBatch() {
+        return new ShardRedisBatch(this, maxBatchSize);
     }
 
+    /**
+     * 仅适用于 ShardedJedisPool 模式，按分片建池时返回 null
+     *
+     * @deprecated 改用 {@link #newBatch()}，可以拿到每条命令类型化的结果，按分片建池时各分片并行执行
+     */
+    @Deprecated
     public List<Object> pipelined(ShardedJedisPipeline shardedJedisPipeline) {
         ShardedJedis shardedJedis = factory.getConnection();
         List<Object> result = null;
@@ -2945,6 +1780,9 @@ public class ShardRedisPoolManager {
         return result;
     }
 
+    /**
+     * 仅适用于 ShardedJedisPool 模式，按分片建池时返回 null
+     */
     public Jedis getShard(byte[] key) {
         ShardedJedis shardedJedis = factory.getConnection();
         Jedis result = null;
@@ -2963,6 +1801,9 @@ public class ShardRedisPoolManager {
         return result;
     }
 
+    /**
+     * 仅适用于 ShardedJedisPool 模式，按分片建池时返回 null
+     */
     public Jedis getShard(String key) {
         ShardedJedis shardedJedis = factory.getConnection();
         Jedis result = null;
@@ -2981,7 +1822,13 @@ public class ShardRedisPoolManager {
         return result;
     }
 
+    /**
+     * 有分片路由时直接计算，不借用连接
+     */
     public JedisShardInfo getShardInfo(byte[] key) {
+        if (factory.getRouter() != null) {
+            return factory.getRouter().getShardInfo(key);
+        }
         ShardedJedis shardedJedis = factory.getConnection();
         JedisShardInfo result = null;
         if (shardedJedis == null) {
@@ -3000,6 +1847,9 @@ public class ShardRedisPoolManager {
     }
 
     public JedisShardInfo getShardInfo(String key) {
+        if (factory.getRouter() != null) {
+            return factory.getRouter().getShardInfo(key);
+        }
         ShardedJedis shardedJedis = factory.getConnection();
         JedisShardInfo result = null;
         if (shardedJedis == null) {
@@ -3018,6 +1868,9 @@ public class ShardRedisPoolManager {
     }
 
     public String getKeyTag(String key) {
+        if (factory.getRouter() != null) {
+            return factory.getRouter().getKeyTag(key);
+        }
         ShardedJedis shardedJedis = factory.getConnection();
         String result = null;
         if (shardedJedis == null) {
@@ -3036,6 +1889,9 @@ public class ShardRedisPoolManager {
     }
 
     public Collection<JedisShardInfo> getAllShardInfo() {
+        if (factory.getRouter() != null) {
+            return factory.getRouter().getShards();
+        }
         ShardedJedis shardedJedis = factory.getConnection();
         Collection<JedisShardInfo> result = null;
         if (shardedJedis == null) {
@@ -3054,6 +1910,9 @@ public class ShardRedisPoolManager {
         return result;
     }
 
+    /**
+     * 仅适用于 ShardedJedisPool 模式，按分片建池时返回 null
+     */
     public Collection<Jedis> getAllShards() {
         ShardedJedis shardedJedis = factory.getConnection();
         Collection<Jedis> result = null;
@@ -0,0 +1,370 @@
+package util;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 从库读路由
+ * <p>
+ * 每个分片可以登记若干个从库，只读命令按轮询或最低延迟发往从库，写命令始终在主库执行。
+ * 每 checkIntervalMillis 对比一次主库的 master_repl_offset 与从库的 slave_repl_offset，
+ * 复制落后超过 maxLagBytes 或复制链路断开的从库暂时移出轮转，追上后自动恢复；
+ * 分片没有可用从库或从库上执行失败时，由 ShardRedisPoolManager 回到主库执行。
+ * <p>
+ * 只支持按分片建池模式，从库按创建时连接工厂的分片下标登记，ShardRedisPoolManager 换了连接工厂后不再走从库，
+ * 需要按新连接工厂重新创建。
+ */
+public class ShardRedisReplicaRouter {
+    private static final Logger log = LoggerFactory.getLogger(ShardRedisReplicaRouter.class);
+
+    public static final int ROUND_ROBIN = 0;
+    public static final int LEAST_LATENCY = 1;
+
+    private final ShardRedisConnectionFactory factory;
+    // 下标与分片下标一致
+    private final List<Replica>[] replicas;
+    private final AtomicInteger[] cursors;
+    private final ScheduledExecutorService scheduler;
+
+    private int strategy = ROUND_ROBIN;
+    // 允许的最大复制落后字节数
+    private long maxLagBytes = 1024 * 1024;
+    private long checkIntervalMillis = 1000;
+
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder replicaFailures = new LongAdder();
+    private final LongAdder noReplica = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public ShardRedisReplicaRouter(ShardRedisConnectionFactory factory) {
+        if (!factory.isShardPooled() || factory.getRouter() == null) {
+            throw new IllegalArgumentException("replica routing requires a shard-pooled factory, not redis cluster");
+        }
+        this.factory = factory;
+        int shards = factory.getShardCount();
+        this.replicas = (List<Replica>[]) new List<?>[shards];
+        this.cursors = new AtomicInteger[shards];
+        for (int i = 0; i < shards; i++) {
+            replicas[i] = new CopyOnWriteArrayList<>();
+            cursors[i] = new AtomicInteger();
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-redis-replica-lag");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.schedule(this::checkLag, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 创建时所用的连接工厂，从库列表的下标与它的分片下标一致
+     */
+    public ShardRedisConnectionFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * 根据 shardedRedis.properties 的配置创建：redis.replicas.{host:port} 为该主库的从库列表，
+     * 没有配置任何从库时返回 null
+     */
+    public static ShardRedisReplicaRouter create(ShardRedisConnectionFactory factory, Properties props) {
+        String prefix = "redis.replicas.";
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        HealthCheckedJedisPool.configure(poolConfig);
+        ShardRedisConnectionFactory.applyPoolConfig(poolConfig, props, "redis.jedisPoolConfig.");
+
+        ShardRedisReplicaRouter replicaRouter = null;
+        for (int shard = 0; shard < factory.getShardCount(); shard++) {
+            String urls = props.getProperty(prefix + factory.getShardName(shard));
+            if (urls == null) {
+                continue;
+            }
+            for (String url : urls.split(";")) {
+                url = url.trim();
+                if (url.isEmpty()) {
+                    continue;
+                }
+                if (replicaRouter == null) {
+                    replicaRouter = new ShardRedisReplicaRouter(factory);
+                }
+                String[] hostAndPort = url.split(":");
+                replicaRouter.addReplica(shard, hostAndPort[0], Integer.parseInt(hostAndPort[1]), poolConfig);
+            }
+        }
+        if (replicaRouter == null) {
+            return null;
+        }
+        String value;
+        if ((value = props.getProperty(prefix + "strategy")) != null) {
+            replicaRouter.setStrategy("leastLatency".equalsIgnoreCase(value.trim()) ? LEAST_LATENCY : ROUND_ROBIN);
+        }
+        if ((value = props.getProperty(prefix + "maxLagBytes")) != null) {
+            replicaRouter.setMaxLagBytes(Long.parseLong(value.trim()));
+        }
+        if ((value = props.getProperty(prefix + "checkIntervalMillis")) != null) {
+            replicaRouter.setCheckIntervalMillis(Long.parseLong(value.trim()));
+        }
+        return replicaRouter;
+    }
+
+    /**
+     * 为分片登记一个从库，超时、密码、db 与主库相同；登记后要等下一次复制检查通过才会进入轮转
+     */
+    public void addReplica(int shard, String host, int port, GenericObjectPoolConfig config) {
+        JedisShardInfo primary = factory.getRouter().getShardInfo(shard);
+        JedisPool pool = new HealthCheckedJedisPool(config, host, port, primary.getConnectionTimeout(),
+                primary.getSoTimeout(), primary.getPassword(), primary.getDb(), null, primary.getSsl(),
+                primary.getSslSocketFactory(), primary.getSslParameters(), primary.getHostnameVerifier());
+        replicas[shard].add(new Replica(host + ":" + port, pool));
+    }
+
+    /**
+     * 在分片的一个可用从库上执行只读命令；没有可用从库或执行失败时返回 ShardRedisCommandPolicy.FAILED
+     */
+    Object read(int shard, JedisCallback.DoInJedis<?> action) {
+        Replica replica = pick(shard);
+        if (replica == null) {
+            noReplica.increment();
+            return ShardRedisCommandPolicy.FAILED;
+        }
+        Jedis jedis;
+        try {
+            jedis = replica.pool.getResource();
+        } catch (Exception e) {
+            log.error("getRedisClent error, replica " + replica.name, e);
+            replica.healthy = false;
+            replicaFailures.increment();
+            return ShardRedisCommandPolicy.FAILED;
+        }
+        long begin = System.nanoTime();
+        boolean broken = false;
+        try {
+            Object result = action.doIn(jedis);
+            replica.recordLatency(System.nanoTime() - begin);
+            replicaReads.increment();
+            return result;
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            // 只有连接异常（含超时）时连接状态未知，需要丢弃；WRONGTYPE 等命令错误的连接可以继续使用
+            broken = e instanceof JedisConnectionException;
+            if (HealthCheckedJedisPool.isBroken(e)) {
+                // 连接断开时先移出轮转，等下一次复制检查恢复
+                replica.healthy = false;
+                ((HealthCheckedJedisPool) replica.pool).validateIdle();
+            }
+            replicaFailures.increment();
+            return ShardRedisCommandPolicy.FAILED;
+        } finally {
+            ShardRedisConnectionFactory.release(jedis, broken);
+        }
+    }
+
+    private Replica pick(int shard) {
+        List<Replica> candidates = replicas[shard];
+        int size = candidates.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = cursors[shard].getAndIncrement() & Integer.MAX_VALUE;
+        // 最低延迟模式下每 16 次仍轮询一次，让较慢的从库也能更新延迟
+        if (strategy == LEAST_LATENCY && (start & 15) != 0) {
+            Replica best = null;
+            for (Replica replica : candidates) {
+                if (replica.healthy && (best == null || replica.latencyNanos < best.latencyNanos)) {
+                    best = replica;
+                }
+            }
+            return best;
+        }
+        for (int i = 0; i < size; i++) {
+            Replica replica = candidates.get((start + i) % size);
+            if (replica.healthy) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 对比每个分片主从的复制偏移量，更新从库是否可用
+     */
+    void checkLag() {
+        try {
+            for (int shard = 0; shard < replicas.length; shard++) {
+                if (replicas[shard].isEmpty()) {
+                    continue;
+                }
+                long masterOffset = masterOffset(shard);
+                for (Replica replica : replicas[shard]) {
+                    check(replica, masterOffset);
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        } finally {
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(this::checkLag, checkIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 主库当前的复制偏移量，取不到时返回 -1
+     */
+    private long masterOffset(int shard) {
+        try (Jedis jedis = factory.getShardPool(shard).getResource()) {
+            return infoField(jedis.info("replication"), "master_repl_offset");
+        } catch (Exception e) {
+            log.error("replication check error, shard " + factory.getShardName(shard), e);
+            return -1;
+        }
+    }
+
+    private void check(Replica replica, long masterOffset) {
+        boolean healthy = false;
+        try (Jedis jedis = replica.pool.getResource()) {
+            String info = jedis.info("replication");
+            long offset = infoField(info, "slave_repl_offset");
+            if (info.contains("master_link_status:up") && masterOffset >= 0 && offset >= 0) {
+                // 先取主库再取从库，从库偏移量可能略大于取到的主库偏移量
+                replica.lagBytes = Math.max(0, masterOffset - offset);
+                healthy = replica.lagBytes <= maxLagBytes;
+            }
+        } catch (Exception e) {
+            log.error("replication check error, replica " + replica.name, e);
+        }
+        if (healthy != replica.healthy) {
+            if (healthy) {
+                log.info("replica back in rotation: " + replica.name);
+            } else {
+                log.warn("replica out of rotation: " + replica.name + ", lag " + replica.lagBytes + " bytes");
+            }
+            replica.healthy = healthy;
+        }
+    }
+
+    private static long infoField(String info, String name) {
+        for (String line : info.split("\r\n")) {
+            if (line.startsWith(name + ":")) {
+                return Long.parseLong(line.substring(name.length() + 1).trim());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 分片登记的从库
+     */
+    public List<Replica> getReplicas(int shard) {
+        return Collections.unmodifiableList(new ArrayList<>(replicas[shard]));
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        for (List<Replica> shardReplicas : replicas) {
+            for (Replica replica : shardReplicas) {
+                replica.pool.close();
+            }
+        }
+    }
+
+    /**
+     * 在从库上执行成功的读次数
+     */
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+
+    /**
+     * 在从库上执行失败、回到主库的读次数
+     */
+    public long getReplicaFailures() {
+        return replicaFailures.sum();
+    }
+
+    /**
+     * 分片没有可用从库、直接在主库执行的读次数
+     */
+    public long getNoReplica() {
+        return noReplica.sum();
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(int strategy) {
+        this.strategy = strategy;
+    }
+
+    public long getMaxLagBytes() {
+        return maxLagBytes;
+    }
+
+    public void setMaxLagBytes(long maxLagBytes) {
+        this.maxLagBytes = maxLagBytes;
+    }
+
+    public long getCheckIntervalMillis() {
+        return checkIntervalMillis;
+    }
+
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * 一个从库
+     */
+    public static class Replica {
+        private final String name;
+        private final JedisPool pool;
+        private volatile boolean healthy;
+        private volatile long lagBytes;
+        // 命令耗时的指数移动平均，并发更新时允许丢失少量样本
+        private volatile long latencyNanos;
+
+        Replica(String name, JedisPool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        void recordLatency(long nanos) {
+            long current = latencyNanos;
+            latencyNanos = current == 0 ? nanos : current + (nanos - current) / 8;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public long getLagBytes() {
+            return lagBytes;
+        }
+
+        public long getLatencyMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        }
+    }
+}
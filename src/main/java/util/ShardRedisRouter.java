@@ -0,0 +1,260 @@
+package util;
+
+import redis.clients.jedis.JedisShardInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 分片路由：根据 key 计算所在分片的下标，不借用任何连接
+ * <p>
+ * 哈希环与 ShardedJedisPool（MurmurHash，每个分片 160 * weight 个虚拟节点）完全相同，分片列表不变时 key 的归属与原来一致；
+ * 但环被展开成两个排好序的数组，查找时直接对 byte[] / String 计算 MurmurHash64A 再二分，整个过程不分配任何对象。
+ * <p>
+ * 开启 keyTag 后，key 中第一个 "{" 与其后第一个 "}" 之间的非空内容作为路由依据（与 Redis Cluster 的 hash tag 规则一致），
+ * 同一个 tag 的 key 一定落在同一个分片上。
+ */
+public class ShardRedisRouter {
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+    private static final int SEED = 0x1234ABCD;
+
+    private final List<JedisShardInfo> shards;
+    private final boolean keyTag;
+    // 哈希环：ring 升序排列，owners[i] 是虚拟节点 ring[i] 所属的分片下标
+    private final long[] ring;
+    private final int[] owners;
+
+    public ShardRedisRouter(List<JedisShardInfo> shards) {
+        this(shards, false);
+    }
+
+    public ShardRedisRouter(List<JedisShardInfo> shards, boolean keyTag) {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.keyTag = keyTag;
+
+        // 按 Sharded.initialize 的顺序放入虚拟节点，哈希冲突时后放入的覆盖先放入的
+        TreeMap<Long, Integer> nodes = new TreeMap<>();
+        for (int i = 0; i < this.shards.size(); i++) {
+            JedisShardInfo shard = this.shards.get(i);
+            for (int n = 0; n < 160 * shard.getWeight(); n++) {
+                String node = shard.getName() == null
+                        ? "SHARD-" + i + "-NODE-" + n
+                        : shard.getName() + "*" + shard.getWeight() + n;
+                nodes.put(hash(node, 0, node.length()), i);
+            }
+        }
+        this.ring = new long[nodes.size()];
+        this.owners = new int[nodes.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> node : nodes.entrySet()) {
+            ring[i] = node.getKey();
+            owners[i++] = node.getValue();
+        }
+    }
+
+    public int getShardIndex(byte[] key) {
+        int from = 0;
+        int to = key.length;
+        if (keyTag) {
+            int open = indexOf(key, (byte) '{', 0);
+            int close = open < 0 ? -1 : indexOf(key, (byte) '}', open + 1);
+            if (close > open + 1) {
+                from = open + 1;
+                to = close;
+            }
+        }
+        return locate(hash(key, from, to - from));
+    }
+
+    public int getShardIndex(String key) {
+        int from = 0;
+        int to = key.length();
+        if (keyTag) {
+            int open = key.indexOf('{');
+            int close = open < 0 ? -1 : key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                from = open + 1;
+                to = close;
+            }
+        }
+        return locate(hash(key, from, to));
+    }
+
+    /**
+     * 环上第一个不小于 hash 的虚拟节点，超过最后一个节点时回到第一个
+     */
+    private int locate(long hash) {
+        int i = Arrays.binarySearch(ring, hash);
+        if (i < 0) {
+            i = -i - 1;
+            if (i == ring.length) {
+                i = 0;
+            }
+        }
+        return owners[i];
+    }
+
+    public JedisShardInfo getShardInfo(int index) {
+        return shards.get(index);
+    }
+
+    public JedisShardInfo getShardInfo(byte[] key) {
+        return shards.get(getShardIndex(key));
+    }
+
+    public JedisShardInfo getShardInfo(String key) {
+        return shards.get(getShardIndex(key));
+    }
+
+    /**
+     * 返回实际参与路由的部分，未开启 keyTag 或 key 中没有 tag 时返回 key 本身
+     */
+    public String getKeyTag(String key) {
+        if (keyTag) {
+            int open = key.indexOf('{');
+            int close = open < 0 ? -1 : key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return key.substring(open + 1, close);
+            }
+        }
+        return key;
+    }
+
+    public boolean isKeyTag() {
+        return keyTag;
+    }
+
+    public List<JedisShardInfo> getShards() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    private static int indexOf(byte[] key, byte b, int from) {
+        for (int i = from; i < key.length; i++) {
+            if (key[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 与 redis.clients.util.MurmurHash#hash(byte[]) 结果相同的 MurmurHash64A，按小端每次读 8 个字节
+     */
+    static long hash(byte[] data, int offset, int length) {
+        long h = SEED ^ (length * M);
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            long k = (data[i] & 0xffL)
+                    | (data[i + 1] & 0xffL) << 8
+                    | (data[i + 2] & 0xffL) << 16
+                    | (data[i + 3] & 0xffL) << 24
+                    | (data[i + 4] & 0xffL) << 32
+                    | (data[i + 5] & 0xffL) << 40
+                    | (data[i + 6] & 0xffL) << 48
+                    | (data[i + 7] & 0xffL) << 56;
+            h = mix(h, k);
+        }
+        int rest = length & 7;
+        if (rest > 0) {
+            long k = 0;
+            for (int i = 0; i < rest; i++) {
+                k |= (data[end + i] & 0xffL) << (8 * i);
+            }
+            h ^= k;
+            h *= M;
+        }
+        return fmix(h);
+    }
+
+    /**
+     * 对 key[from, to) 的 UTF-8 编码计算 MurmurHash64A，结果与先 SafeEncoder.encode 再哈希相同，但不生成中间 byte[]
+     */
+    static long hash(String key, int from, int to) {
+        long h = SEED ^ (utf8Length(key, from, to) * M);
+        long k = 0;
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char c = key.charAt(i);
+            int code = c;
+            if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(key.charAt(i + 1))) {
+                code = Character.toCodePoint(c, key.charAt(++i));
+            } else if (Character.isSurrogate(c)) {
+                // 与 String.getBytes(UTF-8) 一致，孤立的代理字符编码为 '?'
+                code = '?';
+            }
+            if (code < 0x80) {
+                k |= (long) code << (8 * n);
+                if (++n == 8) {
+                    h = mix(h, k);
+                    k = 0;
+                    n = 0;
+                }
+                continue;
+            }
+            int bytes = code < 0x800 ? 2 : code < 0x10000 ? 3 : 4;
+            for (int b = 0; b < bytes; b++) {
+                int value;
+                if (b == 0) {
+                    value = bytes == 2 ? 0xc0 | code >> 6 : bytes == 3 ? 0xe0 | code >> 12 : 0xf0 | code >> 18;
+                } else {
+                    value = 0x80 | (code >> (6 * (bytes - 1 - b)) & 0x3f);
+                }
+                k |= (long) (value & 0xff) << (8 * n);
+                if (++n == 8) {
+                    h = mix(h, k);
+                    k = 0;
+                    n = 0;
+                }
+            }
+        }
+        if (n > 0) {
+            h ^= k;
+            h *= M;
+        }
+        return fmix(h);
+    }
+
+    private static int utf8Length(String key, int from, int to) {
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(key.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static long mix(long h, long k) {
+        k *= M;
+        k ^= k >>> R;
+        k *= M;
+        h ^= k;
+        return h * M;
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+}
@@ -0,0 +1,110 @@
+package util;
+
+import redis.clients.jedis.Protocol;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 相同读请求合并：同一时刻对同一个 key 发出的同一条只读命令只有第一个线程真正访问 Redis，
+ * 其余线程等待它的结果并直接返回
+ * <p>
+ * 只用于参数只有 key 的只读命令；合并后所有调用方拿到的是同一个结果对象（例如同一个 byte[]），不要修改。
+ * 返回集合的命令（HKEYS、HGETALL、SMEMBERS、SORT 等）调用方通常会修改结果，不经过合并器。
+ */
+public class ShardRedisSingleFlight {
+    private final Map<Flight, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Protocol.Command command, Object key, Supplier<T> call) {
+        calls.increment();
+        Flight flight = new Flight(command, key);
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(flight, future);
+        if (running != null) {
+            collapsed.increment();
+            try {
+                return (T) running.join();
+            } catch (CompletionException e) {
+                // 把第一个线程抛出的异常原样交给等待的线程，例如 failFast 时的 ShardRedisUnavailableException
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            T result = call.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flight, future);
+        }
+    }
+
+    /**
+     * 经过合并器的调用总数
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * 被合并、没有访问 Redis 的调用数
+     */
+    public long getCollapsed() {
+        return collapsed.sum();
+    }
+
+    /**
+     * 当前正在执行的不同请求数
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * 命令 + key；String 与 byte[] 形式的 key 返回类型不同，不会视为同一请求
+     */
+    private static class Flight {
+        private final Protocol.Command command;
+        private final Object key;
+        private final int hash;
+
+        Flight(Protocol.Command command, Object key) {
+            this.command = command;
+            this.key = key;
+            this.hash = 31 * command.hashCode() + (key instanceof byte[] ? Arrays.hashCode((byte[]) key) : key.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Flight)) {
+                return false;
+            }
+            Flight other = (Flight) o;
+            if (command != other.command) {
+                return false;
+            }
+            if (key instanceof byte[]) {
+                return other.key instanceof byte[] && Arrays.equals((byte[]) key, (byte[]) other.key);
+            }
+            return key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package util;
+
+/**
+ * 分片熔断器打开、请求被直接拒绝时抛出，仅在 ShardRedisPoolManager 开启 failFast 时使用
+ */
+public class ShardRedisUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ShardRedisUnavailableException(String shard) {
+        super("redis shard is unavailable: " + shard);
+    }
+
+    /**
+     * 异常或它的 cause 链中有本异常时原样抛出，用于在线程池中执行、被 CompletionException 等包装过的异常
+     */
+    static void rethrowIfUnavailable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ShardRedisUnavailableException) {
+                throw (ShardRedisUnavailableException) cause;
+            }
+        }
+    }
+}